@@ -30,6 +30,11 @@ android {
         isCoreLibraryDesugaringEnabled = true
     }
 
+    buildFeatures {
+        // BuildConfig.DEBUG keeps debug-only settings out of release builds
+        buildConfig = true
+    }
+
     packaging {
         resources {
             excludes += "META-INF/DEPENDENCIES"
@@ -38,6 +43,8 @@ android {
 }
 
 dependencies {
+    implementation(project(":core"))
+
     implementation(libs.core.ktx)
     implementation(libs.appcompat.v161)
     implementation(libs.material.v1110)
@@ -53,6 +60,8 @@ dependencies {
     implementation(libs.google.api.client.android)
     implementation(libs.api.client.google.api.client.gson.v1350)
     implementation(libs.google.api.services.drive.vv3rev20230815200)
+    implementation(libs.okhttp)
+    implementation(libs.work.runtime)
 
     coreLibraryDesugaring(libs.desugar.jdk.libs)
 }
\ No newline at end of file
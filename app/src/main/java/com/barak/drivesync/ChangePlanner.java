@@ -0,0 +1,351 @@
+package com.barak.drivesync;
+
+import android.util.Log;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.File;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * ChangePlanner turns the Drive change log into local sync actions for one folder tree.
+ * It resolves renames, removals and moves by looking up each changed Drive file ID in the
+ * sync index, so neither a full listing nor a local scan is needed. A file renamed or moved
+ * without a content change has its local copy moved along instead of being downloaded again.
+ * Changes to the folder structure itself (folders added, renamed, moved or removed) are not
+ * applied here; they are reported through requiresFullSync() so the caller can re-list the tree.
+ */
+public class ChangePlanner {
+    private static final String TAG = "ChangePlanner";
+    // Logs the decision for every changed file; off unless the tag is loggable at DEBUG
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+    private static final String FOLDER_MIME_TYPE = "application/vnd.google-apps.folder";
+
+    private final String folderId;
+    private final SyncIndex syncIndex;
+    private final String syncScope;
+    // Latest change per file; a file may appear more than once in the change log
+    private final Map<String, Change> latestChanges = new LinkedHashMap<>();
+    // Whether a Drive folder ID is the synced folder or a folder mirrored below it
+    private final Map<String, Boolean> mirroredFolders = new HashMap<>();
+
+    // Files to download with the Drive folder each one belongs in, and the IDs among them
+    // that do not exist locally under their name yet
+    private final List<File> downloads = new ArrayList<>();
+    private final Map<String, String> downloadParents = new HashMap<>();
+    private final Set<String> newFileIds = new HashSet<>();
+    // Renamed or moved files whose local copy is moved along, with the index entry of that copy
+    private final List<File> moves = new ArrayList<>();
+    private final Map<String, IndexEntry> moveSources = new HashMap<>();
+    private final List<IndexEntry> localFilesToDelete = new ArrayList<>();
+    private final List<String> staleIndexEntries = new ArrayList<>();
+    // Index rows of files whose Drive version moved on without a content change
+    private final List<IndexEntry> indexUpdates = new ArrayList<>();
+    private boolean requiresFullSync = false;
+    private int skippedCount = 0;
+    private int unresolvedCount = 0;
+
+    /**
+     * Creates a planner for one incremental sync.
+     * @param folderId  The ID of the synced Drive folder.
+     * @param syncIndex The index of files and folders mirrored by previous syncs.
+     * @param syncScope Identifies the Drive/local folder pair in the index.
+     */
+    public ChangePlanner(String folderId, SyncIndex syncIndex, String syncScope) {
+        this.folderId = folderId;
+        this.syncIndex = syncIndex;
+        this.syncScope = syncScope;
+    }
+
+    /**
+     * Collects one page of changes. Actions are computed by plan() once all pages are in.
+     * @param page A page of changes from the change log.
+     */
+    public void onPage(List<Change> page) {
+        for (Change change : page) {
+            latestChanges.put(change.getFileId(), change);
+        }
+    }
+
+    /**
+     * Resolves the collected changes against the sync index and works out which files
+     * must be downloaded and which local files must be deleted.
+     * Stops early if a folder change makes a full sync necessary.
+     */
+    public void plan() {
+        // Index entries of changed files, as they were before this sync
+        Map<String, IndexEntry> oldEntries = new HashMap<>();
+        for (String fileId : latestChanges.keySet()) {
+            IndexEntry entry = syncIndex.get(syncScope, fileId);
+            if (entry != null) {
+                oldEntries.put(fileId, entry);
+            }
+        }
+
+        // Map every changed file that is still in the tree to its current folder and name.
+        // Claims are tracked separately so renames within one batch (including two files
+        // swapping names) resolve independently of change order.
+        Map<String, String> claimedNames = new HashMap<>();
+        Set<String> claimedIds = new HashSet<>();
+        List<File> moveCandidates = new ArrayList<>();
+        for (Change change : latestChanges.values()) {
+            String fileId = change.getFileId();
+            IndexEntry oldEntry = oldEntries.get(fileId);
+            File driveFile = change.getFile();
+            String parentId = findMirroredParent(change);
+            if (isFolderChange(change, oldEntry, parentId)) {
+                Log.i(TAG, "Folder structure changed in Drive: " +
+                        (driveFile != null ? driveFile.getName() : oldEntry.name));
+                requiresFullSync = true;
+                return;
+            }
+            if (parentId == null || isFolder(driveFile)) {
+                if (oldEntry != null && !oldEntry.isFolder) {
+                    // Removed, trashed or moved out of the tree
+                    if (DEBUG) Log.d(TAG, "No longer in Drive folder: " + oldEntry.name);
+                }
+                continue;
+            }
+            String name = driveFile.getName();
+            if (!LocalNames.isPlainName(name)) {
+                // Drive allows "/" and ".." in names; such a file has no safe local path
+                Log.w(TAG, "Skipping Drive file with an unusable local name: " + name);
+                continue;
+            }
+            String path = parentId + "/" + name;
+            if (claimedNames.containsKey(path) || isOwnedByUnchangedFile(parentId, name, fileId)) {
+                // Drive allows duplicate names; only the first one maps to the local file
+                Log.w(TAG, "Skipping duplicate Drive file name: " + name);
+                continue;
+            }
+            claimedNames.put(path, fileId);
+            claimedIds.add(fileId);
+            boolean isNew = oldEntry == null || !oldEntry.name.equals(name) || !parentId.equals(oldEntry.parentId);
+            if (!isNew && oldEntry.matches(driveFile)) {
+                // Metadata-only change (e.g. starred, shared or touched); the local copy is current
+                if (DEBUG) Log.d(TAG, "File up to date: " + name);
+                skippedCount++;
+                if (!oldEntry.isCurrent(driveFile)) {
+                    indexUpdates.add(IndexEntry.fromDriveFile(driveFile, parentId,
+                            oldEntry.localDocumentId, oldEntry.localModified));
+                }
+            } else if (isNew && oldEntry != null && oldEntry.hasSameContent(driveFile)) {
+                // Decided once all claims are known: the old local copy may belong to another file now
+                moveCandidates.add(driveFile);
+                downloadParents.put(fileId, parentId);
+            } else {
+                if (oldEntry != null && isNew) {
+                    if (DEBUG) Log.d(TAG, "Renamed or moved in Drive: " + oldEntry.name + " -> " + name);
+                }
+                downloads.add(driveFile);
+                downloadParents.put(fileId, parentId);
+                if (isNew) {
+                    newFileIds.add(fileId);
+                }
+            }
+        }
+
+        // A renamed or moved file takes its local copy along, unless another file now claims the old path
+        for (File driveFile : moveCandidates) {
+            IndexEntry oldEntry = oldEntries.get(driveFile.getId());
+            if (claimedNames.containsKey(oldEntry.parentId + "/" + oldEntry.name)) {
+                if (DEBUG) {
+                    Log.d(TAG, "Renamed or moved in Drive, old name reused: " + oldEntry.name + " -> " +
+                            driveFile.getName());
+                }
+                downloads.add(driveFile);
+                newFileIds.add(driveFile.getId());
+            } else {
+                if (DEBUG) Log.d(TAG, "File to move locally: " + oldEntry.name + " -> " + driveFile.getName());
+                moves.add(driveFile);
+                moveSources.put(driveFile.getId(), oldEntry);
+            }
+        }
+
+        // Old paths no file claims any more are stale local copies; moved copies are gone by the time
+        // deletions run, and copies whose move failed are deleted like any other
+        for (IndexEntry oldEntry : oldEntries.values()) {
+            if (oldEntry.isFolder) continue;
+            if (!claimedNames.containsKey(oldEntry.parentId + "/" + oldEntry.name)) {
+                localFilesToDelete.add(oldEntry);
+            }
+            if (!claimedIds.contains(oldEntry.driveId)) {
+                staleIndexEntries.add(oldEntry.driveId);
+            }
+        }
+        Log.i(TAG, "Planned " + latestChanges.size() + " changes: " + downloads.size() +
+                " downloads, " + moves.size() + " moves, " + localFilesToDelete.size() + " deletions.");
+    }
+
+    /**
+     * Queues every file that plan() selected for download.
+     * Files whose local directory cannot be resolved are counted as unresolved and not queued.
+     * @param downloadEngine The engine that downloads files selected for sync.
+     * @param localDirs      Resolves a Drive folder ID to the snapshot of its local directory, or null.
+     */
+    public void queueDownloads(DownloadEngine downloadEngine, Function<String, DirectorySnapshot> localDirs) {
+        for (File driveFile : downloads) {
+            String parentId = downloadParents.get(driveFile.getId());
+            DirectorySnapshot localDir = localDirs.apply(parentId);
+            if (localDir == null) {
+                Log.e(TAG, "No local folder for: " + driveFile.getName());
+                unresolvedCount++;
+                continue;
+            }
+            boolean isNew = newFileIds.contains(driveFile.getId());
+            if (DEBUG) Log.d(TAG, (isNew ? "File to download (new): " : "File to update: ") + driveFile.getName());
+            downloadEngine.submit(driveFile, parentId, localDir, isNew);
+        }
+    }
+
+    /**
+     * Resolves the local moves that plan() selected. Must be applied before deletions.
+     * Files whose new local directory cannot be resolved are counted as unresolved and left out.
+     * @param localDirs Resolves a Drive folder ID to the snapshot of its local directory, or null.
+     * @return The local files to move.
+     */
+    public List<LocalMove> getLocalMoves(Function<String, DirectorySnapshot> localDirs) {
+        List<LocalMove> localMoves = new ArrayList<>();
+        for (File driveFile : moves) {
+            String parentId = downloadParents.get(driveFile.getId());
+            DirectorySnapshot targetDir = localDirs.apply(parentId);
+            if (targetDir == null) {
+                Log.e(TAG, "No local folder for: " + driveFile.getName());
+                unresolvedCount++;
+                continue;
+            }
+            IndexEntry from = moveSources.get(driveFile.getId());
+            localMoves.add(new LocalMove(driveFile, parentId, from, localDirs.apply(from.parentId), targetDir));
+        }
+        return localMoves;
+    }
+
+    /**
+     * Resolves the local files whose Drive counterpart is gone.
+     * @param localDirs Resolves a Drive folder ID to the snapshot of its local directory, or null.
+     * @return The local files to delete; files in directories that no longer exist are left out.
+     */
+    public List<LocalDeletion> getLocalDeletions(Function<String, DirectorySnapshot> localDirs) {
+        List<LocalDeletion> deletions = new ArrayList<>();
+        for (IndexEntry entry : localFilesToDelete) {
+            DirectorySnapshot localDir = localDirs.apply(entry.parentId);
+            if (localDir != null) {
+                deletions.add(new LocalDeletion(localDir, entry.name, false));
+            }
+        }
+        return deletions;
+    }
+
+    /** @return true if folders changed in Drive and the tree must be re-listed instead. */
+    public boolean requiresFullSync() {
+        return requiresFullSync;
+    }
+
+    /** @return true if the plan downloads, moves or deletes at least one local file. */
+    public boolean hasLocalActions() {
+        return !downloads.isEmpty() || !moves.isEmpty() || !localFilesToDelete.isEmpty();
+    }
+
+    /** @return Drive file IDs that are no longer mirrored and must be removed from the index. */
+    public List<String> getStaleIndexEntries() {
+        return staleIndexEntries;
+    }
+
+    /** @return Index rows to refresh for files that changed in Drive but not in content. */
+    public List<IndexEntry> getIndexUpdates() {
+        return indexUpdates;
+    }
+
+    /** @return Number of files queued for download. */
+    public int getQueuedCount() {
+        return downloads.size() - unresolvedCount;
+    }
+
+    /** @return Number of changed files that did not need to be downloaded. */
+    public int getSkippedCount() {
+        return skippedCount;
+    }
+
+    /** @return Number of files that could not be queued because their local folder is missing. */
+    public int getUnresolvedCount() {
+        return unresolvedCount;
+    }
+
+    /**
+     * Checks whether a local name already belongs to a file that did not change in this batch.
+     * @param parentId The ID of the Drive folder the name is in.
+     * @param name     The local file name.
+     * @param fileId   The Drive file ID claiming the name.
+     * @return true if another, unchanged file owns the name.
+     */
+    private boolean isOwnedByUnchangedFile(String parentId, String name, String fileId) {
+        IndexEntry owner = syncIndex.getByName(syncScope, parentId, name);
+        return owner != null && !owner.driveId.equals(fileId) && !latestChanges.containsKey(owner.driveId);
+    }
+
+    /**
+     * Checks whether a change adds, renames, moves or removes a folder within the synced tree.
+     * @param change   The change to check.
+     * @param oldEntry The index entry of the changed file before this sync, or null.
+     * @param parentId The mirrored folder the file is in now, or null.
+     * @return true if the local directory structure no longer matches Drive.
+     */
+    private boolean isFolderChange(Change change, IndexEntry oldEntry, String parentId) {
+        File driveFile = change.getFile();
+        if (oldEntry != null && oldEntry.isFolder) {
+            // A mirrored folder that is gone, or no longer at the same path
+            return parentId == null || !isFolder(driveFile)
+                    || !oldEntry.name.equals(driveFile.getName()) || !parentId.equals(oldEntry.parentId);
+        }
+        // A folder that is new to the tree
+        return parentId != null && isFolder(driveFile);
+    }
+
+    /**
+     * Finds the folder a changed file currently lives in, among the folders mirrored locally.
+     * @param change The change to check.
+     * @return The ID of the mirrored parent folder, or null if the file is not a live part of the tree.
+     */
+    private String findMirroredParent(Change change) {
+        File driveFile = change.getFile();
+        if (Boolean.TRUE.equals(change.getRemoved()) || driveFile == null) return null;
+        if (Boolean.TRUE.equals(driveFile.getTrashed())) return null;
+        if (driveFile.getParents() == null) return null;
+        for (String parentId : driveFile.getParents()) {
+            if (isMirroredFolder(parentId)) {
+                return parentId;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether a Drive folder is the synced folder or a folder mirrored below it.
+     * @param driveFolderId The Drive folder ID.
+     * @return true if the folder has a local directory.
+     */
+    private boolean isMirroredFolder(String driveFolderId) {
+        if (folderId.equals(driveFolderId)) return true;
+        Boolean mirrored = mirroredFolders.get(driveFolderId);
+        if (mirrored == null) {
+            IndexEntry entry = syncIndex.get(syncScope, driveFolderId);
+            mirrored = entry != null && entry.isFolder;
+            mirroredFolders.put(driveFolderId, mirrored);
+        }
+        return mirrored;
+    }
+
+    /**
+     * @param driveFile The Drive file, or null.
+     * @return true if the file is a Drive folder.
+     */
+    private static boolean isFolder(File driveFile) {
+        return driveFile != null && FOLDER_MIME_TYPE.equals(driveFile.getMimeType());
+    }
+}
@@ -0,0 +1,157 @@
+package com.barak.drivesync;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ChannelOutputStream writes download content to a file's FileChannel in large blocks.
+ * Bytes are gathered in a direct ByteBuffer borrowed from a pool shared by all download workers,
+ * so a long sync reuses the same few buffers instead of allocating new ones for every file, and
+ * the channel sees one large write per buffer instead of one per network read. Segmented downloads
+ * borrow from the same pool with acquireBuffer() and releaseBuffer().
+ * Nothing is forced to disk until sync() is called.
+ */
+public class ChannelOutputStream extends OutputStream {
+    private static final String TAG = "ChannelOutputStream";
+
+    /** Size of each pooled buffer. */
+    public static final int BUFFER_SIZE = 1024 * 1024;
+    // One buffer per download worker or segment is enough; extra buffers are left to the GC
+    private static final int MAX_POOLED_BUFFERS = DownloadEngine.MAX_CONCURRENCY;
+
+    private static final Queue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooledCount = new AtomicInteger();
+
+    private final FileOutputStream file;
+    private final FileChannel channel;
+    private ByteBuffer buffer;
+
+    /**
+     * Wraps an open file. Writing continues at the channel's current position.
+     * @param file The file to write; closed together with this stream.
+     */
+    public ChannelOutputStream(FileOutputStream file) {
+        this.file = file;
+        this.channel = file.getChannel();
+        this.buffer = acquireBuffer();
+    }
+
+    /**
+     * Reserves disk space for a file of known size, so large files are laid out in one piece
+     * and a full disk is found before the download rather than in the middle of it.
+     * Providers whose files do not support it are left as they are.
+     * @param file The open file.
+     * @param size The final size in bytes.
+     */
+    public static void preallocate(FileOutputStream file, long size) {
+        if (size <= 0) return;
+        try {
+            Os.posix_fallocate(file.getFD(), 0, size);
+        } catch (ErrnoException | IOException e) {
+            Log.d(TAG, "Preallocation not supported: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!buffer.hasRemaining()) drain();
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!buffer.hasRemaining()) drain();
+            int count = Math.min(len, buffer.remaining());
+            buffer.put(b, off, count);
+            off += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * Hands buffered bytes to the file. Does not force them to disk.
+     */
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+
+    /**
+     * Writes buffered bytes and forces everything written so far to disk.
+     * @throws IOException if writing or syncing fails.
+     */
+    public void sync() throws IOException {
+        drain();
+        file.getFD().sync();
+    }
+
+    /**
+     * @return The file position after the last byte written, including buffered bytes.
+     * @throws IOException if the position cannot be read.
+     */
+    public long position() throws IOException {
+        return channel.position() + buffer.position();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (buffer == null) return;
+        try {
+            drain();
+        } finally {
+            releaseBuffer(buffer);
+            buffer = null;
+            file.close();
+        }
+    }
+
+    /**
+     * Writes the buffered bytes to the channel.
+     * @throws IOException if writing fails.
+     */
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Borrows a buffer of BUFFER_SIZE bytes; give it back with releaseBuffer() when done.
+     * @return A cleared buffer from the pool, or a new one if the pool is empty.
+     */
+    public static ByteBuffer acquireBuffer() {
+        ByteBuffer pooled = bufferPool.poll();
+        if (pooled == null) {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        pooledCount.decrementAndGet();
+        return pooled;
+    }
+
+    /**
+     * Returns a buffer to the pool, unless the pool is full. The buffer must not be used afterwards.
+     * @param buffer The buffer, or null.
+     */
+    public static void releaseBuffer(ByteBuffer buffer) {
+        if (buffer == null) return;
+        buffer.clear();
+        if (pooledCount.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+            bufferPool.offer(buffer);
+        } else {
+            pooledCount.decrementAndGet();
+        }
+    }
+}
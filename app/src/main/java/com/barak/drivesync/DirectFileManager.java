@@ -0,0 +1,394 @@
+package com.barak.drivesync;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Locale;
+
+/**
+ * DirectFileManager is a SAFManager for trees on primary external storage that the app can also
+ * reach as plain files. Listing, creating, deleting, renaming and opening files are then direct
+ * syscalls instead of DocumentsProvider calls across Binder.
+ * <p>
+ * Documents keep the IDs the external storage provider gives them ("primary:path/to/file"), so URIs,
+ * snapshots and sync index rows are the same whichever manager wrote them. Anything outside primary
+ * storage is handed to SAFManager. Use create() to pick the right manager for a tree.
+ */
+public class DirectFileManager extends SAFManager {
+    private static final String TAG = "DirectFileManager";
+    // Logs the size of every listed directory when the tag is loggable at DEBUG
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+    private static final String EXTERNAL_STORAGE_AUTHORITY = "com.android.externalstorage.documents";
+    private static final String PRIMARY_VOLUME_PREFIX = "primary:";
+
+    private final File storageRoot;
+
+    /**
+     * @param context     The application context.
+     * @param storageRoot The root of primary external storage.
+     */
+    private DirectFileManager(Context context, File storageRoot) {
+        super(context);
+        this.storageRoot = storageRoot;
+    }
+
+    /**
+     * Picks the storage backend for a tree: direct file access when the tree is on primary external
+     * storage and the app holds all-files access (or legacy storage permission), SAF otherwise.
+     * @param context The application context.
+     * @param treeUri The tree URI of the local folder.
+     * @return A DirectFileManager, or a plain SAFManager if the direct path is not available.
+     */
+    public static SAFManager create(Context context, Uri treeUri) {
+        if (isOnPrimaryStorage(treeUri) && hasFileAccess(context)) {
+            DirectFileManager manager = new DirectFileManager(context, Environment.getExternalStorageDirectory());
+            File treeRoot = manager.toFile(DocumentsContract.getTreeDocumentId(treeUri));
+            if (treeRoot != null && treeRoot.isDirectory() && treeRoot.canWrite()) {
+                Log.i(TAG, "Using direct file access for " + treeRoot);
+                return manager;
+            }
+        }
+        Log.i(TAG, "Direct file access not available. Using SAF.");
+        return new SAFManager(context);
+    }
+
+    /**
+     * @param treeUri The tree URI of a local folder, or null.
+     * @return true if the tree is on primary external storage, where direct file access can apply.
+     */
+    static boolean isOnPrimaryStorage(Uri treeUri) {
+        return treeUri != null && EXTERNAL_STORAGE_AUTHORITY.equals(treeUri.getAuthority())
+                && DocumentsContract.getTreeDocumentId(treeUri).startsWith(PRIMARY_VOLUME_PREFIX);
+    }
+
+    /**
+     * @param context The application context.
+     * @return true if the app may read and write arbitrary files on primary external storage.
+     */
+    static boolean hasFileAccess(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            return Environment.isExternalStorageManager();
+        }
+        if (Build.VERSION.SDK_INT == Build.VERSION_CODES.Q && !Environment.isExternalStorageLegacy()) {
+            return false;
+        }
+        return context.checkSelfPermission(Manifest.permission.WRITE_EXTERNAL_STORAGE)
+                == PackageManager.PERMISSION_GRANTED;
+    }
+
+    @Override
+    public DirectorySnapshot snapshotDirectory(Uri treeUri, String documentId) {
+        File dir = toFile(documentId);
+        if (dir == null) return super.snapshotDirectory(treeUri, documentId);
+        DirectorySnapshot snapshot = new DirectorySnapshot(treeUri.toString(), documentId);
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(dir.toPath())) {
+            for (Path child : children) {
+                BasicFileAttributes attrs = Files.readAttributes(child, BasicFileAttributes.class);
+                String name = child.getFileName().toString();
+                snapshot.putIfAbsent(name, new DirectorySnapshot.Entry(
+                        toDocumentId(child.toFile()),
+                        attrs.isDirectory() ? DocumentsContract.Document.MIME_TYPE_DIR : mimeTypeOf(name),
+                        attrs.lastModifiedTime().toMillis(),
+                        attrs.isDirectory() ? 0 : attrs.size()));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "snapshotDirectory: Error listing " + dir, e);
+        }
+        if (DEBUG) Log.d(TAG, "snapshotDirectory: " + snapshot.size() + " children.");
+        return snapshot;
+    }
+
+    @Override
+    public Uri createFile(DirectorySnapshot dir, String fileName, String mimeType) {
+        File parent = toFile(dir.getDocumentId());
+        if (parent == null) return super.createFile(dir, fileName, mimeType);
+        DirectorySnapshot.Entry existing = dir.get(fileName);
+        if (existing != null) return existing.isDirectory() ? null : documentUri(dir, existing);
+        File file = childOf(dir, parent, fileName);
+        if (file == null) return null;
+        try {
+            // An existing file that the snapshot missed is reused, like an entry found in the snapshot
+            if (!file.createNewFile() && !file.isFile()) return null;
+        } catch (IOException e) {
+            Log.e(TAG, "createFile: Failed to create " + file, e);
+            return null;
+        }
+        DirectorySnapshot.Entry entry = new DirectorySnapshot.Entry(
+                toDocumentId(file), mimeType, file.lastModified(), 0);
+        dir.put(fileName, entry);
+        return documentUri(dir, entry);
+    }
+
+    @Override
+    public DirectorySnapshot createDirectory(DirectorySnapshot parent, String name) {
+        File parentDir = toFile(parent.getDocumentId());
+        if (parentDir == null) return super.createDirectory(parent, name);
+        DirectorySnapshot.Entry existing = parent.get(name);
+        if (existing != null) {
+            if (!existing.isDirectory()) {
+                Log.w(TAG, "createDirectory: A file named " + name + " is in the way.");
+                return null;
+            }
+            return snapshotDirectory(treeUriOf(parent), existing.documentId);
+        }
+        File dir = childOf(parent, parentDir, name);
+        if (dir == null) return null;
+        if (!dir.mkdir() && !dir.isDirectory()) {
+            Log.e(TAG, "createDirectory: Failed to create " + dir);
+            return null;
+        }
+        String documentId = toDocumentId(dir);
+        parent.put(name, new DirectorySnapshot.Entry(documentId, DocumentsContract.Document.MIME_TYPE_DIR,
+                dir.lastModified(), 0));
+        return new DirectorySnapshot(parent.getTreeUri(), documentId);
+    }
+
+    @Override
+    public boolean deleteDirectory(DirectorySnapshot parent, String name) {
+        DirectorySnapshot.Entry entry = parent.get(name);
+        File dir = entry != null ? toFile(entry.documentId) : null;
+        if (entry == null || dir == null) return super.deleteDirectory(parent, name);
+        if (!entry.isDirectory()) return false;
+        try {
+            Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException {
+                    if (e != null) throw e;
+                    Files.delete(directory);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            parent.remove(name);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "deleteDirectory: Failed to delete " + dir, e);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean deleteFile(DirectorySnapshot dir, String fileName) {
+        DirectorySnapshot.Entry entry = dir.get(fileName);
+        File file = entry != null ? toFile(entry.documentId) : null;
+        if (entry == null || file == null) return super.deleteFile(dir, fileName);
+        if (entry.isDirectory()) return false;
+        if (file.delete() || !file.exists()) {
+            dir.remove(fileName);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Moves a fully written file over another name in the same directory with a single rename(2),
+     * which replaces the target atomically: readers see either the old or the new copy, never neither.
+     */
+    @Override
+    public Uri replaceFile(DirectorySnapshot dir, String sourceName, String targetName) {
+        DirectorySnapshot.Entry source = dir.get(sourceName);
+        File parent = toFile(dir.getDocumentId());
+        if (source == null || parent == null) return super.replaceFile(dir, sourceName, targetName);
+        if (source.isDirectory()) return null;
+        DirectorySnapshot.Entry target = dir.get(targetName);
+        if (target != null && target.isDirectory()) {
+            Log.e(TAG, "replaceFile: A directory named " + targetName + " is in the way.");
+            return null;
+        }
+        File sourceFile = childOf(dir, parent, sourceName);
+        File targetFile = childOf(dir, parent, targetName);
+        if (sourceFile == null || targetFile == null) return null;
+        try {
+            Files.move(sourceFile.toPath(), targetFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Log.e(TAG, "replaceFile: Error renaming " + sourceName + " to " + targetName, e);
+            return null;
+        }
+        DirectorySnapshot.Entry entry = new DirectorySnapshot.Entry(toDocumentId(targetFile),
+                mimeTypeOf(targetName), targetFile.lastModified(), targetFile.length());
+        dir.remove(sourceName);
+        dir.put(targetName, entry);
+        return documentUri(dir, entry);
+    }
+
+    /**
+     * Renames and moves with a single rename(2), replacing any file of the new name.
+     */
+    @Override
+    public Uri moveFile(DirectorySnapshot source, String name, DirectorySnapshot target, String newName) {
+        DirectorySnapshot.Entry entry = source.get(name);
+        File sourceDir = toFile(source.getDocumentId());
+        File targetDir = toFile(target.getDocumentId());
+        if (entry == null || sourceDir == null || targetDir == null) {
+            return super.moveFile(source, name, target, newName);
+        }
+        if (entry.isDirectory()) return null;
+        DirectorySnapshot.Entry existing = target.get(newName);
+        if (existing != null && existing.isDirectory()) {
+            Log.e(TAG, "moveFile: A directory named " + newName + " is in the way.");
+            return null;
+        }
+        File sourceFile = childOf(source, sourceDir, name);
+        File targetFile = childOf(target, targetDir, newName);
+        if (sourceFile == null || targetFile == null) return null;
+        try {
+            Files.move(sourceFile.toPath(), targetFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Log.e(TAG, "moveFile: Error moving " + name + " to " + targetFile, e);
+            return null;
+        }
+        DirectorySnapshot.Entry moved = new DirectorySnapshot.Entry(toDocumentId(targetFile),
+                mimeTypeOf(newName), targetFile.lastModified(), targetFile.length());
+        source.remove(name);
+        target.put(newName, moved);
+        return documentUri(target, moved);
+    }
+
+    @Override
+    public long getLastModified(Uri fileUri) {
+        File file = toFile(fileUri);
+        return file != null ? file.lastModified() : super.getLastModified(fileUri);
+    }
+
+    @Override
+    public OutputStream openFileOutputStream(Uri fileUri) {
+        File file = toFile(fileUri);
+        if (file == null) return super.openFileOutputStream(fileUri);
+        try {
+            return new FileOutputStream(file);
+        } catch (IOException e) {
+            Log.e(TAG, "openFileOutputStream: Cannot open " + file, e);
+            return null;
+        }
+    }
+
+    @Override
+    public InputStream openFileInputStream(Uri fileUri) {
+        File file = toFile(fileUri);
+        if (file == null) return super.openFileInputStream(fileUri);
+        try {
+            return new FileInputStream(file);
+        } catch (IOException e) {
+            Log.e(TAG, "openFileInputStream: Cannot open " + file, e);
+            return null;
+        }
+    }
+
+    @Override
+    public FileOutputStream openFileOutputStream(Uri fileUri, long offset) {
+        File file = toFile(fileUri);
+        if (file == null) return super.openFileOutputStream(fileUri, offset);
+        FileOutputStream out = null;
+        try {
+            // Opened like the SAF path, but with open(2) on the file itself instead of through the provider
+            ParcelFileDescriptor pfd = ParcelFileDescriptor.open(file,
+                    ParcelFileDescriptor.MODE_READ_WRITE | ParcelFileDescriptor.MODE_CREATE);
+            out = new ParcelFileDescriptor.AutoCloseOutputStream(pfd);
+            out.getChannel().truncate(offset).position(offset);
+            return out;
+        } catch (IOException e) {
+            Log.w(TAG, "openFileOutputStream: Cannot open for resume: " + file, e);
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignore) {
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Resolves a child of a directory from a name that may have come from Drive.
+     * @param dir    The snapshot of the directory.
+     * @param parent The directory as a file.
+     * @param name   The name of the child.
+     * @return The child, or null if the name is not a single path component or leads out of the tree.
+     */
+    private File childOf(DirectorySnapshot dir, File parent, String name) {
+        File treeRoot = toFile(DocumentsContract.getTreeDocumentId(treeUriOf(dir)));
+        File child = treeRoot != null ? LocalNames.resolveChild(treeRoot, parent, name) : null;
+        if (child == null) Log.e(TAG, "Refusing a name that leads out of the synced folder: " + name);
+        return child;
+    }
+
+    /**
+     * Maps a document URI to its file.
+     * @param documentUri A document URI below a tree.
+     * @return The file, or null if the document is not on primary external storage.
+     */
+    private File toFile(Uri documentUri) {
+        if (!EXTERNAL_STORAGE_AUTHORITY.equals(documentUri.getAuthority())) return null;
+        try {
+            return toFile(DocumentsContract.getDocumentId(documentUri));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Maps a document ID of the external storage provider to its file.
+     * @param documentId The document ID, e.g. "primary:Download/a.txt".
+     * @return The file, or null if the document is not on primary external storage.
+     */
+    private File toFile(String documentId) {
+        if (documentId == null || !documentId.startsWith(PRIMARY_VOLUME_PREFIX)) return null;
+        String path = documentId.substring(PRIMARY_VOLUME_PREFIX.length());
+        return path.isEmpty() ? storageRoot : new File(storageRoot, path);
+    }
+
+    /**
+     * Builds the document ID the external storage provider uses for a file.
+     * @param file A file below the storage root.
+     * @return The document ID.
+     */
+    private String toDocumentId(File file) {
+        String root = storageRoot.getAbsolutePath();
+        String path = file.getAbsolutePath();
+        String relative = path.length() > root.length() ? path.substring(root.length() + 1) : "";
+        return PRIMARY_VOLUME_PREFIX + relative;
+    }
+
+    /**
+     * Guesses a MIME type from a file name, the way the external storage provider does.
+     * @param name The file name.
+     * @return The MIME type, or application/octet-stream if the extension is unknown.
+     */
+    private static String mimeTypeOf(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0) {
+            String mimeType = MimeTypeMap.getSingleton()
+                    .getMimeTypeFromExtension(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+            if (mimeType != null) return mimeType;
+        }
+        return "application/octet-stream";
+    }
+}
@@ -0,0 +1,413 @@
+package com.barak.drivesync;
+
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.util.Log;
+import com.google.api.services.drive.model.File;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DownloadEngine runs Drive-to-SAF downloads on a bounded pool of worker threads.
+ * Files are submitted one at a time by the sync loop and per-file results are
+ * aggregated into thread-safe counters that can be read once all work has finished.
+ * Files with the same content (md5Checksum and size) are downloaded once per sync; the other
+ * copies are filled from the first finished download by a local copy.
+ */
+public class DownloadEngine implements DownloadQueue {
+    private static final String TAG = "DownloadEngine";
+    // Per-file messages are only built when the tag is loggable at DEBUG
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    /** Number of parallel downloads used when no explicit value is configured. */
+    public static final int DEFAULT_CONCURRENCY = 4;
+    /** Upper bound on parallel downloads, to stay well below Drive per-user rate limits. */
+    public static final int MAX_CONCURRENCY = 16;
+
+    private final DriveManager driveManager;
+    private final SAFManager safManager;
+    private final SyncIndex syncIndex;
+    private final DownloadJournal downloadJournal;
+    private final String syncScope;
+    private final ProgressPublisher progress;
+    private final ExecutorService workers;
+
+    // Aggregated per-file results, updated concurrently by the workers
+    private final AtomicInteger downloadedCount = new AtomicInteger();
+    private final AtomicInteger updatedCount = new AtomicInteger();
+    private final AtomicInteger failedCount = new AtomicInteger();
+    private final AtomicInteger finishedCount = new AtomicInteger();
+    private final AtomicInteger submittedCount = new AtomicInteger();
+    private final AtomicInteger copiedCount = new AtomicInteger();
+    private final AtomicInteger verifiedCount = new AtomicInteger();
+    // Files of this sync grouped by content, keyed by contentKey()
+    private final Map<String, ContentGroup> contentGroups = new ConcurrentHashMap<>();
+
+    /**
+     * One file to write locally, as submitted.
+     */
+    private static class Target {
+        final File driveFile;
+        final String parentId;
+        final DirectorySnapshot localDir;
+        final boolean isNew;
+        // The local copy is not in the index and may already hold the content
+        final boolean unverified;
+
+        Target(File driveFile, String parentId, DirectorySnapshot localDir, boolean isNew, boolean unverified) {
+            this.driveFile = driveFile;
+            this.parentId = parentId;
+            this.localDir = localDir;
+            this.isNew = isNew;
+            this.unverified = unverified;
+        }
+    }
+
+    /**
+     * The files of one sync sharing the same content. The first one submitted is downloaded;
+     * the others wait for it and are then copied from its local file.
+     */
+    private static class ContentGroup {
+        private Target leader;
+        private final List<Target> followers = new ArrayList<>();
+        private boolean done;
+        private Uri result;
+
+        /**
+         * Adds a file to the group.
+         * @param target The file.
+         * @return true if the file is to be processed now: it is the leader, or the leader has finished.
+         *         false if it waits for the leader, which processes it when done.
+         */
+        synchronized boolean join(Target target) {
+            if (leader == null) {
+                leader = target;
+                return true;
+            }
+            if (done) return true;
+            followers.add(target);
+            return false;
+        }
+
+        /**
+         * @param target A file of the group about to be processed.
+         * @return The local file to copy from, or null if the file must be downloaded.
+         */
+        synchronized Uri sourceFor(Target target) {
+            return target != leader && done ? result : null;
+        }
+
+        /**
+         * Records the leader's outcome.
+         * @param localFileUri The leader's local file, or null if its download failed.
+         * @return The files that were waiting for the leader.
+         */
+        synchronized List<Target> complete(Uri localFileUri) {
+            done = true;
+            result = localFileUri;
+            List<Target> waiting = new ArrayList<>(followers);
+            followers.clear();
+            return waiting;
+        }
+
+        synchronized boolean isLeader(Target target) {
+            return target == leader;
+        }
+    }
+
+    /**
+     * Creates a download engine. Each submitted file carries its own target directory.
+     * @param driveManager The DriveManager used to fetch file content.
+     * @param safManager   The SAFManager used to write local files.
+     * @param syncIndex    The index that records every successfully downloaded file.
+     * @param downloadJournal The journal that lets interrupted downloads resume.
+     * @param syncScope    Identifies the Drive/local folder pair in the index.
+     * @param concurrency  The number of parallel downloads; clamped to [1, MAX_CONCURRENCY].
+     * @param progress     Publisher receiving queued files and downloaded bytes, or null.
+     */
+    public DownloadEngine(DriveManager driveManager, SAFManager safManager, SyncIndex syncIndex,
+                          DownloadJournal downloadJournal, String syncScope, int concurrency,
+                          ProgressPublisher progress) {
+        this.driveManager = driveManager;
+        this.safManager = safManager;
+        this.syncIndex = syncIndex;
+        this.downloadJournal = downloadJournal;
+        this.syncScope = syncScope;
+        this.progress = progress;
+        int workerCount = Math.max(1, Math.min(concurrency, MAX_CONCURRENCY));
+        this.workers = Executors.newFixedThreadPool(workerCount, new WorkerThreadFactory());
+        Log.d(TAG, "DownloadEngine started with " + workerCount + " workers.");
+    }
+
+    /**
+     * Queues a file for download. Returns immediately; the download runs on a worker thread.
+     * @param driveFile The Drive file to download.
+     * @param parentId  The ID of the Drive folder the file was found in.
+     * @param localDir  The snapshot of the local directory to write into.
+     * @param isNew     true if the file does not exist locally yet, false if it is an update.
+     */
+    @Override
+    public void submit(File driveFile, String parentId, DirectorySnapshot localDir, boolean isNew) {
+        submit(new Target(driveFile, parentId, localDir, isNew, false));
+    }
+
+    /**
+     * Queues a file whose local copy is not in the index. The worker hashes the local copy first
+     * and only downloads the file if the content differs from Drive's.
+     * @param driveFile The Drive file, with an md5Checksum.
+     * @param parentId  The ID of the Drive folder the file was found in.
+     * @param localDir  The snapshot of the local directory holding the local copy.
+     */
+    @Override
+    public void submitUnverified(File driveFile, String parentId, DirectorySnapshot localDir) {
+        submit(new Target(driveFile, parentId, localDir, false, true));
+    }
+
+    /**
+     * Queues one file, or parks it behind a file of the same content that is already queued.
+     * @param target The file.
+     */
+    private void submit(Target target) {
+        File driveFile = target.driveFile;
+        submittedCount.incrementAndGet();
+        long size = driveFile.getSize() != null ? driveFile.getSize() : -1;
+        if (progress != null) {
+            progress.onFileQueued(size);
+        }
+        String key = contentKey(driveFile);
+        ContentGroup group = key != null ? contentGroups.computeIfAbsent(key, k -> new ContentGroup()) : null;
+        if (group != null && !group.join(target)) {
+            if (DEBUG) Log.d(TAG, "Same content already downloading, will copy: " + driveFile.getName());
+            return;
+        }
+        workers.execute(new DownloadTask(target, group));
+    }
+
+    /**
+     * Processes one submitted file on a worker and, if it leads a ContentGroup, the files that
+     * were waiting for it.
+     */
+    private class DownloadTask implements Runnable {
+        final Target target;
+        final ContentGroup group;
+
+        DownloadTask(Target target, ContentGroup group) {
+            this.target = target;
+            this.group = group;
+        }
+
+        @Override
+        public void run() {
+            Uri localFileUri = process(target, group != null ? group.sourceFor(target) : null);
+            if (group != null && group.isLeader(target)) {
+                // Waiting copies are filled on this worker; they cost local I/O only
+                List<Target> waiting = group.complete(localFileUri);
+                for (int i = 0; i < waiting.size(); i++) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        countCancelled(waiting.subList(i, waiting.size()));
+                        return;
+                    }
+                    process(waiting.get(i), localFileUri);
+                }
+            }
+        }
+
+        /**
+         * Counts the file as failed without processing it, along with the files waiting for it.
+         * Called for tasks cancelled before they started.
+         */
+        void abandon() {
+            countCancelled(Collections.singletonList(target));
+            if (group != null && group.isLeader(target)) {
+                countCancelled(group.complete(null));
+            }
+        }
+    }
+
+    /**
+     * Counts files that were cancelled before being written as failed, so every submitted file
+     * is accounted for.
+     * @param targets The files.
+     */
+    private void countCancelled(List<Target> targets) {
+        for (Target target : targets) {
+            failedCount.incrementAndGet();
+            finishedCount.incrementAndGet();
+            if (progress != null) {
+                File driveFile = target.driveFile;
+                progress.onFileFinished(driveFile.getSize() != null ? driveFile.getSize() : -1);
+            }
+        }
+        if (!targets.isEmpty()) {
+            Log.w(TAG, "Cancelled " + targets.size() + " files before they were written.");
+        }
+    }
+
+    /**
+     * Writes one file locally, by copying an identical local file if there is one, otherwise by
+     * downloading it, and records the outcome. An unverified local copy whose content already
+     * matches is kept and only recorded.
+     * @param target The file.
+     * @param source A finished local file with the same content, or null.
+     * @return The URI of the local file, or null if it could not be written.
+     */
+    private Uri process(Target target, Uri source) {
+        File driveFile = target.driveFile;
+        long size = driveFile.getSize() != null ? driveFile.getSize() : -1;
+        Uri localFileUri = null;
+        // Bytes of this file reported so far; segmented downloads report from several threads
+        AtomicLong reported = new AtomicLong();
+        if (target.unverified) {
+            Uri existing = driveManager.findIdenticalLocalFile(driveFile, target.localDir, safManager);
+            if (existing != null) {
+                recordInIndex(driveFile, target.parentId, existing);
+                verifiedCount.incrementAndGet();
+                finishedCount.incrementAndGet();
+                if (progress != null) progress.onFileFinished(size);
+                return existing;
+            }
+        }
+        if (source != null) {
+            localFileUri = driveManager.copyLocalFile(driveFile, source, target.localDir, safManager);
+            if (localFileUri != null) copiedCount.incrementAndGet();
+        }
+        if (localFileUri == null) {
+            localFileUri = driveManager.downloadFileToSAF(driveFile, target.localDir, safManager, downloadJournal,
+                    progress == null ? null : bytes -> {
+                        reported.addAndGet(bytes);
+                        progress.onBytesTransferred(bytes);
+                    });
+        }
+        boolean ok = localFileUri != null;
+        if (ok) {
+            recordInIndex(driveFile, target.parentId, localFileUri);
+            if (target.isNew) {
+                downloadedCount.incrementAndGet();
+            } else {
+                updatedCount.incrementAndGet();
+            }
+        } else {
+            failedCount.incrementAndGet();
+            Log.e(TAG, "Failed to download: " + driveFile.getName());
+        }
+        finishedCount.incrementAndGet();
+        if (progress != null) {
+            // Copied bytes are settled here, so they count as done without inflating the throughput
+            progress.onFileFinished(size - reported.get());
+        }
+        return localFileUri;
+    }
+
+    /**
+     * @param driveFile A Drive file.
+     * @return The key grouping files of identical content, or null if Drive has no checksum for it.
+     */
+    private static String contentKey(File driveFile) {
+        if (driveFile.getMd5Checksum() == null || driveFile.getSize() == null || driveFile.getSize() <= 0) {
+            return null;
+        }
+        return driveFile.getMd5Checksum() + ":" + driveFile.getSize();
+    }
+
+    /**
+     * Records the downloaded version so later syncs can skip it without scanning either side.
+     * A failure here only costs a re-download on the next sync, so it does not fail the file.
+     * @param driveFile    The Drive file that was downloaded.
+     * @param parentId     The ID of the Drive folder the file was found in.
+     * @param localFileUri The URI of the local copy.
+     */
+    private void recordInIndex(File driveFile, String parentId, Uri localFileUri) {
+        try {
+            syncIndex.put(syncScope, IndexEntry.fromDriveFile(driveFile, parentId,
+                    DocumentsContract.getDocumentId(localFileUri), safManager.getLastModified(localFileUri)));
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to record " + driveFile.getName() + " in sync index.", e);
+        }
+    }
+
+    /**
+     * Stops accepting new files and blocks until every queued download has finished.
+     * @throws InterruptedException if the calling thread is interrupted while waiting.
+     */
+    public void awaitCompletion() throws InterruptedException {
+        workers.shutdown();
+        while (!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+            Log.d(TAG, "Waiting for downloads to finish. Completed so far: " + finishedCount.get());
+        }
+        if (copiedCount.get() > 0) {
+            Log.i(TAG, "Copied " + copiedCount.get() + " files locally instead of downloading duplicates.");
+        }
+        if (verifiedCount.get() > 0) {
+            Log.i(TAG, "Kept " + verifiedCount.get() + " unindexed local files whose content matches Drive.");
+        }
+    }
+
+    /**
+     * Cancels all queued downloads and interrupts the ones in progress.
+     */
+    public void cancel() {
+        Log.i(TAG, "Cancelling downloads.");
+        for (Runnable task : workers.shutdownNow()) {
+            ((DownloadTask) task).abandon();
+        }
+    }
+
+    /** @return Number of new files downloaded successfully. */
+    public int getDownloadedCount() {
+        return downloadedCount.get();
+    }
+
+    /** @return Number of existing files updated successfully. */
+    public int getUpdatedCount() {
+        return updatedCount.get();
+    }
+
+    /** @return Number of files that failed to download. */
+    public int getFailedCount() {
+        return failedCount.get();
+    }
+
+    /** @return Number of files submitted so far. */
+    public int getSubmittedCount() {
+        return submittedCount.get();
+    }
+
+    /** @return Number of files filled by copying an identical local file instead of downloading. */
+    public int getCopiedCount() {
+        return copiedCount.get();
+    }
+
+    /** @return Number of unindexed local files kept because their content matches Drive's. */
+    public int getVerifiedCount() {
+        return verifiedCount.get();
+    }
+
+    /** @return Number of files processed so far, successful or not. */
+    public int getFinishedCount() {
+        return finishedCount.get();
+    }
+
+    /**
+     * Names worker threads so they are easy to identify in logs and thread dumps.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "DriveSync-download-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
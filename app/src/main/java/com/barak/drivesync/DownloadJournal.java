@@ -0,0 +1,198 @@
+package com.barak.drivesync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+import com.google.api.services.drive.model.File;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * DownloadJournal records how far each interrupted download got, keyed by Drive file ID.
+ * A row is written when a chunked download starts and advanced after every chunk that has been
+ * flushed to disk, so a later attempt (even after the app was killed) continues from the last
+ * committed byte instead of starting over. Rows are removed once a download completes, or marked
+ * finished if the completed download could not be moved into place, so it is not fetched again.
+ */
+public class DownloadJournal extends SQLiteOpenHelper {
+    private static final String TAG = "DownloadJournal";
+    private static final String DATABASE_NAME = "download_journal.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE_PARTIAL = "partial_downloads";
+    private static final String COL_DRIVE_ID = "drive_id";
+    private static final String COL_LOCAL_DOC_ID = "local_doc_id";
+    private static final String COL_MD5 = "md5";
+    private static final String COL_SIZE = "size";
+    private static final String COL_DRIVE_MODIFIED = "drive_modified";
+    private static final String COL_COMMITTED_BYTES = "committed_bytes";
+
+    private static final String[] ALL_COLUMNS = {
+            COL_DRIVE_ID, COL_LOCAL_DOC_ID, COL_MD5, COL_SIZE, COL_DRIVE_MODIFIED, COL_COMMITTED_BYTES
+    };
+
+    /**
+     * One interrupted download: the Drive version being fetched and how much of it is on disk.
+     */
+    public static class Entry {
+        public final String driveId;
+        public final String localDocumentId;
+        public final String md5;
+        public final long size;
+        public final long driveModified;
+        public final long committedBytes;
+
+        /**
+         * @param driveId         The Drive file ID.
+         * @param localDocumentId The SAF document ID being written to.
+         * @param md5             The Drive md5Checksum, or null if Drive has none.
+         * @param size            The Drive size in bytes.
+         * @param driveModified   The Drive modifiedTime (epoch millis).
+         * @param committedBytes  Number of leading bytes known to be on disk.
+         */
+        public Entry(String driveId, String localDocumentId, String md5, long size, long driveModified,
+                     long committedBytes) {
+            this.driveId = driveId;
+            this.localDocumentId = localDocumentId;
+            this.md5 = md5;
+            this.size = size;
+            this.driveModified = driveModified;
+            this.committedBytes = committedBytes;
+        }
+
+        /**
+         * Checks whether the committed bytes can be continued for a download.
+         * @param driveFile       The Drive file about to be downloaded.
+         * @param localDocumentId The SAF document ID about to be written to.
+         * @return true if both the Drive version and the local document are the ones journaled.
+         */
+        public boolean canResume(File driveFile, String localDocumentId) {
+            return isFor(driveFile, localDocumentId) && committedBytes > 0 && committedBytes < size;
+        }
+
+        /**
+         * Checks whether the journaled download finished but could not be moved into place.
+         * @param driveFile       The Drive file about to be downloaded.
+         * @param localDocumentId The SAF document ID about to be written to.
+         * @return true if every byte of the same Drive version is in the same local document.
+         */
+        public boolean isFinished(File driveFile, String localDocumentId) {
+            return isFor(driveFile, localDocumentId) && committedBytes == size;
+        }
+
+        /**
+         * @param driveFile       A Drive file.
+         * @param localDocumentId A SAF document ID.
+         * @return true if both the Drive version and the local document are the ones journaled.
+         */
+        private boolean isFor(File driveFile, String localDocumentId) {
+            long driveSize = driveFile.getSize() != null ? driveFile.getSize() : -1;
+            long modified = driveFile.getModifiedTime() != null ? driveFile.getModifiedTime().getValue() : 0;
+            return this.localDocumentId.equals(localDocumentId)
+                    && size == driveSize
+                    && driveModified == modified
+                    && (md5 == null ? driveFile.getMd5Checksum() == null : md5.equals(driveFile.getMd5Checksum()));
+        }
+    }
+
+    /**
+     * Opens (or creates) the download journal database.
+     * @param context The application context.
+     */
+    public DownloadJournal(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_PARTIAL + " (" +
+                COL_DRIVE_ID + " TEXT PRIMARY KEY, " +
+                COL_LOCAL_DOC_ID + " TEXT NOT NULL, " +
+                COL_MD5 + " TEXT, " +
+                COL_SIZE + " INTEGER NOT NULL, " +
+                COL_DRIVE_MODIFIED + " INTEGER NOT NULL, " +
+                COL_COMMITTED_BYTES + " INTEGER NOT NULL)");
+        Log.i(TAG, "Download journal database created.");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Losing the journal only means interrupted downloads start over
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_PARTIAL);
+        onCreate(db);
+    }
+
+    /**
+     * Looks up the interrupted download of a Drive file.
+     * @param driveId The Drive file ID.
+     * @return The entry, or null if no download of the file is in progress.
+     */
+    public Entry get(String driveId) {
+        try (Cursor cursor = getReadableDatabase().query(TABLE_PARTIAL, ALL_COLUMNS,
+                COL_DRIVE_ID + " = ?", new String[]{driveId}, null, null, null)) {
+            if (!cursor.moveToFirst()) return null;
+            return new Entry(
+                    cursor.getString(0),
+                    cursor.getString(1),
+                    cursor.isNull(2) ? null : cursor.getString(2),
+                    cursor.getLong(3),
+                    cursor.getLong(4),
+                    cursor.getLong(5));
+        }
+    }
+
+    /**
+     * Returns the IDs of all files with an interrupted download, in a single query.
+     * @return Set of Drive file IDs.
+     */
+    public Set<String> loadDriveIds() {
+        Set<String> driveIds = new HashSet<>();
+        try (Cursor cursor = getReadableDatabase().query(TABLE_PARTIAL, new String[]{COL_DRIVE_ID},
+                null, null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                driveIds.add(cursor.getString(0));
+            }
+        }
+        return driveIds;
+    }
+
+    /**
+     * Starts journaling a download from byte zero, replacing any earlier row for the file.
+     * Safe to call from several threads.
+     * @param driveFile       The Drive file being downloaded.
+     * @param localDocumentId The SAF document ID being written to.
+     */
+    public void begin(File driveFile, String localDocumentId) {
+        ContentValues values = new ContentValues();
+        values.put(COL_DRIVE_ID, driveFile.getId());
+        values.put(COL_LOCAL_DOC_ID, localDocumentId);
+        values.put(COL_MD5, driveFile.getMd5Checksum());
+        values.put(COL_SIZE, driveFile.getSize() != null ? driveFile.getSize() : -1);
+        values.put(COL_DRIVE_MODIFIED, driveFile.getModifiedTime() != null ? driveFile.getModifiedTime().getValue() : 0);
+        values.put(COL_COMMITTED_BYTES, 0L);
+        getWritableDatabase().insertWithOnConflict(TABLE_PARTIAL, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Advances the committed offset of a download. Only call once the bytes have been flushed to disk.
+     * @param driveId        The Drive file ID.
+     * @param committedBytes Number of leading bytes now on disk.
+     */
+    public void commit(String driveId, long committedBytes) {
+        ContentValues values = new ContentValues();
+        values.put(COL_COMMITTED_BYTES, committedBytes);
+        getWritableDatabase().update(TABLE_PARTIAL, values, COL_DRIVE_ID + " = ?", new String[]{driveId});
+    }
+
+    /**
+     * Forgets the download of a file, once it completed or its partial copy was discarded.
+     * @param driveId The Drive file ID.
+     */
+    public void remove(String driveId) {
+        getWritableDatabase().delete(TABLE_PARTIAL, COL_DRIVE_ID + " = ?", new String[]{driveId});
+    }
+}
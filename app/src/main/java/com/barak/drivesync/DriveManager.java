@@ -4,33 +4,120 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
+import android.provider.DocumentsContract;
 import androidx.activity.result.ActivityResult;
 import com.google.android.gms.auth.api.signin.*;
 import com.google.android.gms.common.api.ApiException;
 import com.google.android.gms.common.api.Scope;
 import com.google.android.gms.tasks.Task;
 import com.google.api.client.googleapis.extensions.android.gms.auth.GoogleAccountCredential;
-import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.gson.GsonFactory;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.DriveScopes;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.googleapis.media.MediaHttpDownloader;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
 import com.google.api.services.drive.model.File;
 import com.google.api.services.drive.model.FileList;
+import com.google.api.client.http.HttpHeaders;
 import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpTransport;
 
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
 
 /**
  * DriveManager handles Google Sign-In and Google Drive API operations.
  * It manages authentication, folder/file listing, and file download to local storage.
+ * Requests, transfers and local writes are recorded in the SyncMetrics of the sync in progress
+ * and appear as android.os.Trace sections.
  */
-public class DriveManager {
+public class DriveManager implements RemoteStorage {
     private static final String TAG = "DriveManager";
+    // Per-file logging, read once at startup; see the README for enabling it
+    private static final boolean DEBUG = android.util.Log.isLoggable(TAG, android.util.Log.DEBUG);
+    // Maximum page size accepted by the Drive files.list endpoint
+    private static final int LIST_PAGE_SIZE = 1000;
+    // Bytes fetched per Range request in chunked downloads; also the smallest file worth journaling
+    private static final int DOWNLOAD_CHUNK_SIZE = 8 * 1024 * 1024;
+    /** Number of parallel range requests for a large file when no explicit value is configured. */
+    public static final int DEFAULT_DOWNLOAD_SEGMENTS = 4;
+    /** Smallest range worth its own request when no explicit value is configured. */
+    public static final long DEFAULT_MIN_SEGMENT_SIZE = 32L * 1024 * 1024;
+    // Attempts per segment; a retry continues from the segment's last written byte
+    private static final int SEGMENT_ATTEMPTS = 3;
     private final Context context;
     private final GoogleSignInClient googleSignInClient;
     private GoogleSignInAccount account;
     private Drive driveService;
+    // Shared by every request, so listings and downloads back off together when Drive throttles
+    private final RequestScheduler requestScheduler = new RequestScheduler();
+    // Initializer of every request, kept so batch requests are authorized and paced the same way
+    private HttpRequestInitializer requestInitializer;
+    // Transport carrying every Drive request; pooled and HTTP/2-capable unless replaced
+    private HttpTransport httpTransport = new OkHttpTransport(OkHttpTransport.DEFAULT_POOL_SIZE);
+    // Serves the range requests of segmented downloads, over connections of their own where possible
+    private Drive rangeService;
+    // Base URL of the Drive API, or null for Google's servers
+    private String rootUrl;
+    // Metrics of the sync in progress; a sync sets its own before it starts
+    private volatile SyncMetrics metrics = new SyncMetrics();
+    private int downloadSegments = DEFAULT_DOWNLOAD_SEGMENTS;
+    private long minSegmentSize = DEFAULT_MIN_SEGMENT_SIZE;
+    // Runs the segments of segmented downloads: enough threads for every download to run all its
+    // segments at once, started on demand and stopped when idle; resized by setSegmentedDownloads
+    private final ThreadPoolExecutor segmentExecutor = createSegmentExecutor(segmentThreads(downloadSegments));
+
+    // Fields requested for each changed file; must cover everything the sync compares
+    private static final String CHANGE_FIELDS =
+            "nextPageToken, newStartPageToken, changes(fileId, removed, " +
+                    "file(id, name, parents, trashed, mimeType, modifiedTime, md5Checksum, size))";
+
+    /**
+     * Receives Drive listing results one page at a time, as soon as each page arrives.
+     * @param <T> The type of listed item (File or Change).
+     */
+    public interface PageCallback<T> {
+        /**
+         * Called once per listing page, in order.
+         * @param page The items on this page; never null.
+         * @throws Exception to abort the listing.
+         */
+        void onPage(List<T> page) throws Exception;
+    }
+
+    /**
+     * Thrown when a saved changes page token is no longer accepted by Drive.
+     * The caller should discard the token and fall back to a full listing.
+     */
+    public static class InvalidPageTokenException extends Exception {
+        public InvalidPageTokenException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
 
     /**
      * Initializes DriveManager with Google Sign-In options and client.
@@ -113,7 +200,7 @@ public class DriveManager {
 
     /**
      * Sets up the Google Drive service using the signed-in account.
-     * Uses OAuth2 credentials and configures timeouts.
+     * Uses OAuth2 credentials and configures timeouts; every request is paced and retried by the RequestScheduler.
      */
     private void setupDriveService() {
         if (account == null || account.getAccount() == null) {
@@ -124,100 +211,1086 @@ public class DriveManager {
         GoogleAccountCredential credential = GoogleAccountCredential.usingOAuth2(
                 context, Collections.singleton(DriveScopes.DRIVE_READONLY));
         credential.setSelectedAccount(account.getAccount());
-        // Set up request initializer with timeouts
+        // Set up request initializer with timeouts, pacing and retries
         HttpRequestInitializer timeoutInitializer = request -> {
             credential.initialize(request);
             request.setConnectTimeout(3 * 60 * 1000); // 3 minutes
             request.setReadTimeout(3 * 60 * 1000);    // 3 minutes
+            requestScheduler.initialize(request);
         };
+        requestInitializer = timeoutInitializer;
         // Build the Drive API service
-        driveService = new Drive.Builder(
-                new NetHttpTransport(),
+        Drive.Builder builder = new Drive.Builder(
+                httpTransport,
                 GsonFactory.getDefaultInstance(),
                 timeoutInitializer)
-                .setApplicationName(context.getString(R.string.app_name))
-                .build();
-        android.util.Log.i(TAG, "Drive service initialized.");
+                .setApplicationName(context.getString(R.string.app_name));
+        if (rootUrl != null) builder.setRootUrl(rootUrl);
+        driveService = builder.build();
+        HttpTransport rangeTransport = httpTransport instanceof OkHttpTransport
+                ? ((OkHttpTransport) httpTransport).http1Only() : httpTransport;
+        Drive.Builder rangeBuilder = new Drive.Builder(
+                rangeTransport,
+                GsonFactory.getDefaultInstance(),
+                timeoutInitializer)
+                .setApplicationName(context.getString(R.string.app_name));
+        if (rootUrl != null) rangeBuilder.setRootUrl(rootUrl);
+        rangeService = rangeBuilder.build();
+        android.util.Log.i(TAG, "Drive service initialized" + (rootUrl != null ? " at " + rootUrl : "") + ".");
+    }
+
+    /**
+     * Replaces the HTTP transport used for Drive requests. Takes effect the next time the Drive
+     * service is set up, i.e. call before sign-in completes.
+     * @param transport The transport, e.g. an OkHttpTransport with a different pool size.
+     */
+    public void setHttpTransport(HttpTransport transport) {
+        this.httpTransport = transport;
+    }
+
+    /**
+     * Points Drive requests at another server implementing the Drive v3 API, such as the fake
+     * server of the harness module. Takes effect the next time the Drive service is set up,
+     * i.e. call before sign-in completes.
+     * @param rootUrl The base URL ending in '/', e.g. "http://10.0.2.2:8080/"; null for Google's servers.
+     */
+    public void setRootUrl(String rootUrl) {
+        this.rootUrl = rootUrl;
+    }
+
+    /**
+     * Sets the metrics that Drive requests, downloaded bytes, and download and write times are
+     * recorded in from now on. Called by each sync as it starts.
+     * @param metrics The metrics of the sync.
+     */
+    public void setMetrics(SyncMetrics metrics) {
+        this.metrics = metrics;
+        requestScheduler.setMetrics(metrics);
+    }
+
+    /**
+     * Configures segmented downloads: files large enough for at least two segments are fetched as
+     * parallel range requests written at their offsets, instead of as one stream.
+     * @param segments       Maximum number of parallel segments per file; 1 disables segmenting.
+     * @param minSegmentSize Smallest range worth its own request, in bytes.
+     */
+    public void setSegmentedDownloads(int segments, long minSegmentSize) {
+        this.downloadSegments = Math.max(1, segments);
+        this.minSegmentSize = Math.max(DOWNLOAD_CHUNK_SIZE, minSegmentSize);
+        int threads = segmentThreads(downloadSegments);
+        if (threads > segmentExecutor.getMaximumPoolSize()) {
+            segmentExecutor.setMaximumPoolSize(threads);
+            segmentExecutor.setCorePoolSize(threads);
+        } else {
+            segmentExecutor.setCorePoolSize(threads);
+            segmentExecutor.setMaximumPoolSize(threads);
+        }
     }
 
     /**
-     * Lists all non-trashed folders in the user's Google Drive.
+     * Stops the threads of segmented downloads. Call once the last sync using this DriveManager
+     * has finished; segmented downloads fail afterwards.
+     */
+    public void shutdown() {
+        segmentExecutor.shutdownNow();
+    }
+
+    /**
+     * @param segments Maximum number of parallel segments per file.
+     * @return The number of segment threads needed for every download to run all its segments.
+     */
+    private static int segmentThreads(int segments) {
+        return segments * DownloadEngine.MAX_CONCURRENCY;
+    }
+
+    /**
+     * Creates the pool of segment threads. Core threads time out, so an idle pool holds no threads.
+     * @param threads The number of threads.
+     * @return The executor.
+     */
+    private static ThreadPoolExecutor createSegmentExecutor(int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "DriveSync-segment");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Logs connection reuse statistics of the HTTP transport, if it keeps any.
+     */
+    public void logTransportStats() {
+        if (httpTransport instanceof OkHttpTransport) {
+            ((OkHttpTransport) httpTransport).logStats();
+        }
+    }
+
+    /**
+     * Lists all non-trashed folders in the user's Google Drive, following every result page.
      * @return List of Drive folder File objects.
      * @throws Exception if the API call fails.
      */
     public List<File> listFolders() throws Exception {
         android.util.Log.d(TAG, "Listing folders in Google Drive.");
+        List<File> folders = new ArrayList<>();
         // Query for folders that are not trashed
-        FileList result = driveService.files().list()
-                .setQ("mimeType = 'application/vnd.google-apps.folder' and trashed = false")
-                .setFields("files(id, name)")
-                .setSpaces("drive")
-                .setPageSize(100)
-                .execute();
-        // Return the list of folders, or an empty list if none found
-        List<File> folders = result.getFiles() != null ? result.getFiles() : Collections.emptyList();
+        listPages("mimeType = 'application/vnd.google-apps.folder' and trashed = false",
+                "id, name", folders::addAll);
         android.util.Log.i(TAG, "Found " + folders.size() + " folders.");
         return folders;
     }
 
     /**
-     * Lists all non-folder, non-trashed files in the specified Drive folder.
-     * @param folderId The ID of the Drive folder to list files from.
-     * @return List of Drive File objects.
+     * Lists one page of the non-trashed files and subfolders of several Drive folders in a single
+     * batched HTTP request, sorted by name. Subfolders can be told apart by their folder MIME type.
+     * Callbacks run on the calling thread, one per folder, before this method returns.
+     * @param pageTokens Map of folder ID to the page token to continue from (null for the first page);
+     *                   at most MAX_BATCH_SIZE entries.
+     * @param callback   Callback receiving the page or the error of each folder.
+     * @throws IOException if the batch request itself fails; no callback has run in that case.
+     */
+    @Override
+    public void listChildrenBatch(Map<String, String> pageTokens, ChildPageCallback callback) throws IOException {
+        BatchRequest batch = driveService.batch(requestInitializer);
+        for (Map.Entry<String, String> request : pageTokens.entrySet()) {
+            String folderId = request.getKey();
+            driveService.files().list()
+                    .setQ("'" + folderId + "' in parents and trashed = false")
+                    .setSpaces("drive")
+                    .setFields("nextPageToken, files(id, name, modifiedTime, md5Checksum, mimeType, size)")
+                    // Sorted pages let the planner merge-join them against the sorted local listing
+                    .setOrderBy("name")
+                    .setPageSize(LIST_PAGE_SIZE)
+                    .setPageToken(request.getValue())
+                    .queue(batch, new JsonBatchCallback<FileList>() {
+                        @Override
+                        public void onSuccess(FileList result, HttpHeaders responseHeaders) {
+                            List<File> page = result.getFiles() != null ? result.getFiles() : Collections.emptyList();
+                            try {
+                                callback.onPage(folderId, page, result.getNextPageToken());
+                            } catch (Exception e) {
+                                callback.onFailure(folderId, e);
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+                            callback.onFailure(folderId, new IOException(
+                                    "Listing folder " + folderId + " failed: " + error.getCode() + " " + error.getMessage()));
+                        }
+                    });
+        }
+        android.util.Log.d(TAG, "Listing " + batch.size() + " folders in one batch.");
+        android.os.Trace.beginSection("DriveSync:list batch");
+        try {
+            batch.execute();
+        } finally {
+            android.os.Trace.endSection();
+        }
+    }
+
+    /**
+     * Runs a files.list query and follows nextPageToken until every page has been delivered.
+     * @param query      The Drive search query.
+     * @param fileFields The File fields to request for each result.
+     * @param callback   Callback receiving each page of files.
+     * @return Total number of files delivered.
+     * @throws Exception if the API call or the callback fails.
+     */
+    private int listPages(String query, String fileFields, PageCallback<File> callback) throws Exception {
+        int total = 0;
+        int pageCount = 0;
+        String pageToken = null;
+        do {
+            FileList result = driveService.files().list()
+                    .setQ(query)
+                    .setSpaces("drive")
+                    .setFields("nextPageToken, files(" + fileFields + ")")
+                    .setPageSize(LIST_PAGE_SIZE)
+                    .setPageToken(pageToken)
+                    .execute();
+            // An empty page is still delivered so callers see a consistent sequence
+            List<File> page = result.getFiles() != null ? result.getFiles() : Collections.emptyList();
+            pageCount++;
+            total += page.size();
+            android.util.Log.d(TAG, "Listing page " + pageCount + ": " + page.size() + " entries.");
+            callback.onPage(page);
+            pageToken = result.getNextPageToken();
+        } while (pageToken != null);
+        return total;
+    }
+
+    /**
+     * Returns the token marking the current head of the user's change log.
+     * Changes made after this call are returned by listChanges when starting from this token.
+     * @return The start page token.
      * @throws Exception if the API call fails.
      */
-    public List<File> listFilesInDrive(String folderId) throws Exception {
-        android.util.Log.d(TAG, "Listing files in folder: " + folderId);
-        // Build query to get all files (not folders) in the given folder
-        String query = "'" + folderId + "' in parents and trashed = false and mimeType != 'application/vnd.google-apps.folder'";
-        FileList result = driveService.files().list()
-                .setQ(query)
-                .setSpaces("drive")
-                .setFields("files(id, name, modifiedTime, md5Checksum, mimeType, size)")
-                .setPageSize(1000)
-                .execute();
-        // Return the list of files, or an empty list if none found
-        List<File> files = result.getFiles() != null ? result.getFiles() : Collections.emptyList();
-        android.util.Log.i(TAG, "Found " + files.size() + " files in folder " + folderId);
-        return files;
+    public String getStartPageToken() throws Exception {
+        String token = driveService.changes().getStartPageToken().execute().getStartPageToken();
+        android.util.Log.d(TAG, "Fetched changes start page token: " + token);
+        return token;
+    }
+
+    /**
+     * Lists every change recorded since the given page token, page by page.
+     * @param pageToken The saved page token to start from.
+     * @param callback  Callback receiving each page of changes.
+     * @return The new start page token to save for the next incremental sync.
+     * @throws InvalidPageTokenException if Drive no longer accepts the saved token.
+     * @throws Exception if the API call or the callback fails.
+     */
+    public String listChanges(String pageToken, PageCallback<Change> callback) throws Exception {
+        android.util.Log.d(TAG, "Listing changes since token: " + pageToken);
+        int total = 0;
+        String token = pageToken;
+        while (true) {
+            ChangeList result;
+            try {
+                result = driveService.changes().list(token)
+                        .setSpaces("drive")
+                        .setFields(CHANGE_FIELDS)
+                        .setPageSize(LIST_PAGE_SIZE)
+                        .setIncludeRemoved(true)
+                        .execute();
+            } catch (GoogleJsonResponseException e) {
+                if (isPageTokenRejected(e)) {
+                    throw new InvalidPageTokenException("Changes page token rejected: " + e.getStatusCode(), e);
+                }
+                throw e;
+            }
+            List<Change> page = result.getChanges() != null ? result.getChanges() : Collections.emptyList();
+            total += page.size();
+            callback.onPage(page);
+            if (result.getNewStartPageToken() != null) {
+                // Last page: Drive hands out the token to use next time
+                android.util.Log.i(TAG, "Listed " + total + " changes.");
+                return result.getNewStartPageToken();
+            }
+            token = result.getNextPageToken();
+        }
+    }
+
+    /**
+     * Tells a rejected changes page token apart from other request errors. Drive answers an expired
+     * token with 404 or 410, and a malformed one with a 400 that names the pageToken parameter;
+     * any other 400 is a bug in the request and must not be hidden behind a full re-list.
+     * @param e The error of a changes request.
+     * @return true if the page token should be discarded.
+     */
+    private static boolean isPageTokenRejected(GoogleJsonResponseException e) {
+        int status = e.getStatusCode();
+        if (status == 404 || status == 410) return true;
+        if (status != 400 || e.getDetails() == null || e.getDetails().getErrors() == null) return false;
+        for (GoogleJsonError.ErrorInfo error : e.getDetails().getErrors()) {
+            if ("pageToken".equals(error.getLocation()) || "invalidPageToken".equals(error.getReason())) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
      * Downloads a file from Google Drive to the local directory using SAF.
+     * The content is written to a temporary sibling and only moved over the local copy once the
+     * download is complete and its MD5, computed while the bytes are written, matches Drive's
+     * md5Checksum, so readers never see a torn or corrupted file and a failed update keeps the old copy.
+     * Files of at least one chunk are fetched in HTTP Range chunks and journaled, so an interrupted
+     * download keeps its committed bytes and the next attempt continues from there. Files large
+     * enough for several segments (see setSegmentedDownloads) fetch their ranges in parallel.
      * @param driveFile The Drive File to download.
-     * @param localDirUri The URI of the local directory (SAF).
+     * @param localDir The snapshot of the local directory (SAF).
      * @param safManager The SAFManager to handle local file operations.
-     * @return true if download succeeded, false otherwise.
-     */
-    public boolean downloadFileToSAF(File driveFile, Uri localDirUri, SAFManager safManager) {
-        // Determine the MIME type for the file, defaulting to binary if unknown
-        String mimeType = driveFile.getMimeType() != null ? driveFile.getMimeType() : "application/octet-stream";
-        android.util.Log.d(TAG, "Preparing to download file: " + driveFile.getName() + " (MIME: " + mimeType + ")");
-        // Create or get the local file URI in the SAF directory
-        Uri newFileUri = safManager.createFile(localDirUri, driveFile.getName(), mimeType);
-        if (newFileUri == null) {
+     * @param journal The journal of interrupted downloads, or null to always download in one request.
+     * @param progress Receives the number of bytes written as they are written (including bytes
+     *                 already on disk when a download resumes), or null. Called from several
+     *                 threads at once for segmented downloads.
+     * @return The URI of the downloaded local file, or null if the download failed.
+     */
+    public Uri downloadFileToSAF(File driveFile, DirectorySnapshot localDir, SAFManager safManager,
+                                 DownloadJournal journal, LongConsumer progress) {
+        String tempName = TempFiles.tempNameFor(driveFile.getId());
+        if (DEBUG) {
+            android.util.Log.d(TAG, "Preparing to download file: " + driveFile.getName() +
+                    " (MIME: " + driveFile.getMimeType() + ")");
+        }
+        Uri tempUri = createTempFile(localDir, tempName, safManager);
+        if (tempUri == null) {
             android.util.Log.e(TAG, "Failed to create local file for: " + driveFile.getName());
-            return false;
+            return null;
+        }
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            android.util.Log.e(TAG, "MD5 is not available", e);
+            return null;
+        }
+        long size = driveFile.getSize() != null ? driveFile.getSize() : -1;
+        boolean complete;
+        boolean segmented = journal != null && segmentCount(size) > 1;
+        // Segmented downloads hash the finished file instead, so resuming needs no prefix digest
+        long started = System.nanoTime();
+        android.os.Trace.beginSection("DriveSync:download");
+        try {
+            if (journal != null && reuseFinishedDownload(driveFile, tempUri, localDir, safManager, journal, md5)) {
+                // Finished in an earlier sync; only the move into place is left
+                complete = true;
+            } else {
+                FileOutputStream resumeOut = journal != null && size >= DOWNLOAD_CHUNK_SIZE
+                        ? openForResume(driveFile, tempUri, localDir, safManager, journal, segmented ? null : md5)
+                        : null;
+                if (resumeOut != null && segmented) {
+                    complete = downloadSegmented(driveFile, resumeOut, tempUri, md5, localDir, safManager, journal,
+                            progress);
+                } else if (resumeOut != null) {
+                    complete = downloadChunked(driveFile, resumeOut, md5, localDir, safManager, journal, progress);
+                } else {
+                    // Small file, or the provider cannot seek: a plain download
+                    complete = downloadWhole(driveFile, tempUri, md5, localDir, safManager, progress);
+                }
+            }
+        } finally {
+            android.os.Trace.endSection();
+            metrics.recordPhase(SyncMetrics.Phase.DOWNLOAD, started);
+        }
+        if (!complete) {
+            return null;
+        }
+        // Swap the verified download in under its real name
+        Uri fileUri = moveIntoPlace(localDir, tempName, driveFile.getName(), safManager);
+        if (fileUri == null) {
+            // The verified download is kept, and journaled as finished so the next sync only moves it
+            android.util.Log.e(TAG, "Failed to move download into place: " + driveFile.getName());
+            if (journal != null && size >= 0) {
+                journal.begin(driveFile, DocumentsContract.getDocumentId(tempUri));
+                journal.commit(driveFile.getId(), size);
+            }
+            return null;
+        }
+        if (DEBUG) android.util.Log.d(TAG, "Downloaded file: " + driveFile.getName());
+        return fileUri;
+    }
+
+    /**
+     * Fills a local file from another local file with the same content, e.g. a Drive file stored
+     * under several names. Written to the temporary sibling and moved into place like a download.
+     * @param driveFile  The Drive file to write.
+     * @param sourceUri  A finished local file whose content matches driveFile's md5Checksum and size.
+     * @param localDir   The snapshot of the local directory to write into.
+     * @param safManager The SAFManager to handle local file operations.
+     * @return The URI of the new local file, or null if the copy failed.
+     */
+    public Uri copyLocalFile(File driveFile, Uri sourceUri, DirectorySnapshot localDir, SAFManager safManager) {
+        String tempName = TempFiles.tempNameFor(driveFile.getId());
+        Uri tempUri = createTempFile(localDir, tempName, safManager);
+        if (tempUri == null) {
+            android.util.Log.e(TAG, "Failed to create local file for: " + driveFile.getName());
+            return null;
+        }
+        long copied;
+        long started = System.nanoTime();
+        android.os.Trace.beginSection("DriveSync:copy");
+        try {
+            copied = safManager.copyContent(sourceUri, tempUri);
+        } finally {
+            android.os.Trace.endSection();
+            metrics.recordPhase(SyncMetrics.Phase.WRITE, started);
+        }
+        if (copied < 0 || !hasExpectedSize(driveFile, copied)) {
+            deleteIncompleteFile(driveFile, localDir, safManager);
+            return null;
         }
-        try (OutputStream out = safManager.openFileOutputStream(newFileUri)) {
+        metrics.addBytesCopied(copied);
+        Uri fileUri = moveIntoPlace(localDir, tempName, driveFile.getName(), safManager);
+        if (fileUri == null) {
+            // The old copy is still in place; the temporary file is rewritten or cleaned up next sync
+            android.util.Log.e(TAG, "Failed to move copy into place: " + driveFile.getName());
+            return null;
+        }
+        if (DEBUG) android.util.Log.d(TAG, "Copied identical local file for: " + driveFile.getName());
+        return fileUri;
+    }
+
+    /**
+     * Checks whether the local file of a Drive file's name already holds its content, e.g. a copy
+     * that was there before the first sync. The local file is hashed; its size is compared first.
+     * @param driveFile  The Drive file, with an md5Checksum.
+     * @param localDir   The snapshot of the local directory.
+     * @param safManager The SAFManager to handle local file operations.
+     * @return The URI of the local file if its size and MD5 match Drive's, otherwise null.
+     */
+    public Uri findIdenticalLocalFile(File driveFile, DirectorySnapshot localDir, SAFManager safManager) {
+        DirectorySnapshot.Entry local = localDir.get(driveFile.getName());
+        if (local == null || local.isDirectory() || driveFile.getMd5Checksum() == null
+                || driveFile.getSize() == null || local.size != driveFile.getSize()) {
+            return null;
+        }
+        Uri fileUri = safManager.findFile(localDir, driveFile.getName());
+        long started = System.nanoTime();
+        android.os.Trace.beginSection("DriveSync:verify");
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            return digestPrefix(fileUri, local.size, md5, safManager)
+                    && driveFile.getMd5Checksum().equalsIgnoreCase(toHex(md5.digest())) ? fileUri : null;
+        } catch (NoSuchAlgorithmException e) {
+            android.util.Log.e(TAG, "MD5 is not available", e);
+            return null;
+        } finally {
+            android.os.Trace.endSection();
+            metrics.recordPhase(SyncMetrics.Phase.PLAN, started);
+        }
+    }
+
+    /**
+     * Creates the temporary sibling a download or copy is written to. It is created as plain binary
+     * so the provider does not append an extension; the real name sets the type after the rename.
+     * @param localDir   The snapshot of the local directory.
+     * @param tempName   The name of the temporary file.
+     * @param safManager The SAFManager to handle local file operations.
+     * @return The URI of the temporary file, or null if it cannot be created.
+     */
+    private Uri createTempFile(DirectorySnapshot localDir, String tempName, SAFManager safManager) {
+        long started = System.nanoTime();
+        android.os.Trace.beginSection("DriveSync:create");
+        try {
+            return safManager.createFile(localDir, tempName, "application/octet-stream");
+        } finally {
+            android.os.Trace.endSection();
+            metrics.recordPhase(SyncMetrics.Phase.WRITE, started);
+        }
+    }
+
+    /**
+     * Renames a finished temporary file over the local copy.
+     * @param localDir   The snapshot of the local directory.
+     * @param tempName   The name of the temporary file.
+     * @param name       The real name of the file.
+     * @param safManager The SAFManager to handle local file operations.
+     * @return The URI of the file under its real name, or null if it could not be moved.
+     */
+    private Uri moveIntoPlace(DirectorySnapshot localDir, String tempName, String name, SAFManager safManager) {
+        long started = System.nanoTime();
+        android.os.Trace.beginSection("DriveSync:replace");
+        try {
+            return safManager.replaceFile(localDir, tempName, name);
+        } finally {
+            android.os.Trace.endSection();
+            metrics.recordPhase(SyncMetrics.Phase.WRITE, started);
+        }
+    }
+
+    /**
+     * Downloads a file in a single request into its temporary file. Written through a pooled
+     * FileChannel buffer into preallocated space and synced once at the end, unless the provider
+     * only offers a stream.
+     * @param driveFile  The Drive file to download.
+     * @param tempUri    The URI of the temporary file.
+     * @param md5        A fresh digest, fed with every byte written.
+     * @param localDir   The snapshot of the local directory.
+     * @param safManager The SAFManager to handle local file operations.
+     * @param progress   Receives the number of bytes written, or null.
+     * @return true if every byte was written and the checksum matches.
+     */
+    private boolean downloadWhole(File driveFile, Uri tempUri, MessageDigest md5, DirectorySnapshot localDir,
+                                  SAFManager safManager, LongConsumer progress) {
+        boolean verified;
+        try (OutputStream out = openDownloadStream(tempUri, driveFile, safManager)) {
             if (out == null) {
                 android.util.Log.e(TAG, "Failed to open output stream for: " + driveFile.getName());
                 return false;
             }
-            // Download the file content from Drive and write to the output stream
-            driveService.files().get(driveFile.getId()).executeMediaAndDownloadTo(out);
-            android.util.Log.i(TAG, "Downloaded file: " + driveFile.getName());
+            // Download the file content from Drive, hashing it on its way to the output stream
+            driveService.files().get(driveFile.getId())
+                    .executeMediaAndDownloadTo(new DigestOutputStream(countBytes(out, progress), md5));
+            if (out instanceof ChannelOutputStream) {
+                ChannelOutputStream channelOut = (ChannelOutputStream) out;
+                // Space was preallocated, so a short download would otherwise pass as full size
+                verified = hasExpectedSize(driveFile, channelOut.position()) && verifyChecksum(driveFile, md5);
+                if (verified) channelOut.sync();
+            } else {
+                verified = verifyChecksum(driveFile, md5);
+            }
+        } catch (Exception e) {
+            // If download fails, attempt to delete the incomplete file; the local copy is untouched
+            android.util.Log.e(TAG, "Error downloading file: " + driveFile.getName(), e);
+            verified = false;
+        }
+        if (!verified) {
+            deleteIncompleteFile(driveFile, localDir, safManager);
+        }
+        return verified;
+    }
+
+    /**
+     * Opens the temporary file of a single-request download, preferring the FileChannel path.
+     * @param tempUri    The URI of the temporary file.
+     * @param driveFile  The Drive file being downloaded.
+     * @param safManager The SAFManager to handle local file operations.
+     * @return A ChannelOutputStream over preallocated space, a plain stream if the provider cannot
+     *         open a file descriptor, or null if the file cannot be opened at all.
+     */
+    private static OutputStream openDownloadStream(Uri tempUri, File driveFile, SAFManager safManager) {
+        FileOutputStream file = safManager.openFileOutputStream(tempUri, 0);
+        if (file == null) {
+            return safManager.openFileOutputStream(tempUri);
+        }
+        ChannelOutputStream.preallocate(file, driveFile.getSize() != null ? driveFile.getSize() : -1);
+        return new ChannelOutputStream(file);
+    }
+
+    /**
+     * Checks the number of bytes written against Drive's size.
+     * @param driveFile The Drive file that was downloaded.
+     * @param written   The number of bytes written.
+     * @return true if they match, or Drive reports no size.
+     */
+    private static boolean hasExpectedSize(File driveFile, long written) {
+        if (driveFile.getSize() == null || written == driveFile.getSize()) return true;
+        android.util.Log.e(TAG, "Expected " + driveFile.getSize() + " bytes but wrote " + written +
+                " for: " + driveFile.getName());
+        return false;
+    }
+
+    /**
+     * Checks for a download that finished and was verified in an earlier sync but could not be moved
+     * into place. Its content is hashed once more, since the file may have changed since.
+     * @param driveFile  The Drive file about to be downloaded.
+     * @param tempUri    The URI of the temporary file.
+     * @param localDir   The snapshot of the local directory.
+     * @param safManager The SAFManager to handle local file operations.
+     * @param journal    The journal of interrupted downloads.
+     * @param md5        A fresh digest; reset again if the file cannot be reused.
+     * @return true if the temporary file holds the whole Drive file and only needs moving into place.
+     */
+    private boolean reuseFinishedDownload(File driveFile, Uri tempUri, DirectorySnapshot localDir,
+                                          SAFManager safManager, DownloadJournal journal, MessageDigest md5) {
+        DownloadJournal.Entry finished = journal.get(driveFile.getId());
+        if (finished == null || !finished.isFinished(driveFile, DocumentsContract.getDocumentId(tempUri))) {
+            return false;
+        }
+        journal.remove(driveFile.getId());
+        DirectorySnapshot.Entry local = localDir.get(TempFiles.tempNameFor(driveFile.getId()));
+        if (local != null && local.size == finished.size
+                && digestPrefix(tempUri, finished.size, md5, safManager) && verifyChecksum(driveFile, md5)) {
+            android.util.Log.i(TAG, "Reusing finished download of " + driveFile.getName());
             return true;
+        }
+        md5.reset();
+        return false;
+    }
+
+    /**
+     * Opens the temporary file for a chunked download, at the journaled offset if the interrupted
+     * download can be continued, otherwise at byte zero with a fresh journal row.
+     * When resuming, the committed bytes are read back once to bring the digest up to the offset.
+     * @param driveFile  The Drive file being downloaded.
+     * @param tempUri    The URI of the temporary file.
+     * @param localDir   The snapshot of the local directory.
+     * @param safManager The SAFManager to handle local file operations.
+     * @param journal    The journal of interrupted downloads.
+     * @param md5        A fresh digest, advanced over the bytes already on disk, or null if the
+     *                   caller hashes the file itself.
+     * @return A stream positioned at the offset to continue from, or null if the file cannot be seeked.
+     */
+    private FileOutputStream openForResume(File driveFile, Uri tempUri, DirectorySnapshot localDir,
+                                           SAFManager safManager, DownloadJournal journal, MessageDigest md5) {
+        String documentId = DocumentsContract.getDocumentId(tempUri);
+        DownloadJournal.Entry partial = journal.get(driveFile.getId());
+        DirectorySnapshot.Entry local = localDir.get(TempFiles.tempNameFor(driveFile.getId()));
+        long offset = 0;
+        if (partial != null && partial.canResume(driveFile, documentId)
+                && local != null && local.size >= partial.committedBytes
+                && (md5 == null || digestPrefix(tempUri, partial.committedBytes, md5, safManager))) {
+            offset = partial.committedBytes;
+        } else if (md5 != null) {
+            md5.reset();
+        }
+        FileOutputStream out = safManager.openFileOutputStream(tempUri, offset);
+        if (out == null) {
+            journal.remove(driveFile.getId());
+            if (md5 != null) md5.reset();
+        } else if (offset > 0) {
+            android.util.Log.i(TAG, "Resuming " + driveFile.getName() + " at byte " + offset);
+        } else {
+            journal.begin(driveFile, documentId);
+        }
+        return out;
+    }
+
+    /**
+     * Downloads a file in HTTP Range chunks, committing each chunk to the journal once it is on disk.
+     * On failure the temporary file is kept if at least one chunk was committed; a checksum mismatch
+     * discards it, since resuming would only rebuild the same bad content.
+     * @param driveFile  The Drive file to download.
+     * @param out        The stream opened by openForResume; closed by this method.
+     * @param md5        The digest of the bytes already on disk, fed with every byte written.
+     * @param localDir   The snapshot of the local directory.
+     * @param safManager The SAFManager to handle local file operations.
+     * @param journal    The journal of interrupted downloads.
+     * @param progress   Receives the number of bytes written, or null.
+     * @return true if every byte was written and the checksum matches.
+     */
+    private boolean downloadChunked(File driveFile, FileOutputStream out, MessageDigest md5,
+                                    DirectorySnapshot localDir, SAFManager safManager, DownloadJournal journal,
+                                    LongConsumer progress) {
+        String driveId = driveFile.getId();
+        boolean verified;
+        try (ChannelOutputStream chunkOut = new ChannelOutputStream(out)) {
+            long offset = chunkOut.position();
+            ChannelOutputStream.preallocate(out, driveFile.getSize());
+            if (progress != null && offset > 0) {
+                // Bytes kept from the interrupted attempt count as done
+                progress.accept(offset);
+            }
+            Drive.Files.Get request = driveService.files().get(driveId);
+            MediaHttpDownloader downloader = request.getMediaHttpDownloader();
+            downloader.setDirectDownloadEnabled(false);
+            downloader.setChunkSize(DOWNLOAD_CHUNK_SIZE);
+            downloader.setBytesDownloaded(offset);
+            downloader.setProgressListener(chunk -> {
+                if (chunk.getDownloadState() == MediaHttpDownloader.DownloadState.MEDIA_IN_PROGRESS) {
+                    // Journal only what is durably on disk, so a crash never resumes past real data
+                    chunkOut.sync();
+                    journal.commit(driveId, chunk.getNumBytesDownloaded());
+                }
+            });
+            request.executeMediaAndDownloadTo(new DigestOutputStream(countBytes(chunkOut, progress), md5));
+            // Never swap in a short file, e.g. if the content changed under a resumed download
+            verified = hasExpectedSize(driveFile, chunkOut.position()) && verifyChecksum(driveFile, md5);
+            if (verified) chunkOut.sync();
+        } catch (Exception e) {
+            android.util.Log.e(TAG, "Error downloading file: " + driveFile.getName(), e);
+            DownloadJournal.Entry partial = journal.get(driveId);
+            if (partial != null && partial.committedBytes > 0 && partial.committedBytes < driveFile.getSize()) {
+                android.util.Log.i(TAG, "Keeping partial file for resume: " + driveFile.getName() +
+                        " (" + partial.committedBytes + " bytes)");
+                return false;
+            }
+            verified = false;
+        }
+        journal.remove(driveId);
+        if (!verified) {
+            deleteIncompleteFile(driveFile, localDir, safManager);
+        }
+        return verified;
+    }
+
+    /**
+     * Number of segments a file would be downloaded in.
+     * @param size The file size in bytes, or -1 if unknown.
+     * @return The segment count; 1 or less means the file is not segmented.
+     */
+    private int segmentCount(long size) {
+        if (downloadSegments <= 1 || size < 2 * minSegmentSize) return 1;
+        return (int) Math.min(downloadSegments, size / minSegmentSize);
+    }
+
+    /**
+     * Downloads a file as parallel HTTP Range requests, each written at its own offset into
+     * preallocated space. Segments split whatever the journal has not yet committed; the journal
+     * advances to the end of the contiguous run of written bytes from the start, so an interrupted
+     * download resumes as a chunked one would. The content is hashed in file order while the segments
+     * run: bytes that arrive at the digest's frontier are hashed from the download buffer, and the
+     * ones that arrived ahead of it are read back from the file once the bytes before them are in.
+     * Skipped when Drive has no md5Checksum for the file.
+     * @param driveFile  The Drive file to download.
+     * @param out        The stream opened by openForResume; closed by this method.
+     * @param tempUri    The URI of the temporary file.
+     * @param md5        A fresh digest, fed with the file from byte zero.
+     * @param localDir   The snapshot of the local directory.
+     * @param safManager The SAFManager to handle local file operations.
+     * @param journal    The journal of interrupted downloads.
+     * @param progress   Receives the number of bytes written, from every segment's thread, or null.
+     * @return true if every byte was written and the checksum matches.
+     */
+    private boolean downloadSegmented(File driveFile, FileOutputStream out, Uri tempUri, MessageDigest md5,
+                                      DirectorySnapshot localDir, SAFManager safManager, DownloadJournal journal,
+                                      LongConsumer progress) {
+        String driveId = driveFile.getId();
+        long size = driveFile.getSize();
+        boolean verified;
+        try (FileOutputStream file = out) {
+            FileChannel channel = file.getChannel();
+            long offset = channel.position();
+            ChannelOutputStream.preallocate(file, size);
+            if (progress != null && offset > 0) {
+                progress.accept(offset);
+            }
+            SegmentedDownload download = new SegmentedDownload(driveFile, file, journal, progress,
+                    driveFile.getMd5Checksum() != null ? md5 : null, offset, segmentCount(size - offset));
+            android.util.Log.i(TAG, "Downloading " + driveFile.getName() + " in " + download.segments.length +
+                    " segments from byte " + offset);
+            download.run();
+            file.getFD().sync();
+            verified = driveFile.getMd5Checksum() == null
+                    || (download.isFullyHashed() && verifyChecksum(driveFile, md5));
         } catch (Exception e) {
-            // If download fails, attempt to delete the incomplete file
             android.util.Log.e(TAG, "Error downloading file: " + driveFile.getName(), e);
+            DownloadJournal.Entry partial = journal.get(driveId);
+            if (partial != null && partial.committedBytes > 0 && partial.committedBytes < size) {
+                android.util.Log.i(TAG, "Keeping partial file for resume: " + driveFile.getName() +
+                        " (" + partial.committedBytes + " bytes)");
+                return false;
+            }
+            verified = false;
+        }
+        journal.remove(driveId);
+        if (!verified) {
+            deleteIncompleteFile(driveFile, localDir, safManager);
+        }
+        return verified;
+    }
+
+    /**
+     * One byte range of a segmented download.
+     */
+    private static class Segment {
+        final long start;
+        final long end;
+        // Next byte to write; only the segment's own thread advances it
+        volatile long next;
+
+        /**
+         * @param start First byte of the range.
+         * @param end   Byte after the last one of the range.
+         */
+        Segment(long start, long end) {
+            this.start = start;
+            this.end = end;
+            this.next = start;
+        }
+
+        boolean isDone() {
+            return next >= end;
+        }
+    }
+
+    /**
+     * The segments of one file, fetched on the segment executor and written with positional writes
+     * to a shared FileChannel.
+     */
+    private class SegmentedDownload {
+        private final File driveFile;
+        private final FileOutputStream file;
+        private final FileChannel channel;
+        private final DownloadJournal journal;
+        private final LongConsumer progress;
+        final Segment[] segments;
+        // Set when any segment fails or the download is cancelled; the others stop at their next read
+        private volatile boolean aborted;
+        private long committed;
+        // Digest of the file from byte zero, or null if the file is not hashed
+        private final MessageDigest md5;
+        // Reads back bytes written before the digest reached them; same descriptor, opened read-write
+        private final FileChannel readChannel;
+        // Bytes fed into the digest so far, always a prefix of the file
+        private long hashed;
+
+        /**
+         * @param driveFile The Drive file to download.
+         * @param file      The open temporary file, opened for reading and writing.
+         * @param journal   The journal of interrupted downloads.
+         * @param progress  Receives the number of bytes written, or null.
+         * @param md5       A fresh digest to feed with the whole file, or null.
+         * @param offset    First byte not yet on disk.
+         * @param count     Number of segments to split the rest of the file into.
+         * @throws IOException if the file descriptor cannot be read.
+         */
+        SegmentedDownload(File driveFile, FileOutputStream file, DownloadJournal journal,
+                          LongConsumer progress, MessageDigest md5, long offset, int count) throws IOException {
+            this.driveFile = driveFile;
+            this.file = file;
+            this.channel = file.getChannel();
+            this.journal = journal;
+            this.progress = progress;
+            this.md5 = md5;
+            // Not closed: it does not own the descriptor, which is closed with the output stream
+            this.readChannel = md5 != null ? new FileInputStream(file.getFD()).getChannel() : null;
+            this.committed = offset;
+            long size = driveFile.getSize();
+            count = Math.max(1, count);
+            segments = new Segment[count];
+            long length = (size - offset) / count;
+            for (int i = 0; i < count; i++) {
+                long start = offset + i * length;
+                segments[i] = new Segment(start, i == count - 1 ? size : start + length);
+            }
+        }
+
+        /**
+         * Fetches all segments and waits until every one has stopped.
+         * @throws Exception the first failure of any segment, or InterruptedException if cancelled.
+         */
+        void run() throws Exception {
+            // Bytes kept from an interrupted attempt are hashed before the new ones arrive
+            catchUpDigest();
+            List<Future<?>> futures = new ArrayList<>();
+            for (Segment segment : segments) {
+                futures.add(segmentExecutor.submit(() -> {
+                    fetch(segment);
+                    return null;
+                }));
+            }
+            Exception failure = null;
+            for (Future<?> future : futures) {
+                while (true) {
+                    try {
+                        future.get();
+                        break;
+                    } catch (ExecutionException e) {
+                        aborted = true;
+                        if (failure == null) {
+                            failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                        }
+                        break;
+                    } catch (InterruptedException e) {
+                        // Cancelled: stop the segments, but wait for them so nothing writes after close
+                        aborted = true;
+                        if (failure == null) failure = e;
+                    }
+                }
+            }
+            if (failure instanceof InterruptedException) Thread.currentThread().interrupt();
+            if (failure != null) throw failure;
+            catchUpDigest();
+        }
+
+        /** @return true if the digest has been fed with every byte of the file. */
+        synchronized boolean isFullyHashed() {
+            return md5 != null && hashed == driveFile.getSize();
+        }
+
+        /**
+         * Fetches one segment, retrying from the last written byte after a failed request.
+         * @param segment The segment.
+         * @throws IOException if the segment still fails after SEGMENT_ATTEMPTS attempts.
+         */
+        private void fetch(Segment segment) throws IOException {
+            IOException lastError = null;
+            for (int attempt = 1; attempt <= SEGMENT_ATTEMPTS && !segment.isDone(); attempt++) {
+                if (aborted) throw new IOException("Segmented download aborted");
+                try {
+                    fetchRange(segment);
+                } catch (IOException e) {
+                    lastError = e;
+                    android.util.Log.w(TAG, "Segment at byte " + segment.next + " of " + driveFile.getName() +
+                            " failed (attempt " + attempt + ")", e);
+                }
+            }
+            if (!segment.isDone()) {
+                throw lastError != null ? lastError : new IOException("Segment incomplete");
+            }
+        }
+
+        /**
+         * Requests the rest of a segment and writes it at its offset, through a direct buffer
+         * borrowed from the ChannelOutputStream pool for the duration of the request.
+         * @param segment The segment.
+         * @throws IOException if the request, the transfer or a write fails.
+         */
+        private void fetchRange(Segment segment) throws IOException {
+            Drive.Files.Get request = rangeService.files().get(driveFile.getId());
+            request.getRequestHeaders().setRange("bytes=" + segment.next + "-" + (segment.end - 1));
+            HttpResponse response = request.executeMedia();
+            try (InputStream in = response.getContent()) {
+                // A server ignoring the range would send the whole file from byte zero
+                if (response.getStatusCode() != 206) {
+                    throw new IOException("Range request answered with " + response.getStatusCode());
+                }
+                ReadableByteChannel source = Channels.newChannel(in);
+                ByteBuffer buffer = ChannelOutputStream.acquireBuffer();
+                try {
+                    long sinceCommit = 0;
+                    while (!segment.isDone()) {
+                        if (aborted) throw new IOException("Segmented download aborted");
+                        buffer.clear();
+                        buffer.limit((int) Math.min(buffer.capacity(), segment.end - segment.next));
+                        // Filled before writing, so each write to the file is a large one
+                        while (buffer.hasRemaining()) {
+                            if (source.read(buffer) < 0) break;
+                        }
+                        int filled = buffer.position();
+                        if (filled == 0) {
+                            throw new IOException("Segment ended at byte " + segment.next + " of " + segment.end);
+                        }
+                        buffer.flip();
+                        digestInOrder(segment.next, buffer);
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer, segment.next + buffer.position());
+                        }
+                        segment.next += filled;
+                        catchUpDigest();
+                        metrics.addBytesDownloaded(filled);
+                        if (progress != null) progress.accept(filled);
+                        sinceCommit += filled;
+                        if (sinceCommit >= DOWNLOAD_CHUNK_SIZE || segment.isDone()) {
+                            commitPrefix();
+                            sinceCommit = 0;
+                        }
+                    }
+                } finally {
+                    ChannelOutputStream.releaseBuffer(buffer);
+                }
+            } finally {
+                response.disconnect();
+            }
+        }
+
+        /**
+         * Journals the contiguous run of written bytes from the start of the file, once it is on disk.
+         * @throws IOException if syncing fails.
+         */
+        private synchronized void commitPrefix() throws IOException {
+            long prefix = writtenPrefix();
+            if (prefix <= committed) return;
+            file.getFD().sync();
+            journal.commit(driveFile.getId(), prefix);
+            committed = prefix;
+        }
+
+        /** @return The end of the contiguous run of written bytes from the start of the file. */
+        private synchronized long writtenPrefix() {
+            for (Segment segment : segments) {
+                if (!segment.isDone()) return segment.next;
+            }
+            return driveFile.getSize();
+        }
+
+        /**
+         * Hashes a buffer about to be written if it starts where the digest stands, so the segment
+         * at the digest's frontier is never read back.
+         * @param position The file offset the buffer will be written at.
+         * @param data     The bytes; its position is left unchanged.
+         */
+        private synchronized void digestInOrder(long position, ByteBuffer data) {
+            if (md5 == null || position != hashed) return;
+            md5.update(data.duplicate());
+            hashed += data.remaining();
+        }
+
+        /**
+         * Reads back and hashes the written bytes between the digest and the end of the contiguous
+         * written prefix: bytes that arrived ahead of the digest, or kept from an interrupted attempt.
+         * They were written moments ago, so the reads are normally served from the page cache.
+         * @throws IOException if reading fails.
+         */
+        private synchronized void catchUpDigest() throws IOException {
+            if (md5 == null) return;
+            long prefix = writtenPrefix();
+            if (hashed >= prefix) return;
+            ByteBuffer buffer = ChannelOutputStream.acquireBuffer();
             try {
-                safManager.deleteFile(localDirUri, driveFile.getName());
-                android.util.Log.d(TAG, "Deleted incomplete file: " + driveFile.getName());
-            } catch (Exception ignore) {
-                android.util.Log.w(TAG, "Failed to delete incomplete file: " + driveFile.getName());
+                while (hashed < prefix) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), prefix - hashed));
+                    int read = readChannel.read(buffer, hashed);
+                    if (read < 0) throw new IOException("File ended at byte " + hashed + " of " + prefix);
+                    buffer.flip();
+                    md5.update(buffer);
+                    hashed += read;
+                }
+            } finally {
+                ChannelOutputStream.releaseBuffer(buffer);
+            }
+        }
+    }
+
+    /**
+     * Wraps a download stream so every write is counted as downloaded and reported to a progress consumer.
+     * @param out      The stream to wrap.
+     * @param progress Receives the number of bytes written, or null.
+     * @return The wrapping stream.
+     */
+    private OutputStream countBytes(OutputStream out, LongConsumer progress) {
+        SyncMetrics recorder = metrics;
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                recorder.addBytesDownloaded(1);
+                if (progress != null) progress.accept(1);
             }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                // FilterOutputStream would write byte by byte
+                out.write(b, off, len);
+                recorder.addBytesDownloaded(len);
+                if (progress != null) progress.accept(len);
+            }
+        };
+    }
+
+    /**
+     * Feeds the first bytes of a local file into a digest.
+     * @param fileUri    The URI of the file.
+     * @param length     The number of leading bytes to read.
+     * @param md5        The digest to update.
+     * @param safManager The SAFManager to handle local file operations.
+     * @return true if all bytes were read.
+     */
+    private boolean digestPrefix(Uri fileUri, long length, MessageDigest md5, SAFManager safManager) {
+        try (InputStream in = safManager.openFileInputStream(fileUri)) {
+            if (in == null) return false;
+            byte[] buffer = new byte[64 * 1024];
+            long remaining = length;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) return false;
+                md5.update(buffer, 0, read);
+                remaining -= read;
+            }
+            return true;
+        } catch (Exception e) {
+            android.util.Log.w(TAG, "Cannot read back local file: " + fileUri, e);
             return false;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Compares the digest of the written bytes with Drive's md5Checksum.
+     * @param driveFile The Drive file that was downloaded.
+     * @param md5       The digest of every byte written.
+     * @return true if the checksums match, or Drive has no checksum for the file.
+     */
+    private static boolean verifyChecksum(File driveFile, MessageDigest md5) {
+        String expected = driveFile.getMd5Checksum();
+        if (expected == null) return true;
+        String actual = toHex(md5.digest());
+        if (expected.equalsIgnoreCase(actual)) return true;
+        android.util.Log.e(TAG, "Checksum mismatch for " + driveFile.getName() +
+                ": expected " + expected + " but got " + actual);
+        return false;
+    }
+
+    /**
+     * @param digest A digest.
+     * @return The digest in lower-case hex, as Drive writes md5Checksum.
+     */
+    private static String toHex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(String.format(Locale.ROOT, "%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Deletes the temporary file of a download that failed before anything worth keeping was written.
+     * @param driveFile  The Drive file whose download failed.
+     * @param localDir   The snapshot of the local directory.
+     * @param safManager The SAFManager to handle local file operations.
+     */
+    private void deleteIncompleteFile(File driveFile, DirectorySnapshot localDir, SAFManager safManager) {
+        try {
+            safManager.deleteFile(localDir, TempFiles.tempNameFor(driveFile.getId()));
+            android.util.Log.d(TAG, "Deleted incomplete file: " + driveFile.getName());
+        } catch (Exception ignore) {
+            android.util.Log.w(TAG, "Failed to delete incomplete file: " + driveFile.getName());
+        }
+    }
+}
@@ -1,12 +1,20 @@
 package com.barak.drivesync;
 
+import android.Manifest;
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.content.ActivityNotFoundException;
+import android.content.ComponentName;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.provider.DocumentsContract;
+import android.provider.Settings;
 import android.util.Log;
 import android.view.View;
 import android.widget.*;
@@ -33,10 +41,12 @@ public class DriveSync extends AppCompatActivity {
     private static final String TAG = "DriveSync";
 
     // SharedPreferences keys for persisting folder selections
-    private static final String PREFS_NAME = "DriveSyncPrefs";
-    private static final String KEY_DRIVE_FOLDER_ID = "drive_folder_id";
-    private static final String KEY_DRIVE_FOLDER_NAME = "drive_folder_name";
-    private static final String KEY_LOCAL_FOLDER_URI = "local_folder_uri";
+    static final String PREFS_NAME = "DriveSyncPrefs";
+    static final String KEY_DRIVE_FOLDER_ID = "drive_folder_id";
+    static final String KEY_DRIVE_FOLDER_NAME = "drive_folder_name";
+    static final String KEY_LOCAL_FOLDER_URI = "local_folder_uri";
+    // Set once direct file access has been offered, so the user is asked only once
+    private static final String KEY_DIRECT_ACCESS_OFFERED = "direct_access_offered";
 
     // UI elements
     private SignInButton signInButton;
@@ -55,8 +65,56 @@ public class DriveSync extends AppCompatActivity {
     private ActivityResultLauncher<Intent> signInLauncher;
     private ActivityResultLauncher<Intent> folderPickerLauncher;
 
-    // Executor for background tasks
+    // Executor for short background tasks (e.g. folder listing); syncs run in SyncService
     private final ExecutorService executorService = Executors.newSingleThreadExecutor();
+    // Bound SyncService, or null while not connected
+    private SyncService syncService;
+
+    // Connects to SyncService whenever it runs, to show the progress of its sync
+    private final ServiceConnection syncConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            Log.d(TAG, "Connected to SyncService.");
+            syncService = ((SyncService.LocalBinder) binder).getService();
+            syncService.setListener(syncListener);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            syncService = null;
+        }
+    };
+
+    // Mirrors the state of the sync in the UI; called on the main thread
+    private final SyncService.Listener syncListener = new SyncService.Listener() {
+        @Override
+        public void onSyncStarted(String driveFolderName) {
+            txtStatusSAF.setText(getString(R.string.status_syncing,
+                    driveFolderName, getFileNameFromUri(localDirUri)));
+            setProgressVisible(true);
+        }
+
+        @Override
+        public void onSyncProgress(SyncProgress progress) {
+            int percent = progress.getPercent();
+            progressBar.setProgress(percent);
+            txtProgressPercent.setText(getString(R.string.progress_percent, percent));
+            txtProgressCount.setText(SyncService.describeProgress(DriveSync.this, progress));
+        }
+
+        @Override
+        public void onSyncFinished(SyncSummary summary) {
+            txtStatusSAF.setText(getString(R.string.status_sync_complete,
+                    summary.downloaded, summary.updated, summary.deleted, summary.failed, summary.skipped, summary.moved));
+            setProgressVisible(false);
+        }
+
+        @Override
+        public void onSyncFailed(String message) {
+            txtStatusSAF.setText(getString(R.string.status_sync_failed, message));
+            setProgressVisible(false);
+        }
+    };
 
     // Service managers for Drive and SAF
     private DriveManager driveManager;
@@ -72,8 +130,9 @@ public class DriveSync extends AppCompatActivity {
         setContentView(R.layout.activity_main);
         Log.d(TAG, "onCreate: Initializing DriveSync activity");
 
-        // Initialize Drive and SAF managers for Google Drive and local storage access
-        driveManager = new DriveManager(this);
+        // Initialize Drive and SAF managers for Google Drive and local storage access;
+        // Drive is configured like background syncs, so folder picking sees the same server
+        driveManager = SyncService.createDriveManager(this);
         safManager = new SAFManager(this);
 
         // Set up UI components and listeners
@@ -83,11 +142,16 @@ public class DriveSync extends AppCompatActivity {
 
         // Restore previous folder selections from SharedPreferences
         restoreSavedPreferences();
+        // Keep the background schedule in line with the saved selection and settings
+        SyncScheduler.schedule(this);
 
         // Update UI to reflect restored state
         updateFolderPathViews();
         updateSyncButtonState();
 
+        // The sync notification is the only sign of a sync running after the activity is closed
+        requestNotificationPermission();
+
         Log.i(TAG, "onCreate: DriveSync activity initialized successfully");
     }
 
@@ -119,7 +183,7 @@ public class DriveSync extends AppCompatActivity {
     private void setupClickListeners() {
         Log.d(TAG, "setupClickListeners: Attaching button listeners");
 
-        // Close app button: shuts down executor and finishes activity
+        // Close app button: shuts down the executor and finishes activity; a running sync continues in SyncService
         findViewById(R.id.close_button).setOnClickListener(v -> {
             Log.i(TAG, "User requested app close. Shutting down executor and finishing activity.");
             executorService.shutdownNow();
@@ -194,6 +258,7 @@ public class DriveSync extends AppCompatActivity {
                                     Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
                             localDirUri = returnedUri;
                             saveLocalFolderUri(localDirUri);
+                            offerDirectFileAccess(localDirUri);
                         }
                         updateFolderPathViews();
                         updateSyncButtonState();
@@ -245,6 +310,72 @@ public class DriveSync extends AppCompatActivity {
         super.onStart();
         Log.d(TAG, "onStart: Attempting silent Google sign-in.");
         driveManager.trySilentSignIn(this::onDriveSignIn);
+        // Follow a sync that is running or about to start; flags 0 so binding alone never starts the service
+        bindService(new Intent(this, SyncService.class), syncConnection, 0);
+    }
+
+    /**
+     * Stops following the sync while the activity is not visible. The sync itself keeps running.
+     */
+    @Override
+    protected void onStop() {
+        if (syncService != null) {
+            syncService.setListener(null);
+            syncService = null;
+        }
+        unbindService(syncConnection);
+        super.onStop();
+    }
+
+    /**
+     * Asks for permission to show the sync notification on Android 13 and later.
+     */
+    private void requestNotificationPermission() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU &&
+                checkSelfPermission(Manifest.permission.POST_NOTIFICATIONS) != PackageManager.PERMISSION_GRANTED) {
+            Log.d(TAG, "Requesting notification permission.");
+            requestPermissions(new String[]{Manifest.permission.POST_NOTIFICATIONS}, 0);
+        }
+    }
+
+    /**
+     * Offers direct file access once, after a folder on primary storage is picked. Syncs then
+     * bypass SAF (see DirectFileManager); if the user declines, they keep working through SAF.
+     * @param treeUri The tree URI of the picked folder.
+     */
+    private void offerDirectFileAccess(Uri treeUri) {
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        if (!DirectFileManager.isOnPrimaryStorage(treeUri) || DirectFileManager.hasFileAccess(this)
+                || prefs.getBoolean(KEY_DIRECT_ACCESS_OFFERED, false)) {
+            return;
+        }
+        prefs.edit().putBoolean(KEY_DIRECT_ACCESS_OFFERED, true).apply();
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.direct_access_title)
+                .setMessage(R.string.direct_access_message)
+                .setPositiveButton(R.string.direct_access_allow, (dialog, which) -> requestDirectFileAccess())
+                .setNegativeButton(R.string.direct_access_not_now, null)
+                .show();
+    }
+
+    /**
+     * Asks for the permission DirectFileManager needs: all-files access on Android 11 and later,
+     * which is granted in system settings, and storage permission before that.
+     */
+    private void requestDirectFileAccess() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            Log.i(TAG, "Opening all-files access settings.");
+            try {
+                startActivity(new Intent(Settings.ACTION_MANAGE_APP_ALL_FILES_ACCESS_PERMISSION,
+                        Uri.fromParts("package", getPackageName(), null)));
+            } catch (ActivityNotFoundException e) {
+                // Some devices only have the list of all apps
+                startActivity(new Intent(Settings.ACTION_MANAGE_ALL_FILES_ACCESS_PERMISSION));
+            }
+        } else {
+            Log.d(TAG, "Requesting storage permission.");
+            requestPermissions(new String[]{Manifest.permission.WRITE_EXTERNAL_STORAGE}, 1);
+        }
     }
 
     /**
@@ -374,6 +505,8 @@ public class DriveSync extends AppCompatActivity {
             editor.putString(KEY_LOCAL_FOLDER_URI, uri.toString());
         }
         editor.apply();
+        // Scheduled syncs follow the folder pair
+        SyncScheduler.schedule(this);
     }
 
     /**
@@ -387,6 +520,8 @@ public class DriveSync extends AppCompatActivity {
         editor.putString(KEY_DRIVE_FOLDER_ID, folderId);
         editor.putString(KEY_DRIVE_FOLDER_NAME, folderName);
         editor.apply();
+        // Scheduled syncs follow the folder pair
+        SyncScheduler.schedule(this);
     }
 
     /**
@@ -452,11 +587,15 @@ public class DriveSync extends AppCompatActivity {
 
     /**
      * Synchronizes files from the selected Drive folder to the local folder.
-     * Downloads new or updated files, deletes local files not present in Drive,
-     * and updates the UI with progress and results.
-     * Handles errors gracefully and updates the UI accordingly.
+     * Validates the selection and hands the sync to SyncService, which keeps running
+     * when the activity goes away; progress and results come back through syncListener.
      */
     private void syncDriveFolder() {
+        if (syncService != null && syncService.isSyncing()) {
+            Log.w(TAG, "syncDriveFolder: A sync is already running.");
+            Toast.makeText(this, "A sync is already running.", Toast.LENGTH_SHORT).show();
+            return;
+        }
         // Validate preconditions: user must be signed in and folders selected
         if (!driveManager.isSignedIn()) {
             Log.e(TAG, "syncDriveFolder: Not signed in to Google.");
@@ -487,142 +626,24 @@ public class DriveSync extends AppCompatActivity {
                 getFileNameFromUri(localDirUri)));
 
         // Show progress UI
-        runOnUiThread(() -> {
-            progressBar.setVisibility(View.VISIBLE);
-            txtProgressPercent.setVisibility(View.VISIBLE);
-            txtProgressCount.setVisibility(View.VISIBLE);
-            progressBar.setProgress(0);
-            txtProgressPercent.setText(getString(R.string.progress_percent, 0));
-            txtProgressCount.setText(getString(R.string.progress_count, 0, 0));
-        });
-
-        // Perform sync in background thread
-        executorService.execute(() -> {
-            try {
-                // 1. List files in Drive and local folder
-                Log.d(TAG, "Listing files in Drive folder: " + selectedDriveFolderName);
-                List<File> driveFiles = driveManager.listFilesInDrive(selectedDriveFolderId);
-                Log.d(TAG, "Found " + driveFiles.size() + " files in Drive folder.");
-
-                Log.d(TAG, "Listing files in local folder.");
-                Map<String, Long> localFiles = safManager.getFileModifiedMap(localDirUri);
-                Log.d(TAG, "Found " + localFiles.size() + " files in local folder.");
-
-                Set<String> driveFileNames = new HashSet<>();
-                List<File> filesToSync = new ArrayList<>();
-
-                // 2. Determine which files need to be downloaded or updated
-                for (File driveFile : driveFiles) {
-                    driveFileNames.add(driveFile.getName());
-                    Long localFileModifiedTime = localFiles.get(driveFile.getName());
-                    if (localFileModifiedTime == null) {
-                        // File does not exist locally, needs to be downloaded
-                        Log.d(TAG, "File to download (new): " + driveFile.getName());
-                        filesToSync.add(driveFile);
-                    } else {
-                        // File exists locally, check if Drive version is newer
-                        long driveModified = driveFile.getModifiedTime().getValue();
-                        if (driveModified > localFileModifiedTime) {
-                            Log.d(TAG, "File to update: " + driveFile.getName());
-                            filesToSync.add(driveFile);
-                        } else {
-                            Log.d(TAG, "File up to date: " + driveFile.getName());
-                        }
-                    }
-                }
-
-                // 3. Initialize counters for sync summary
-                int totalToSync = filesToSync.size();
-                int syncedCount = 0, downloadedCount = 0, updatedCount = 0, skippedCount = 0, failedCount = 0, deletedCount = 0;
-
-                Log.i(TAG, "syncDriveFolder: " + totalToSync + " files to sync.");
-
-                // 4. Download or update files as needed
-                for (File driveFile : filesToSync) {
-                    String fileName = driveFile.getName();
-                    Log.d(TAG, "Downloading: " + fileName);
-                    Long localFileModifiedTime = localFiles.get(fileName);
-                    boolean isNew = (localFileModifiedTime == null);
-
-                    // Download file from Drive to local folder
-                    boolean ok = driveManager.downloadFileToSAF(driveFile, localDirUri, safManager);
-                    if (ok) {
-                        if (isNew) {
-                            downloadedCount++;
-                            Log.d(TAG, "Downloaded new file: " + fileName);
-                        } else {
-                            updatedCount++;
-                            Log.d(TAG, "Updated file: " + fileName);
-                        }
-                    } else {
-                        failedCount++;
-                        Log.e(TAG, "Failed to download: " + fileName);
-                    }
-
-                    syncedCount++;
-                    final int progress = (int) (((syncedCount) * 100.0f) / (totalToSync == 0 ? 1 : totalToSync));
-                    final int currentFile = syncedCount;
-                    final int total = totalToSync;
-
-                    // Update progress UI on main thread
-                    runOnUiThread(() -> {
-                        progressBar.setProgress(progress);
-                        txtProgressPercent.setText(getString(R.string.progress_percent, progress));
-                        txtProgressCount.setText(getString(R.string.progress_count, currentFile, total));
-                    });
-                }
-
-                // 5. Count skipped files (already up to date)
-                skippedCount = driveFiles.size() - filesToSync.size();
-                Log.d(TAG, "Skipped (already up to date): " + skippedCount);
-
-                // 6. Delete local files that are not present in Drive
-                Log.d(TAG, "Checking for local files to delete.");
-                for (String localFile : localFiles.keySet()) {
-                    if (!driveFileNames.contains(localFile)) {
-                        Log.d(TAG, "Deleting local file not in Drive: " + localFile);
-                        if (safManager.deleteFile(localDirUri, localFile)) {
-                            deletedCount++;
-                            Log.d(TAG, "Deleted: " + localFile);
-                        } else {
-                            Log.e(TAG, "Failed to delete: " + localFile);
-                        }
-                    }
-                }
+        setProgressVisible(true);
+        progressBar.setProgress(0);
+        txtProgressPercent.setText(getString(R.string.progress_percent, 0));
+        txtProgressCount.setText(getString(R.string.progress_count, 0, 0));
 
-                // 7. Log and show sync summary
-                Log.i(TAG, "Sync complete. Downloaded: " + downloadedCount +
-                        ", Updated: " + updatedCount +
-                        ", Skipped: " + skippedCount +
-                        ", Failed: " + failedCount +
-                        ", Deleted: " + deletedCount);
-
-                final int finalDownloaded = downloadedCount, finalUpdated = updatedCount,
-                        finalSkipped = skippedCount, finalFailed = failedCount,
-                        finalDeleted = deletedCount;
-
-                // Update UI with sync summary
-                runOnUiThread(() -> {
-                    String summary = getString(R.string.status_sync_complete,
-                            finalDownloaded, finalUpdated, finalDeleted,
-                            finalFailed, finalSkipped);
-                    txtStatusSAF.setText(summary);
-                    progressBar.setVisibility(View.GONE);
-                    txtProgressPercent.setVisibility(View.GONE);
-                    txtProgressCount.setVisibility(View.GONE);
-                });
+        // Run the sync in SyncService so it survives the activity; progress arrives through syncListener
+        SyncService.start(this, selectedDriveFolderId, selectedDriveFolderName, localDirUri);
+    }
 
-            } catch (Exception e) {
-                // Handle errors and update UI
-                Log.e(TAG, "Sync failed with exception.", e);
-                runOnUiThread(() -> {
-                    txtStatusSAF.setText(getString(R.string.status_sync_failed, e.getMessage()));
-                    progressBar.setVisibility(View.GONE);
-                    txtProgressPercent.setVisibility(View.GONE);
-                    txtProgressCount.setVisibility(View.GONE);
-                });
-            }
-        });
+    /**
+     * Shows or hides the progress bar and counters.
+     * @param visible true to show them.
+     */
+    private void setProgressVisible(boolean visible) {
+        int visibility = visible ? View.VISIBLE : View.GONE;
+        progressBar.setVisibility(visibility);
+        txtProgressPercent.setVisibility(visibility);
+        txtProgressCount.setVisibility(visibility);
     }
 
     /**
@@ -648,4 +669,4 @@ public class DriveSync extends AppCompatActivity {
         }
         return "Unknown";
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,336 @@
+package com.barak.drivesync;
+
+import android.util.Log;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSink;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * OkHttpTransport runs the Drive client's requests on OkHttp instead of HttpURLConnection.
+ * Connections are pooled and negotiate HTTP/2 where the server supports it, so concurrent
+ * downloads and listings share a few multiplexed connections instead of each paying for its
+ * own TLS handshake. Counters on connection reuse are kept for logging.
+ */
+public class OkHttpTransport extends HttpTransport {
+    private static final String TAG = "OkHttpTransport";
+
+    /** Idle connections kept in the pool when no explicit value is configured. */
+    public static final int DEFAULT_POOL_SIZE = 5;
+    /** How long an idle pooled connection is kept open. */
+    public static final long KEEP_ALIVE_MINUTES = 5;
+    // Larger error bodies are cut off; Drive's are a few hundred bytes
+    private static final long MAX_ERROR_BODY_BYTES = 64 * 1024;
+
+    private final OkHttpClient client;
+
+    // Connection statistics, updated by the event listener from every calling thread
+    private final AtomicLong callCount = new AtomicLong();
+    private final AtomicLong connectionsOpened = new AtomicLong();
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong connectionsAcquired = new AtomicLong();
+    private final AtomicLong http2Acquired = new AtomicLong();
+
+    /**
+     * Creates a transport with its own connection pool.
+     * @param poolSize The number of idle connections kept for reuse.
+     */
+    public OkHttpTransport(int poolSize) {
+        this.client = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(Math.max(1, poolSize), KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                // Redirects and retries are handled by the Drive client and the RequestScheduler
+                .followRedirects(false)
+                .followSslRedirects(false)
+                .eventListener(new StatsListener())
+                .build();
+    }
+
+    /**
+     * Creates a transport over an already configured client.
+     * @param client The client.
+     */
+    private OkHttpTransport(OkHttpClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Returns a transport that only speaks HTTP/1.1, sharing this transport's connection pool.
+     * Concurrent requests over HTTP/2 are multiplexed onto a single TCP connection; over HTTP/1.1
+     * each gets a connection of its own, so parallel range requests are not limited by one
+     * connection's congestion window. Its connections are counted in this transport's statistics.
+     * @return The HTTP/1.1 transport.
+     */
+    public OkHttpTransport http1Only() {
+        return new OkHttpTransport(client.newBuilder()
+                .protocols(Collections.singletonList(Protocol.HTTP_1_1))
+                .build());
+    }
+
+    @Override
+    public boolean supportsMethod(String method) {
+        return true;
+    }
+
+    @Override
+    protected LowLevelHttpRequest buildRequest(String method, String url) {
+        return new OkHttpRequest(method, url);
+    }
+
+    @Override
+    public void shutdown() {
+        client.connectionPool().evictAll();
+    }
+
+    /** @return Number of requests sent. */
+    public long getCallCount() {
+        return callCount.get();
+    }
+
+    /** @return Number of new connections opened. */
+    public long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    /** @return Number of TLS handshakes completed. */
+    public long getHandshakes() {
+        return handshakes.get();
+    }
+
+    /** @return Number of times a request was given a connection, new or reused. */
+    public long getConnectionsAcquired() {
+        return connectionsAcquired.get();
+    }
+
+    /** @return Number of acquired connections that speak HTTP/2. */
+    public long getHttp2Acquired() {
+        return http2Acquired.get();
+    }
+
+    /**
+     * Logs the connection statistics gathered so far.
+     */
+    public void logStats() {
+        long acquired = connectionsAcquired.get();
+        long reused = Math.max(0, acquired - connectionsOpened.get());
+        Log.i(TAG, "Requests: " + callCount.get() +
+                ", connections opened: " + connectionsOpened.get() +
+                ", TLS handshakes: " + handshakes.get() +
+                ", reused: " + reused + "/" + acquired +
+                ", HTTP/2: " + http2Acquired.get() + "/" + acquired +
+                ", pooled: " + client.connectionPool().connectionCount());
+    }
+
+    /**
+     * One request, built up by the Drive client and executed on the shared OkHttpClient.
+     */
+    private class OkHttpRequest extends LowLevelHttpRequest {
+        private final String method;
+        private final Request.Builder builder;
+        private int connectTimeout = -1;
+        private int readTimeout = -1;
+        private int writeTimeout = -1;
+
+        OkHttpRequest(String method, String url) {
+            this.method = method;
+            this.builder = new Request.Builder().url(url);
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            builder.addHeader(name, value);
+        }
+
+        @Override
+        public void setTimeout(int connectTimeout, int readTimeout) {
+            this.connectTimeout = connectTimeout;
+            this.readTimeout = readTimeout;
+        }
+
+        @Override
+        public void setWriteTimeout(int writeTimeout) {
+            this.writeTimeout = writeTimeout;
+        }
+
+        // LowLevelHttpRequest hands out its content only as the deprecated util.StreamingContent
+        @SuppressWarnings("deprecation")
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+            RequestBody body = null;
+            com.google.api.client.util.StreamingContent content = getStreamingContent();
+            if (content != null) {
+                if (getContentEncoding() != null) {
+                    builder.addHeader("Content-Encoding", getContentEncoding());
+                }
+                body = new StreamingRequestBody(content, getContentType(), getContentLength());
+            } else if ("POST".equals(method) || "PUT".equals(method) || "PATCH".equals(method)) {
+                // OkHttp requires a body for these methods
+                body = RequestBody.create(new byte[0], null);
+            }
+            Request request = builder.method(method, body).build();
+            // Derived clients share the connection pool; only the timeouts differ
+            OkHttpClient.Builder callClient = client.newBuilder();
+            if (connectTimeout >= 0) callClient.connectTimeout(connectTimeout, TimeUnit.MILLISECONDS);
+            if (readTimeout >= 0) callClient.readTimeout(readTimeout, TimeUnit.MILLISECONDS);
+            if (writeTimeout >= 0) callClient.writeTimeout(writeTimeout, TimeUnit.MILLISECONDS);
+            return new OkHttpResponse(callClient.build().newCall(request).execute());
+        }
+    }
+
+    /**
+     * Streams the Drive client's request content into OkHttp.
+     */
+    // Wraps the deprecated util.StreamingContent, the only type LowLevelHttpRequest provides
+    @SuppressWarnings("deprecation")
+    private static class StreamingRequestBody extends RequestBody {
+        private final com.google.api.client.util.StreamingContent content;
+        private final MediaType contentType;
+        private final long contentLength;
+
+        StreamingRequestBody(com.google.api.client.util.StreamingContent content, String contentType,
+                             long contentLength) {
+            this.content = content;
+            this.contentType = contentType != null ? MediaType.parse(contentType) : null;
+            this.contentLength = contentLength;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return contentType;
+        }
+
+        @Override
+        public long contentLength() {
+            return contentLength;
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            content.writeTo(sink.outputStream());
+        }
+    }
+
+    /**
+     * Exposes an OkHttp response to the Drive client.
+     */
+    private static class OkHttpResponse extends LowLevelHttpResponse {
+        private final Response response;
+
+        OkHttpResponse(Response response) {
+            this.response = response;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            ResponseBody body = response.body();
+            if (body == null) return null;
+            if (!response.isSuccessful()) {
+                // Error bodies are small; buffered, they can be peeked at and still parsed afterwards
+                return new ByteArrayInputStream(response.peekBody(MAX_ERROR_BODY_BYTES).bytes());
+            }
+            return body.byteStream();
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return response.header("Content-Encoding");
+        }
+
+        @Override
+        public long getContentLength() {
+            ResponseBody body = response.body();
+            return body != null ? body.contentLength() : -1;
+        }
+
+        @Override
+        public String getContentType() {
+            return response.header("Content-Type");
+        }
+
+        @Override
+        public String getStatusLine() {
+            return response.protocol() + " " + response.code() + " " + response.message();
+        }
+
+        @Override
+        public int getStatusCode() {
+            return response.code();
+        }
+
+        @Override
+        public String getReasonPhrase() {
+            return response.message();
+        }
+
+        @Override
+        public int getHeaderCount() {
+            return response.headers().size();
+        }
+
+        @Override
+        public String getHeaderName(int index) {
+            return response.headers().name(index);
+        }
+
+        @Override
+        public String getHeaderValue(int index) {
+            return response.headers().value(index);
+        }
+
+        @Override
+        public void disconnect() {
+            // Closing returns the connection to the pool rather than tearing it down
+            response.close();
+        }
+    }
+
+    /**
+     * Counts calls, new connections, handshakes and connection reuse.
+     */
+    private class StatsListener extends EventListener {
+        @Override
+        public void callStart(Call call) {
+            callCount.incrementAndGet();
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            connectionsOpened.incrementAndGet();
+        }
+
+        @Override
+        public void secureConnectEnd(Call call, Handshake handshake) {
+            handshakes.incrementAndGet();
+        }
+
+        @Override
+        public void connectionAcquired(Call call, Connection connection) {
+            connectionsAcquired.incrementAndGet();
+            if (connection.protocol() == Protocol.HTTP_2) {
+                http2Acquired.incrementAndGet();
+            }
+        }
+    }
+}
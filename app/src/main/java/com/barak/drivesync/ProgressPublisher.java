@@ -0,0 +1,142 @@
+package com.barak.drivesync;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ProgressPublisher gathers byte-level progress from every download thread and hands coalesced
+ * SyncProgress snapshots to a listener at a fixed rate, however many files or bytes move in between.
+ * Recording progress is a few atomic adds, so the download path never waits for observers.
+ */
+public class ProgressPublisher {
+
+    /** Time between snapshots when no explicit value is configured. */
+    public static final long DEFAULT_INTERVAL_MILLIS = 500;
+    // Weight of the latest interval in the smoothed throughput
+    private static final double THROUGHPUT_SMOOTHING = 0.3;
+
+    /**
+     * Receives progress snapshots, on the publisher's own thread.
+     */
+    public interface Listener {
+        /**
+         * @param progress The latest snapshot.
+         */
+        void onProgress(SyncProgress progress);
+    }
+
+    private final Listener listener;
+    private final long intervalMillis;
+    private final ScheduledExecutorService timer;
+
+    // Updated concurrently by the download threads
+    private final AtomicLong bytesDone = new AtomicLong();
+    private final AtomicLong bytesTotal = new AtomicLong();
+    // Bytes actually received; unlike bytesDone it excludes sizes settled by failed files
+    private final AtomicLong bytesTransferred = new AtomicLong();
+    private final AtomicInteger filesDone = new AtomicInteger();
+    private final AtomicInteger filesTotal = new AtomicInteger();
+
+    // Only touched by publish(), which runs on the timer thread or after it has stopped
+    private long lastTransferred = 0;
+    private long lastPublishNanos;
+    private double bytesPerSecond = 0;
+    private SyncProgress lastPublished;
+
+    /**
+     * Creates a publisher; call start() to begin publishing.
+     * @param listener       The listener receiving snapshots.
+     * @param intervalMillis Time between snapshots.
+     */
+    public ProgressPublisher(Listener listener, long intervalMillis) {
+        this.listener = listener;
+        this.intervalMillis = intervalMillis;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "DriveSync-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts publishing snapshots at the fixed rate.
+     */
+    public void start() {
+        lastPublishNanos = System.nanoTime();
+        timer.scheduleAtFixedRate(this::publish, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops publishing and sends one last snapshot with the final counts.
+     */
+    public void stop() {
+        timer.shutdownNow();
+        try {
+            timer.awaitTermination(intervalMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        publish();
+    }
+
+    /**
+     * Records a file queued for download.
+     * @param size The file size in bytes, or a negative value if unknown.
+     */
+    public void onFileQueued(long size) {
+        filesTotal.incrementAndGet();
+        if (size > 0) bytesTotal.addAndGet(size);
+    }
+
+    /**
+     * Records bytes written by a download. Called from download threads.
+     * @param bytes Number of bytes.
+     */
+    public void onBytesTransferred(long bytes) {
+        bytesDone.addAndGet(bytes);
+        bytesTransferred.addAndGet(bytes);
+    }
+
+    /**
+     * Records a finished file.
+     * @param unsettledBytes Bytes of the file not reported through onBytesTransferred (e.g. because
+     *                       it failed part-way); counted as done so the totals still add up.
+     */
+    public void onFileFinished(long unsettledBytes) {
+        if (unsettledBytes > 0) bytesDone.addAndGet(unsettledBytes);
+        filesDone.incrementAndGet();
+    }
+
+    /**
+     * Builds a snapshot and passes it on unless nothing has changed since the last one.
+     */
+    private synchronized void publish() {
+        long now = System.nanoTime();
+        long transferred = bytesTransferred.get();
+        double seconds = (now - lastPublishNanos) / 1e9;
+        if (seconds > 0) {
+            double sample = (transferred - lastTransferred) / seconds;
+            bytesPerSecond = THROUGHPUT_SMOOTHING * sample + (1 - THROUGHPUT_SMOOTHING) * bytesPerSecond;
+        }
+        lastTransferred = transferred;
+        lastPublishNanos = now;
+
+        long done = bytesDone.get();
+        long total = bytesTotal.get();
+        long rate = (long) bytesPerSecond;
+        long eta = rate > 0 ? Math.max(0, total - done) / rate : -1;
+        SyncProgress progress = new SyncProgress(done, total, filesDone.get(), filesTotal.get(), rate, eta);
+        if (lastPublished != null && lastPublished.bytesDone == progress.bytesDone
+                && lastPublished.bytesTotal == progress.bytesTotal
+                && lastPublished.filesDone == progress.filesDone
+                && lastPublished.filesTotal == progress.filesTotal
+                && lastPublished.bytesPerSecond == progress.bytesPerSecond) {
+            return;
+        }
+        lastPublished = progress;
+        listener.onProgress(progress);
+    }
+}
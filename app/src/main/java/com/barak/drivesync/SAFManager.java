@@ -4,19 +4,24 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.provider.DocumentsContract;
 import android.util.Log;
 
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.channels.FileChannel;
 
 /**
  * SAFManager provides utility methods for interacting with the Android Storage Access Framework (SAF).
  * It allows querying, creating, finding, deleting, and opening files in a SAF directory.
  */
-public class SAFManager {
+public class SAFManager implements LocalStorage {
     private static final String TAG = "SAFManager";
+    // Logs the size of every listed directory when the tag is loggable at DEBUG
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
     private final Context context;
 
     /**
@@ -52,60 +57,91 @@ public class SAFManager {
     }
 
     /**
-     * Returns a map of file names to their last modified timestamps for all non-directory files in the given directory.
-     * @param dirUri The URI of the directory to list.
-     * @return Map of file name to last modified time (epoch millis).
+     * Lists the children of the given tree's root directory with a single query and returns them
+     * as an in-memory index. Creating, finding and deleting files through the snapshot then needs
+     * no further directory scans.
+     * @param dirUri The tree URI of the directory to list.
+     * @return The directory snapshot; empty if the directory could not be queried.
      */
-    public Map<String, Long> getFileModifiedMap(Uri dirUri) {
-        Map<String, Long> fileMap = new HashMap<>();
+    public DirectorySnapshot snapshotDirectory(Uri dirUri) {
+        return snapshotDirectory(dirUri, DocumentsContract.getTreeDocumentId(dirUri));
+    }
+
+    /**
+     * Lists the children of a directory anywhere below the given tree with a single query.
+     * @param treeUri    The tree URI the directory was granted through.
+     * @param documentId The document ID of the directory to list.
+     * @return The directory snapshot; empty if the directory could not be queried.
+     */
+    public DirectorySnapshot snapshotDirectory(Uri treeUri, String documentId) {
+        DirectorySnapshot snapshot = new DirectorySnapshot(treeUri.toString(), documentId);
         ContentResolver resolver = context.getContentResolver();
         // Build the URI for the children of the directory
-        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(dirUri, DocumentsContract.getTreeDocumentId(dirUri));
+        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, documentId);
         try (Cursor cursor = resolver.query(childrenUri,
                 new String[]{
+                        DocumentsContract.Document.COLUMN_DOCUMENT_ID,
                         DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+                        DocumentsContract.Document.COLUMN_MIME_TYPE,
                         DocumentsContract.Document.COLUMN_LAST_MODIFIED,
-                        DocumentsContract.Document.COLUMN_MIME_TYPE
+                        DocumentsContract.Document.COLUMN_SIZE
                 },
                 null, null, null)) {
             if (cursor != null) {
-                // Get column indices for the required fields
-                int nameIndex = cursor.getColumnIndex(DocumentsContract.Document.COLUMN_DISPLAY_NAME);
-                int modifiedIndex = cursor.getColumnIndex(DocumentsContract.Document.COLUMN_LAST_MODIFIED);
-                int mimeTypeIndex = cursor.getColumnIndex(DocumentsContract.Document.COLUMN_MIME_TYPE);
-                // Iterate through all children
+                // Iterate through all children once
                 while (cursor.moveToNext()) {
-                    String name = cursor.getString(nameIndex);
-                    long modified = cursor.getLong(modifiedIndex);
-                    String mimeType = cursor.getString(mimeTypeIndex);
-                    // Only include files (not directories)
-                    if (!DocumentsContract.Document.MIME_TYPE_DIR.equals(mimeType)) {
-                        fileMap.put(name, modified);
-                    }
+                    snapshot.putIfAbsent(cursor.getString(1), new DirectorySnapshot.Entry(
+                            cursor.getString(0),
+                            cursor.getString(2),
+                            cursor.getLong(3),
+                            cursor.isNull(4) ? -1 : cursor.getLong(4)));
                 }
             }
         } catch (Exception e) {
-            Log.e(TAG, "getFileModifiedMap: Error listing local SAF files", e);
+            Log.e(TAG, "snapshotDirectory: Error listing local SAF files", e);
         }
-        return fileMap;
+        if (DEBUG) Log.d(TAG, "snapshotDirectory: " + snapshot.size() + " children.");
+        return snapshot;
     }
 
     /**
-     * Creates a new file in the given SAF directory, or returns the URI if it already exists.
-     * @param treeUri The URI of the parent directory.
+     * Returns the last modified time of a single document.
+     * @param fileUri The URI of the document.
+     * @return Last modified time (epoch millis), or 0 if it cannot be read.
+     */
+    public long getLastModified(Uri fileUri) {
+        try (Cursor cursor = context.getContentResolver().query(fileUri,
+                new String[]{DocumentsContract.Document.COLUMN_LAST_MODIFIED},
+                null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                return cursor.getLong(0);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "getLastModified: Error querying " + fileUri, e);
+        }
+        return 0;
+    }
+
+    /**
+     * Creates a new file in the snapshot's directory, or returns the URI if it already exists.
+     * The existence check is a lookup in the snapshot; only the create itself is an IPC call.
+     * @param dir      The snapshot of the parent directory.
      * @param fileName The name of the file to create.
      * @param mimeType The MIME type of the file.
      * @return The URI of the created or existing file, or null on failure.
      */
-    public Uri createFile(Uri treeUri, String fileName, String mimeType) {
+    public Uri createFile(DirectorySnapshot dir, String fileName, String mimeType) {
         try {
-            // Check if the file already exists
-            Uri existingFileUri = findFile(treeUri, fileName);
-            if (existingFileUri != null) return existingFileUri;
-            // Build the parent document URI
-            Uri parentDocumentUri = DocumentsContract.buildDocumentUriUsingTree(treeUri, DocumentsContract.getTreeDocumentId(treeUri));
-            // Create the new file in the directory
-            return DocumentsContract.createDocument(context.getContentResolver(), parentDocumentUri, mimeType, fileName);
+            // Check if the file already exists; a directory of that name cannot be written to
+            DirectorySnapshot.Entry existing = dir.get(fileName);
+            if (existing != null) return existing.isDirectory() ? null : documentUri(dir, existing);
+            // Create the new file in the directory and record it in the snapshot
+            Uri fileUri = DocumentsContract.createDocument(context.getContentResolver(), directoryUri(dir), mimeType, fileName);
+            if (fileUri != null) {
+                dir.put(fileName, new DirectorySnapshot.Entry(
+                        DocumentsContract.getDocumentId(fileUri), mimeType, System.currentTimeMillis(), 0));
+            }
+            return fileUri;
         } catch (Exception e) {
             // Any exception means file creation failed
             return null;
@@ -113,71 +149,82 @@ public class SAFManager {
     }
 
     /**
-     * Finds a file with the given name in the specified SAF directory.
-     * @param treeUri The URI of the directory to search.
-     * @param fileName The name of the file to find.
-     * @return The URI of the file if found, or null if not found.
+     * Returns the snapshot of a child directory, creating the directory if it does not exist.
+     * An existing child directory is listed with one query; a new one starts out empty.
+     * @param parent The snapshot of the parent directory.
+     * @param name   The name of the child directory.
+     * @return The child directory snapshot, or null if a file of that name exists or creation failed.
      */
-    public Uri findFile(Uri treeUri, String fileName) {
-        ContentResolver resolver = context.getContentResolver();
-        // Build the URI for the children of the directory
-        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, DocumentsContract.getTreeDocumentId(treeUri));
-        try (Cursor cursor = resolver.query(childrenUri,
-                new String[]{
-                        DocumentsContract.Document.COLUMN_DOCUMENT_ID,
-                        DocumentsContract.Document.COLUMN_DISPLAY_NAME
-                },
-                null, null, null)) {
-            if (cursor != null) {
-                // Iterate through all children
-                while (cursor.moveToNext()) {
-                    String docId = cursor.getString(0);
-                    String name = cursor.getString(1);
-                    // If the file name matches, build and return its URI
-                    if (fileName.equals(name)) {
-                        return DocumentsContract.buildDocumentUriUsingTree(treeUri, docId);
-                    }
-                }
+    @Override
+    public DirectorySnapshot createDirectory(DirectorySnapshot parent, String name) {
+        DirectorySnapshot.Entry existing = parent.get(name);
+        if (existing != null) {
+            if (!existing.isDirectory()) {
+                Log.w(TAG, "createDirectory: A file named " + name + " is in the way.");
+                return null;
             }
+            return snapshotDirectory(treeUriOf(parent), existing.documentId);
+        }
+        try {
+            Uri dirUri = DocumentsContract.createDocument(context.getContentResolver(), directoryUri(parent),
+                    DocumentsContract.Document.MIME_TYPE_DIR, name);
+            if (dirUri == null) return null;
+            String documentId = DocumentsContract.getDocumentId(dirUri);
+            parent.put(name, new DirectorySnapshot.Entry(documentId, DocumentsContract.Document.MIME_TYPE_DIR,
+                    System.currentTimeMillis(), 0));
+            return new DirectorySnapshot(parent.getTreeUri(), documentId);
         } catch (Exception e) {
-            // Ignore exceptions, just return null if not found
+            Log.e(TAG, "createDirectory: Failed to create " + name, e);
+            return null;
         }
-        return null;
     }
 
     /**
-     * Deletes a file with the given name from the specified SAF directory.
-     * @param dirUri The URI of the directory.
+     * Deletes a child directory and everything in it.
+     * @param parent The snapshot of the parent directory.
+     * @param name   The name of the child directory.
+     * @return true if the directory was deleted, false otherwise.
+     */
+    public boolean deleteDirectory(DirectorySnapshot parent, String name) {
+        DirectorySnapshot.Entry entry = parent.get(name);
+        if (entry == null || !entry.isDirectory()) return false;
+        try {
+            // Document providers delete directories recursively
+            if (DocumentsContract.deleteDocument(context.getContentResolver(), documentUri(parent, entry))) {
+                parent.remove(name);
+                return true;
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "deleteDirectory: Failed to delete " + name, e);
+        }
+        return false;
+    }
+
+    /**
+     * Finds a file with the given name in the snapshot's directory.
+     * @param dir      The snapshot of the directory to search.
+     * @param fileName The name of the file to find.
+     * @return The URI of the file if found, or null if not found.
+     */
+    public Uri findFile(DirectorySnapshot dir, String fileName) {
+        DirectorySnapshot.Entry entry = dir.get(fileName);
+        return entry != null ? documentUri(dir, entry) : null;
+    }
+
+    /**
+     * Deletes a file with the given name from the snapshot's directory.
+     * @param dir      The snapshot of the directory.
      * @param fileName The name of the file to delete.
      * @return true if the file was deleted, false otherwise.
      */
-    public boolean deleteFile(Uri dirUri, String fileName) {
-        ContentResolver resolver = context.getContentResolver();
-        // Build the URI for the children of the directory
-        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(dirUri, DocumentsContract.getTreeDocumentId(dirUri));
-        try (Cursor cursor = resolver.query(childrenUri,
-                new String[]{
-                        DocumentsContract.Document.COLUMN_DOCUMENT_ID,
-                        DocumentsContract.Document.COLUMN_DISPLAY_NAME,
-                        DocumentsContract.Document.COLUMN_MIME_TYPE
-                },
-                null, null, null)) {
-            if (cursor != null) {
-                // Get column indices for the required fields
-                int docIdIndex = cursor.getColumnIndex(DocumentsContract.Document.COLUMN_DOCUMENT_ID);
-                int nameIndex = cursor.getColumnIndex(DocumentsContract.Document.COLUMN_DISPLAY_NAME);
-                int mimeTypeIndex = cursor.getColumnIndex(DocumentsContract.Document.COLUMN_MIME_TYPE);
-                // Iterate through all children
-                while (cursor.moveToNext()) {
-                    String docId = cursor.getString(docIdIndex);
-                    String name = cursor.getString(nameIndex);
-                    String mimeType = cursor.getString(mimeTypeIndex);
-                    // If the file name matches and it's not a directory, delete it
-                    if (fileName.equals(name) && !DocumentsContract.Document.MIME_TYPE_DIR.equals(mimeType)) {
-                        Uri fileUriToDelete = DocumentsContract.buildDocumentUriUsingTree(dirUri, docId);
-                        return DocumentsContract.deleteDocument(resolver, fileUriToDelete);
-                    }
-                }
+    public boolean deleteFile(DirectorySnapshot dir, String fileName) {
+        DirectorySnapshot.Entry entry = dir.get(fileName);
+        // Only files are deleted, never directories
+        if (entry == null || entry.isDirectory()) return false;
+        try {
+            if (DocumentsContract.deleteDocument(context.getContentResolver(), documentUri(dir, entry))) {
+                dir.remove(fileName);
+                return true;
             }
         } catch (Exception e) {
             // Ignore exceptions, just return false if deletion fails
@@ -185,6 +232,117 @@ public class SAFManager {
         return false;
     }
 
+    /**
+     * Moves a fully written file over another name in the same directory.
+     * renameDocument never overwrites, so an existing target is first renamed to a hidden backup,
+     * which is deleted once the new copy is in place and renamed back if the move fails. The target
+     * name is briefly absent but never holds a partly written file, and a failed swap leaves both
+     * files where they were.
+     * @param dir        The snapshot of the directory.
+     * @param sourceName The name of the file to move into place.
+     * @param targetName The name it should end up with.
+     * @return The URI of the file under its new name (the document ID may change), or null on failure.
+     */
+    public Uri replaceFile(DirectorySnapshot dir, String sourceName, String targetName) {
+        DirectorySnapshot.Entry source = dir.get(sourceName);
+        if (source == null || source.isDirectory()) return null;
+        DirectorySnapshot.Entry target = dir.get(targetName);
+        if (target != null && target.isDirectory()) {
+            Log.e(TAG, "replaceFile: A directory named " + targetName + " is in the way.");
+            return null;
+        }
+        String backupName = TempFiles.backupNameFor(targetName);
+        if (target != null) {
+            // A backup left by an interrupted swap is older than the copy now in place
+            if (dir.get(backupName) != null) deleteFile(dir, backupName);
+            if (renameInSnapshot(dir, targetName, backupName) == null) {
+                Log.e(TAG, "replaceFile: Cannot set aside old copy of " + targetName);
+                return null;
+            }
+        }
+        Uri renamed = renameInSnapshot(dir, sourceName, targetName);
+        if (renamed == null) {
+            Log.e(TAG, "replaceFile: Error renaming " + sourceName + " to " + targetName);
+            if (target != null && renameInSnapshot(dir, backupName, targetName) == null) {
+                Log.e(TAG, "replaceFile: Cannot restore old copy of " + targetName + " from " + backupName);
+            }
+            return null;
+        }
+        if (target != null && !deleteFile(dir, backupName)) {
+            // Left as a stray file for the next sync to clean up
+            Log.w(TAG, "replaceFile: Cannot delete old copy of " + targetName);
+        }
+        return renamed;
+    }
+
+    /**
+     * Renames a file and records the new name in the snapshot.
+     * @param dir     The snapshot of the directory.
+     * @param name    The current name of the file.
+     * @param newName The name it should get; must not be taken.
+     * @return The URI of the file under its new name, or null on failure.
+     */
+    private Uri renameInSnapshot(DirectorySnapshot dir, String name, String newName) {
+        DirectorySnapshot.Entry entry = dir.get(name);
+        try {
+            Uri renamed = DocumentsContract.renameDocument(context.getContentResolver(),
+                    documentUri(dir, entry), newName);
+            if (renamed == null) return null;
+            dir.remove(name);
+            dir.put(newName, new DirectorySnapshot.Entry(DocumentsContract.getDocumentId(renamed),
+                    entry.mimeType, System.currentTimeMillis(), entry.size));
+            return renamed;
+        } catch (Exception e) {
+            Log.e(TAG, "renameInSnapshot: Error renaming " + name + " to " + newName, e);
+            return null;
+        }
+    }
+
+    /**
+     * Renames and/or moves a file to another directory of the same tree, replacing any file of the
+     * new name there. The document keeps its content, so this costs a few provider calls instead
+     * of a download.
+     * @param source  The snapshot of the directory holding the file.
+     * @param name    The current name of the file.
+     * @param target  The snapshot of the directory to move the file into; may be source itself.
+     * @param newName The name the file should end up with.
+     * @return The URI of the file at its new place, or null on failure (e.g. a provider that does
+     *         not support moving).
+     */
+    public Uri moveFile(DirectorySnapshot source, String name, DirectorySnapshot target, String newName) {
+        DirectorySnapshot.Entry entry = source.get(name);
+        if (entry == null || entry.isDirectory()) return null;
+        if (source.getDocumentId().equals(target.getDocumentId())) {
+            return name.equals(newName) ? documentUri(source, entry) : replaceFile(source, name, newName);
+        }
+        try {
+            // moveDocument keeps the name, and providers pick another one if it is taken in the target
+            String movingName = name;
+            for (int i = 1; target.get(movingName) != null || (i > 1 && source.get(movingName) != null); i++) {
+                movingName = "." + name + "." + i + ".moving";
+            }
+            if (!movingName.equals(name)) {
+                Uri renamed = DocumentsContract.renameDocument(context.getContentResolver(),
+                        documentUri(source, entry), movingName);
+                if (renamed == null) return null;
+                source.remove(name);
+                entry = new DirectorySnapshot.Entry(DocumentsContract.getDocumentId(renamed),
+                        entry.mimeType, entry.lastModified, entry.size);
+                source.put(movingName, entry);
+            }
+            Uri moved = DocumentsContract.moveDocument(context.getContentResolver(),
+                    documentUri(source, entry), directoryUri(source), directoryUri(target));
+            if (moved == null) return null;
+            source.remove(movingName);
+            target.put(movingName, new DirectorySnapshot.Entry(DocumentsContract.getDocumentId(moved),
+                    entry.mimeType, entry.lastModified, entry.size));
+            return movingName.equals(newName) ? moved : replaceFile(target, movingName, newName);
+        } catch (Exception e) {
+            Log.e(TAG, "moveFile: Error moving " + name + " to " + newName, e);
+            return null;
+        }
+    }
+
     /**
      * Opens an OutputStream for writing to the specified file URI.
      * @param fileUri The URI of the file to open.
@@ -199,4 +357,108 @@ public class SAFManager {
             return null;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Opens an InputStream for reading the specified file URI.
+     * @param fileUri The URI of the file to open.
+     * @return An InputStream for reading, or null if opening fails.
+     */
+    public InputStream openFileInputStream(Uri fileUri) {
+        try {
+            return context.getContentResolver().openInputStream(fileUri);
+        } catch (Exception e) {
+            // Any exception means opening failed
+            return null;
+        }
+    }
+
+    /**
+     * Copies the content of one file over another, synced to disk. File-backed documents are
+     * copied by the kernel through their channels; others are streamed through a buffer.
+     * @param sourceUri The URI of the file to read.
+     * @param targetUri The URI of the file to overwrite.
+     * @return The number of bytes copied, or -1 if the copy failed.
+     */
+    public long copyContent(Uri sourceUri, Uri targetUri) {
+        try (InputStream in = openFileInputStream(sourceUri);
+             FileOutputStream out = openFileOutputStream(targetUri, 0)) {
+            if (in == null || out == null) return -1;
+            long copied = 0;
+            if (in instanceof FileInputStream) {
+                FileChannel source = ((FileInputStream) in).getChannel();
+                long size = source.size();
+                ChannelOutputStream.preallocate(out, size);
+                while (copied < size) {
+                    long count = source.transferTo(copied, size - copied, out.getChannel());
+                    if (count <= 0) break;
+                    copied += count;
+                }
+            } else {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, read);
+                    copied += read;
+                }
+            }
+            out.getFD().sync();
+            return copied;
+        } catch (Exception e) {
+            Log.e(TAG, "copyContent: Error copying " + sourceUri + " to " + targetUri, e);
+            return -1;
+        }
+    }
+
+    /**
+     * Opens a file for writing from a given offset, keeping the bytes before it.
+     * Anything past the offset is discarded, so a resumed write never leaves stale bytes behind.
+     * @param fileUri The URI of the file to open.
+     * @param offset  The byte position to continue writing at.
+     * @return A FileOutputStream positioned at the offset, or null if the file cannot be opened
+     *         for random access (e.g. a provider that only offers pipes).
+     */
+    public FileOutputStream openFileOutputStream(Uri fileUri, long offset) {
+        FileOutputStream out = null;
+        try {
+            ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(fileUri, "rw");
+            if (pfd == null) return null;
+            out = new ParcelFileDescriptor.AutoCloseOutputStream(pfd);
+            out.getChannel().truncate(offset).position(offset);
+            return out;
+        } catch (Exception e) {
+            Log.w(TAG, "openFileOutputStream: Cannot open for resume: " + fileUri, e);
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (Exception ignore) {
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @param dir A directory snapshot.
+     * @return The tree URI the directory was granted through.
+     */
+    static Uri treeUriOf(DirectorySnapshot dir) {
+        return Uri.parse(dir.getTreeUri());
+    }
+
+    /**
+     * @param dir A directory snapshot.
+     * @return The document URI of the directory itself.
+     */
+    static Uri directoryUri(DirectorySnapshot dir) {
+        return DocumentsContract.buildDocumentUriUsingTree(treeUriOf(dir), dir.getDocumentId());
+    }
+
+    /**
+     * @param dir   A directory snapshot.
+     * @param entry One of its children.
+     * @return The document URI of the child.
+     */
+    static Uri documentUri(DirectorySnapshot dir, DirectorySnapshot.Entry entry) {
+        return DocumentsContract.buildDocumentUriUsingTree(treeUriOf(dir), entry.documentId);
+    }
+}
@@ -0,0 +1,545 @@
+package com.barak.drivesync;
+
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Trace;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * SyncEngine mirrors one Drive folder into one local SAF folder. It has no UI: the DriveSync
+ * activity starts it through SyncService, and it can be driven directly from tests or benchmarks.
+ * A sync is incremental when a changes token from an earlier successful sync of the same folder
+ * pair is available, and falls back to listing the whole tree otherwise.
+ * At most one sync runs per folder pair in the process; manual and scheduled triggers that
+ * overlap are coalesced into the sync already running.
+ * Each run records its SyncMetrics, shows its phases as android.os.Trace sections in Perfetto or
+ * systrace, and exports the metrics as JSON when it ends.
+ */
+public class SyncEngine {
+    private static final String TAG = "SyncEngine";
+    // Logs each local move and deletion; off unless the tag is loggable at DEBUG
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    // SharedPreferences keys read and written by the engine
+    private static final String KEY_DOWNLOAD_CONCURRENCY = "download_concurrency";
+    private static final String KEY_CHANGES_PAGE_TOKEN = "changes_page_token";
+    private static final String KEY_CHANGES_SCOPE = "changes_scope";
+
+    // Folder pairs with a sync in progress, shared by every engine in the process
+    private static final Set<String> activeScopes = ConcurrentHashMap.newKeySet();
+
+    private final DriveManager driveManager;
+    private final SAFManager safManager;
+    private final SyncIndex syncIndex;
+    private final DownloadJournal downloadJournal;
+    private final SharedPreferences prefs;
+    private final String driveFolderId;
+    private final Uri localDirUri;
+    // Changes are only valid for the folder pair they were recorded against
+    private final String syncScope;
+
+    // Download engine of the sync in progress, or null when idle
+    private volatile DownloadEngine activeDownloadEngine;
+    private volatile boolean cancelled = false;
+    // Metrics of the sync in progress or of the last one, or null before the first run
+    private volatile SyncMetrics metrics;
+    // File the metrics are written to after each sync, or null
+    private File metricsFile;
+
+    /**
+     * Creates an engine for one folder pair.
+     * @param driveManager    The signed-in DriveManager.
+     * @param safManager      The SAFManager used to read and write the local folder.
+     * @param syncIndex       The persistent record of synced files.
+     * @param downloadJournal The journal that lets interrupted downloads resume.
+     * @param prefs           Preferences holding the changes token and tuning values.
+     * @param driveFolderId   The ID of the Drive folder to mirror.
+     * @param localDirUri     The tree URI of the local folder to mirror into.
+     */
+    public SyncEngine(DriveManager driveManager, SAFManager safManager, SyncIndex syncIndex,
+                      DownloadJournal downloadJournal, SharedPreferences prefs,
+                      String driveFolderId, Uri localDirUri) {
+        this.driveManager = driveManager;
+        this.safManager = safManager;
+        this.syncIndex = syncIndex;
+        this.downloadJournal = downloadJournal;
+        this.prefs = prefs;
+        this.driveFolderId = driveFolderId;
+        this.localDirUri = localDirUri;
+        this.syncScope = driveFolderId + "|" + localDirUri;
+    }
+
+    /**
+     * Checks whether the local folder is known to be up to date, at the cost of one small request.
+     * Drive's start page token only moves when something changes, so if it still equals the token
+     * saved by the last successful sync there is nothing to do.
+     * @return true if nothing changed in Drive since the last successful sync of this folder pair;
+     *         false if a sync is needed (or no sync has completed yet).
+     * @throws Exception if the token cannot be fetched.
+     */
+    public boolean isUpToDate() throws Exception {
+        String savedToken = loadChangesPageToken();
+        return savedToken != null && savedToken.equals(driveManager.getStartPageToken());
+    }
+
+    /**
+     * Sets the file the metrics of each sync are written to as JSON once it ends, successful or not.
+     * @param metricsFile The file, replaced after every sync; null to only log the metrics.
+     */
+    public void setMetricsFile(File metricsFile) {
+        this.metricsFile = metricsFile;
+    }
+
+    /**
+     * Returns the metrics of the sync in progress, which are updated as it runs, or of the last
+     * sync this engine ran.
+     * @return The metrics, or null if the engine has not run yet.
+     */
+    public SyncMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Runs one sync. Blocks until every download has finished.
+     * @param listener Listener receiving progress snapshots every ProgressPublisher.DEFAULT_INTERVAL_MILLIS
+     *                 while files download, or null.
+     * @return Counters for the sync summary, or null if a sync of the same folder pair was already
+     *         running; that sync covers this request.
+     * @throws Exception if listing fails or the sync was cancelled.
+     */
+    public SyncSummary run(ProgressPublisher.Listener listener) throws Exception {
+        if (!activeScopes.add(syncScope)) {
+            Log.i(TAG, "A sync of this folder pair is already running. Coalescing.");
+            return null;
+        }
+        ProgressPublisher progress = listener != null
+                ? new ProgressPublisher(listener, ProgressPublisher.DEFAULT_INTERVAL_MILLIS) : null;
+        SyncMetrics syncMetrics = new SyncMetrics();
+        metrics = syncMetrics;
+        driveManager.setMetrics(syncMetrics);
+        Trace.beginSection("DriveSync:sync");
+        try {
+            if (progress != null) progress.start();
+            return runExclusive(progress);
+        } finally {
+            Trace.endSection();
+            if (progress != null) progress.stop();
+            activeScopes.remove(syncScope);
+            syncMetrics.finish();
+            exportMetrics(syncMetrics);
+        }
+    }
+
+    /**
+     * Runs one sync while holding the folder pair.
+     * @param progress Publisher receiving download progress, or null.
+     * @return Counters for the sync summary.
+     * @throws Exception if listing fails or the sync was cancelled.
+     */
+    private SyncSummary runExclusive(ProgressPublisher progress) throws Exception {
+        SyncSummary summary = null;
+
+        // 1. Try an incremental sync from the saved changes token
+        String savedToken = loadChangesPageToken();
+        if (savedToken != null) {
+            try {
+                summary = runIncrementalSync(savedToken, progress);
+            } catch (DriveManager.InvalidPageTokenException e) {
+                Log.w(TAG, "Saved changes token is no longer valid. Falling back to full sync.", e);
+                clearChangesState();
+            }
+        }
+
+        // 2. First sync, the token could not be used, or folders changed: list everything
+        if (summary == null) {
+            summary = runFullSync(progress);
+        }
+
+        Log.i(TAG, "Sync complete. " + summary);
+        driveManager.logTransportStats();
+        return summary;
+    }
+
+    /**
+     * Stops the sync in progress: queued downloads are dropped and running ones interrupted.
+     * Safe to call from any thread.
+     */
+    public void cancel() {
+        cancelled = true;
+        DownloadEngine engine = activeDownloadEngine;
+        if (engine != null) {
+            engine.cancel();
+        }
+    }
+
+    /**
+     * Mirrors the whole Drive folder tree by listing it completely and diffing it against the sync index
+     * and the local folders. Records a changes token on success so the next sync can be incremental.
+     * @param progress Publisher receiving download progress, or null.
+     * @return Counters for the sync summary.
+     * @throws Exception if listing fails.
+     */
+    private SyncSummary runFullSync(ProgressPublisher progress) throws Exception {
+        Log.i(TAG, "runFullSync: Listing the whole Drive folder tree.");
+
+        // 1. Take the changes token before listing so no change made during the sync is missed
+        String startPageToken = driveManager.getStartPageToken();
+
+        // 2. List the local root once; later lookups, creates and deletes go through the snapshot.
+        //    Subfolders are snapshotted as the walk reaches them.
+        Log.d(TAG, "Listing files in local folder.");
+        long started = System.nanoTime();
+        DirectorySnapshot localDir = safManager.snapshotDirectory(localDirUri);
+        metrics.recordPhase(SyncMetrics.Phase.LIST, started);
+
+        // 3. Load what previous syncs recorded; only one folder pair is kept in the index
+        started = System.nanoTime();
+        syncIndex.retainScope(syncScope);
+        IndexSnapshot index = syncIndex.loadSnapshot(syncScope);
+        metrics.recordPhase(SyncMetrics.Phase.PLAN, started);
+
+        // 4. Walk the Drive tree on parallel listing threads. Each listed page is diffed straight away
+        //    and new or updated files are queued for download while deeper folders are still listed.
+        DownloadEngine engine = startDownloadEngine(progress);
+        int moved;
+        SyncPlanner planner = new SyncPlanner(index, downloadJournal.loadDriveIds(), engine);
+        TreeWalker walker = new TreeWalker(driveManager, safManager, planner, TreeWalker.DEFAULT_CONCURRENCY,
+                metrics);
+        try {
+            Log.d(TAG, "Listing Drive folder tree: " + driveFolderId);
+            Trace.beginSection("DriveSync:walk");
+            try {
+                walker.walk(driveFolderId, localDir);
+            } finally {
+                Trace.endSection();
+            }
+            Log.i(TAG, "runFullSync: " + planner.getQueuedCount() + " of " +
+                    planner.getDriveFileCount() + " Drive files to sync, " + planner.getMoveCount() + " to move.");
+
+            // 5. Move local copies of renamed or moved files; those that cannot be moved join the downloads
+            moved = moveLocal(planner.getLocalMoves(), engine);
+
+            // 6. Wait for all queued downloads; per-file results are aggregated by the engine
+            awaitDownloads(engine);
+            checkNotCancelled();
+        } catch (Exception e) {
+            // Cancelled or interrupted part-way; do not leave downloads running against a partial plan
+            engine.cancel();
+            throw e;
+        } finally {
+            activeDownloadEngine = null;
+        }
+
+        SyncSummary summary = new SyncSummary(engine);
+        summary.moved = moved;
+        // Folders that could not be created locally or listed leave their subtree unsynced, and the
+        // page token is withheld below so the next sync lists the whole tree again
+        summary.failed += planner.getFailedFolderCount();
+        // 7. Count skipped files (already up to date)
+        summary.skipped += planner.getSkippedCount();
+        Log.d(TAG, "Skipped (already up to date): " + summary.skipped);
+
+        // 8. Delete local files and folders that are not present in Drive, and bring the index in line.
+        //    Only reached once the whole tree has been listed.
+        summary.deleted = deleteLocal(planner.getLocalDeletions());
+        syncIndex.putAll(syncScope, planner.getIndexUpdates());
+        syncIndex.removeAll(syncScope, planner.getStaleIndexEntries());
+
+        // 9. Failed files must be retried by a full sync, so only record the token on success
+        if (summary.failed == 0) {
+            saveChangesPageToken(startPageToken);
+        } else {
+            clearChangesState();
+        }
+        return summary;
+    }
+
+    /**
+     * Applies only the Drive changes recorded since the last successful sync.
+     * Changed files are resolved through the sync index; local folders are listed only
+     * when there is something to write or delete in them.
+     * @param pageToken The changes token saved by the previous sync.
+     * @param progress  Publisher receiving download progress, or null.
+     * @return Counters for the sync summary, or null if folders changed and a full sync is needed.
+     * @throws DriveManager.InvalidPageTokenException if Drive no longer accepts the token.
+     * @throws Exception if listing changes fails.
+     */
+    private SyncSummary runIncrementalSync(String pageToken, ProgressPublisher progress) throws Exception {
+        Log.i(TAG, "runIncrementalSync: Reading Drive changes since last sync.");
+
+        // 1. Collect all changes and resolve them against the sync index
+        ChangePlanner planner = new ChangePlanner(driveFolderId, syncIndex, syncScope);
+        String newPageToken;
+        long started = System.nanoTime();
+        Trace.beginSection("DriveSync:changes");
+        try {
+            newPageToken = driveManager.listChanges(pageToken, planner::onPage);
+        } finally {
+            Trace.endSection();
+            metrics.recordPhase(SyncMetrics.Phase.LIST, started);
+        }
+        started = System.nanoTime();
+        planner.plan();
+        metrics.recordPhase(SyncMetrics.Phase.PLAN, started);
+
+        if (planner.requiresFullSync()) {
+            Log.i(TAG, "runIncrementalSync: Folder structure changed, re-listing the tree.");
+            return null;
+        }
+
+        if (!planner.hasLocalActions()) {
+            Log.i(TAG, "runIncrementalSync: Local folder is up to date.");
+            SyncSummary summary = new SyncSummary();
+            summary.skipped = planner.getSkippedCount();
+            syncIndex.putAll(syncScope, planner.getIndexUpdates());
+            syncIndex.removeAll(syncScope, planner.getStaleIndexEntries());
+            saveChangesPageToken(newPageToken);
+            return summary;
+        }
+
+        // 2. Move renamed or moved files locally, and download changed files into the folders they belong in
+        Function<String, DirectorySnapshot> localDirs = createLocalDirResolver();
+        DownloadEngine engine = startDownloadEngine(progress);
+        int moved;
+        try {
+            moved = moveLocal(planner.getLocalMoves(localDirs), engine);
+            planner.queueDownloads(engine, localDirs);
+            Log.i(TAG, "runIncrementalSync: " + planner.getQueuedCount() + " files to sync.");
+            awaitDownloads(engine);
+            checkNotCancelled();
+        } catch (Exception e) {
+            engine.cancel();
+            throw e;
+        } finally {
+            activeDownloadEngine = null;
+        }
+
+        SyncSummary summary = new SyncSummary(engine);
+        summary.moved = moved;
+        summary.failed += planner.getUnresolvedCount();
+        summary.skipped += planner.getSkippedCount();
+
+        // 3. Delete local copies of files that were removed, trashed, renamed or moved away
+        summary.deleted = deleteLocal(planner.getLocalDeletions(localDirs));
+        syncIndex.putAll(syncScope, planner.getIndexUpdates());
+        syncIndex.removeAll(syncScope, planner.getStaleIndexEntries());
+
+        // 4. Keep the old token on failure so the same changes are replayed next time
+        if (summary.failed == 0) {
+            saveChangesPageToken(newPageToken);
+        }
+        return summary;
+    }
+
+    /**
+     * Creates the download engine for the current sync and makes it cancellable.
+     * @param progress Publisher receiving download progress, or null.
+     * @return A new DownloadEngine writing into the local folder tree.
+     * @throws InterruptedException if the sync was cancelled before it started downloading.
+     */
+    private DownloadEngine startDownloadEngine(ProgressPublisher progress) throws InterruptedException {
+        int concurrency = prefs.getInt(KEY_DOWNLOAD_CONCURRENCY, DownloadEngine.DEFAULT_CONCURRENCY);
+        DownloadEngine engine = new DownloadEngine(driveManager, safManager, syncIndex, downloadJournal,
+                syncScope, concurrency, progress);
+        activeDownloadEngine = engine;
+        // A cancel() that raced with the assignment above would otherwise be lost
+        if (cancelled) {
+            engine.cancel();
+            activeDownloadEngine = null;
+        }
+        checkNotCancelled();
+        return engine;
+    }
+
+    /**
+     * Waits for every queued download, as one trace section.
+     * @param engine The engine of the current sync.
+     * @throws InterruptedException if the calling thread is interrupted while waiting.
+     */
+    private void awaitDownloads(DownloadEngine engine) throws InterruptedException {
+        Trace.beginSection("DriveSync:await downloads");
+        try {
+            engine.awaitCompletion();
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Logs the metrics of a finished sync and writes them to the metrics file, if one is set.
+     * @param syncMetrics The metrics of the sync.
+     */
+    private void exportMetrics(SyncMetrics syncMetrics) {
+        String json = syncMetrics.toJson();
+        Log.i(TAG, "Sync metrics: " + json);
+        if (metricsFile == null) return;
+        try (OutputStream out = new FileOutputStream(metricsFile)) {
+            out.write(json.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write sync metrics to " + metricsFile, e);
+        }
+    }
+
+    /**
+     * @throws InterruptedException if cancel() has been called.
+     */
+    private void checkNotCancelled() throws InterruptedException {
+        if (cancelled) {
+            throw new InterruptedException("Sync cancelled");
+        }
+    }
+
+    /**
+     * Creates a resolver from Drive folder IDs to snapshots of their local directories.
+     * Each directory is listed at most once, the first time it is needed.
+     * @return The resolver; it returns null for folders that are not mirrored locally.
+     */
+    private Function<String, DirectorySnapshot> createLocalDirResolver() {
+        Map<String, DirectorySnapshot> snapshots = new HashMap<>();
+        return folderId -> {
+            if (snapshots.containsKey(folderId)) {
+                return snapshots.get(folderId);
+            }
+            DirectorySnapshot snapshot = null;
+            long started = System.nanoTime();
+            if (driveFolderId.equals(folderId)) {
+                snapshot = safManager.snapshotDirectory(localDirUri);
+            } else {
+                IndexEntry entry = syncIndex.get(syncScope, folderId);
+                if (entry != null && entry.isFolder && entry.localDocumentId != null) {
+                    snapshot = safManager.snapshotDirectory(localDirUri, entry.localDocumentId);
+                }
+            }
+            metrics.recordPhase(SyncMetrics.Phase.LIST, started);
+            snapshots.put(folderId, snapshot);
+            return snapshot;
+        };
+    }
+
+    /**
+     * Renames or moves local copies to follow files renamed or moved in Drive, and records their
+     * new place in the index. A copy that is missing, was changed locally, or cannot be moved by the
+     * provider is downloaded again instead.
+     * @param moves  The local moves to apply.
+     * @param engine The engine downloading the files that cannot be moved.
+     * @return Number of files moved.
+     */
+    private int moveLocal(List<LocalMove> moves, DownloadEngine engine) {
+        int movedCount = 0;
+        for (LocalMove move : moves) {
+            String name = move.driveFile.getName();
+            DirectorySnapshot.Entry local = move.sourceDir != null ? move.sourceDir.get(move.from.name) : null;
+            Uri movedUri = null;
+            if (local != null && !local.isDirectory() && local.lastModified == move.from.localModified) {
+                long started = System.nanoTime();
+                Trace.beginSection("DriveSync:move");
+                try {
+                    movedUri = safManager.moveFile(move.sourceDir, move.from.name, move.targetDir, name);
+                } finally {
+                    Trace.endSection();
+                    metrics.recordPhase(SyncMetrics.Phase.WRITE, started);
+                }
+            }
+            if (movedUri == null) {
+                if (DEBUG) Log.d(TAG, "Cannot reuse local copy, downloading: " + name);
+                engine.submit(move.driveFile, move.parentId, move.targetDir, true);
+                continue;
+            }
+            if (DEBUG) Log.d(TAG, "Moved local copy: " + move.from.name + " -> " + name);
+            movedCount++;
+            try {
+                syncIndex.put(syncScope, IndexEntry.fromDriveFile(move.driveFile, move.parentId,
+                        DocumentsContract.getDocumentId(movedUri), safManager.getLastModified(movedUri)));
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to record " + name + " in sync index.", e);
+            }
+        }
+        return movedCount;
+    }
+
+    /**
+     * Deletes the given local files and directories. Directories are deleted with their contents.
+     * Entries that are already gone (e.g. moved away by moveLocal) are skipped.
+     * @param deletions The local entries to delete.
+     * @return Number of entries deleted.
+     */
+    private int deleteLocal(List<LocalDeletion> deletions) {
+        Log.d(TAG, "Checking for local files to delete.");
+        int deletedCount = 0;
+        for (LocalDeletion deletion : deletions) {
+            if (deletion.dir.get(deletion.name) == null) continue;
+            if (DEBUG) {
+                Log.d(TAG, "Deleting local " + (deletion.isDirectory ? "folder" : "file") + " not in Drive: " +
+                        deletion.name);
+            }
+            long started = System.nanoTime();
+            Trace.beginSection("DriveSync:delete");
+            boolean deleted;
+            try {
+                deleted = deletion.isDirectory
+                        ? safManager.deleteDirectory(deletion.dir, deletion.name)
+                        : safManager.deleteFile(deletion.dir, deletion.name);
+            } finally {
+                Trace.endSection();
+                metrics.recordPhase(SyncMetrics.Phase.DELETE, started);
+            }
+            if (deleted) {
+                deletedCount++;
+            } else {
+                Log.e(TAG, "Failed to delete: " + deletion.name);
+            }
+        }
+        return deletedCount;
+    }
+
+    /**
+     * Returns the saved changes token if it was recorded for this folder pair.
+     * @return The saved page token, or null if a full sync is needed.
+     */
+    private String loadChangesPageToken() {
+        if (!syncScope.equals(prefs.getString(KEY_CHANGES_SCOPE, null))) {
+            return null;
+        }
+        // A token without an index (e.g. after an index upgrade) cannot resolve changes
+        if (!syncIndex.hasEntries(syncScope)) {
+            return null;
+        }
+        return prefs.getString(KEY_CHANGES_PAGE_TOKEN, null);
+    }
+
+    /**
+     * Saves the changes token for the next incremental sync.
+     * @param pageToken The changes token to resume from.
+     */
+    private void saveChangesPageToken(String pageToken) {
+        Log.d(TAG, "saveChangesPageToken: Saving changes token.");
+        prefs.edit()
+                .putString(KEY_CHANGES_SCOPE, syncScope)
+                .putString(KEY_CHANGES_PAGE_TOKEN, pageToken)
+                .apply();
+    }
+
+    /**
+     * Forgets the saved changes token so the next sync lists the whole folder.
+     */
+    private void clearChangesState() {
+        Log.d(TAG, "clearChangesState: Next sync will be a full sync.");
+        prefs.edit()
+                .remove(KEY_CHANGES_SCOPE)
+                .remove(KEY_CHANGES_PAGE_TOKEN)
+                .apply();
+    }
+}
@@ -0,0 +1,255 @@
+package com.barak.drivesync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import java.util.Collection;
+
+/**
+ * SyncIndex is the on-device record of every file and folder mirrored by a previous sync, keyed by Drive ID.
+ * It stores the Drive version that was downloaded (checksum, size, modified time) together with the
+ * local document it was written to, so later syncs can decide what changed without scanning either side.
+ * Each row also records the Drive folder it was found in, so the folder tree can be rebuilt from the index.
+ * Rows are scoped to the Drive/local folder pair they were synced for.
+ */
+public class SyncIndex extends SQLiteOpenHelper {
+    private static final String TAG = "SyncIndex";
+    private static final String DATABASE_NAME = "sync_index.db";
+    private static final int DATABASE_VERSION = 2;
+
+    private static final String TABLE_FILES = "synced_files";
+    private static final String COL_SCOPE = "scope";
+    private static final String COL_DRIVE_ID = "drive_id";
+    private static final String COL_PARENT_ID = "parent_id";
+    private static final String COL_NAME = "name";
+    private static final String COL_IS_FOLDER = "is_folder";
+    private static final String COL_MD5 = "md5";
+    private static final String COL_SIZE = "size";
+    private static final String COL_DRIVE_MODIFIED = "drive_modified";
+    private static final String COL_LOCAL_DOC_ID = "local_doc_id";
+    private static final String COL_LOCAL_MODIFIED = "local_modified";
+
+    private static final String[] ALL_COLUMNS = {
+            COL_DRIVE_ID, COL_PARENT_ID, COL_NAME, COL_IS_FOLDER, COL_MD5, COL_SIZE,
+            COL_DRIVE_MODIFIED, COL_LOCAL_DOC_ID, COL_LOCAL_MODIFIED
+    };
+
+    /**
+     * Opens (or creates) the sync index database.
+     * @param context The application context.
+     */
+    public SyncIndex(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_FILES + " (" +
+                COL_SCOPE + " TEXT NOT NULL, " +
+                COL_DRIVE_ID + " TEXT NOT NULL, " +
+                COL_PARENT_ID + " TEXT NOT NULL, " +
+                COL_NAME + " TEXT NOT NULL, " +
+                COL_IS_FOLDER + " INTEGER NOT NULL, " +
+                COL_MD5 + " TEXT, " +
+                COL_SIZE + " INTEGER NOT NULL, " +
+                COL_DRIVE_MODIFIED + " INTEGER NOT NULL, " +
+                COL_LOCAL_DOC_ID + " TEXT, " +
+                COL_LOCAL_MODIFIED + " INTEGER NOT NULL, " +
+                "PRIMARY KEY (" + COL_SCOPE + ", " + COL_DRIVE_ID + "))");
+        // Name lookups resolve which Drive file owns a local name in a folder
+        db.execSQL("CREATE INDEX idx_" + TABLE_FILES + "_name ON " + TABLE_FILES +
+                " (" + COL_SCOPE + ", " + COL_PARENT_ID + ", " + COL_NAME + ")");
+        Log.i(TAG, "Sync index database created.");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // The index is a cache of sync state; rebuilding it only costs one full sync
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_FILES);
+        onCreate(db);
+    }
+
+    /**
+     * Looks up a synced file by its Drive ID.
+     * @param scope   Identifies the Drive/local folder pair.
+     * @param driveId The Drive file ID.
+     * @return The entry, or null if the file has not been synced.
+     */
+    public IndexEntry get(String scope, String driveId) {
+        try (Cursor cursor = getReadableDatabase().query(TABLE_FILES, ALL_COLUMNS,
+                COL_SCOPE + " = ? AND " + COL_DRIVE_ID + " = ?", new String[]{scope, driveId},
+                null, null, null)) {
+            return cursor.moveToFirst() ? readEntry(cursor) : null;
+        }
+    }
+
+    /**
+     * Looks up which Drive file a local name in a folder belongs to.
+     * @param scope    Identifies the Drive/local folder pair.
+     * @param parentId The ID of the Drive folder.
+     * @param name     The local file name.
+     * @return The entry, or null if no synced file in that folder has that name.
+     */
+    public IndexEntry getByName(String scope, String parentId, String name) {
+        try (Cursor cursor = getReadableDatabase().query(TABLE_FILES, ALL_COLUMNS,
+                COL_SCOPE + " = ? AND " + COL_PARENT_ID + " = ? AND " + COL_NAME + " = ?",
+                new String[]{scope, parentId, name},
+                null, null, null, "1")) {
+            return cursor.moveToFirst() ? readEntry(cursor) : null;
+        }
+    }
+
+    /**
+     * Loads every entry of a folder pair in a single query, into a compact snapshot
+     * rather than one IndexEntry per row.
+     * @param scope Identifies the Drive/local folder pair.
+     * @return The snapshot, sorted by Drive ID.
+     */
+    public IndexSnapshot loadSnapshot(String scope) {
+        IndexSnapshot snapshot;
+        // Binary collation orders the ASCII Drive IDs the same way as String.compareTo
+        try (Cursor cursor = getReadableDatabase().query(TABLE_FILES, ALL_COLUMNS,
+                COL_SCOPE + " = ?", new String[]{scope}, null, null, COL_DRIVE_ID)) {
+            snapshot = new IndexSnapshot(cursor.getCount());
+            while (cursor.moveToNext()) {
+                snapshot.add(
+                        cursor.getString(0),
+                        cursor.getString(1),
+                        cursor.getString(2),
+                        cursor.getInt(3) != 0,
+                        cursor.isNull(4) ? null : cursor.getString(4),
+                        cursor.getLong(5),
+                        cursor.getLong(6),
+                        cursor.isNull(7) ? null : cursor.getString(7),
+                        cursor.getLong(8));
+            }
+        }
+        Log.d(TAG, "Loaded " + snapshot.size() + " index entries.");
+        return snapshot.seal();
+    }
+
+    /**
+     * Checks whether any sync has been recorded for a folder pair.
+     * @param scope Identifies the Drive/local folder pair.
+     * @return true if the index holds at least one entry for the pair.
+     */
+    public boolean hasEntries(String scope) {
+        try (Cursor cursor = getReadableDatabase().query(TABLE_FILES, new String[]{COL_DRIVE_ID},
+                COL_SCOPE + " = ?", new String[]{scope}, null, null, null, "1")) {
+            return cursor.moveToFirst();
+        }
+    }
+
+    /**
+     * Inserts or replaces the entry of a synced file. Safe to call from several threads.
+     * @param scope Identifies the Drive/local folder pair.
+     * @param entry The entry to store.
+     */
+    public void put(String scope, IndexEntry entry) {
+        getWritableDatabase().insertWithOnConflict(TABLE_FILES, null, toValues(scope, entry),
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Inserts or replaces several entries in one transaction.
+     * @param scope   Identifies the Drive/local folder pair.
+     * @param entries The entries to store.
+     */
+    public void putAll(String scope, Collection<IndexEntry> entries) {
+        if (entries.isEmpty()) return;
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (IndexEntry entry : entries) {
+                db.insertWithOnConflict(TABLE_FILES, null, toValues(scope, entry), SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Removes the entry of a file that is no longer mirrored.
+     * @param scope   Identifies the Drive/local folder pair.
+     * @param driveId The Drive file ID.
+     */
+    public void remove(String scope, String driveId) {
+        getWritableDatabase().delete(TABLE_FILES, COL_SCOPE + " = ? AND " + COL_DRIVE_ID + " = ?",
+                new String[]{scope, driveId});
+    }
+
+    /**
+     * Removes several entries in one transaction.
+     * @param scope    Identifies the Drive/local folder pair.
+     * @param driveIds The Drive file IDs to remove.
+     */
+    public void removeAll(String scope, Collection<String> driveIds) {
+        if (driveIds.isEmpty()) return;
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (String driveId : driveIds) {
+                db.delete(TABLE_FILES, COL_SCOPE + " = ? AND " + COL_DRIVE_ID + " = ?",
+                        new String[]{scope, driveId});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Drops the entries of every other folder pair; only one pair is mirrored at a time.
+     * @param scope The folder pair to keep.
+     */
+    public void retainScope(String scope) {
+        int removed = getWritableDatabase().delete(TABLE_FILES, COL_SCOPE + " != ?", new String[]{scope});
+        if (removed > 0) {
+            Log.d(TAG, "Removed " + removed + " entries of previously synced folders.");
+        }
+    }
+
+    /**
+     * Reads the entry at the cursor's current row.
+     * @param cursor A cursor positioned on a row queried with ALL_COLUMNS.
+     * @return The entry.
+     */
+    private static IndexEntry readEntry(Cursor cursor) {
+        return new IndexEntry(
+                cursor.getString(0),
+                cursor.getString(1),
+                cursor.getString(2),
+                cursor.getInt(3) != 0,
+                cursor.isNull(4) ? null : cursor.getString(4),
+                cursor.getLong(5),
+                cursor.getLong(6),
+                cursor.isNull(7) ? null : cursor.getString(7),
+                cursor.getLong(8));
+    }
+
+    /**
+     * Converts an entry to column values.
+     * @param scope Identifies the Drive/local folder pair.
+     * @param entry The entry.
+     * @return ContentValues for insert.
+     */
+    private static ContentValues toValues(String scope, IndexEntry entry) {
+        ContentValues values = new ContentValues();
+        values.put(COL_SCOPE, scope);
+        values.put(COL_DRIVE_ID, entry.driveId);
+        values.put(COL_PARENT_ID, entry.parentId);
+        values.put(COL_NAME, entry.name);
+        values.put(COL_IS_FOLDER, entry.isFolder ? 1 : 0);
+        values.put(COL_MD5, entry.md5);
+        values.put(COL_SIZE, entry.size);
+        values.put(COL_DRIVE_MODIFIED, entry.driveModified);
+        values.put(COL_LOCAL_DOC_ID, entry.localDocumentId);
+        values.put(COL_LOCAL_MODIFIED, entry.localModified);
+        return values;
+    }
+}
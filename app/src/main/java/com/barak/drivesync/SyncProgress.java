@@ -0,0 +1,42 @@
+package com.barak.drivesync;
+
+/**
+ * A snapshot of sync progress, as published by ProgressPublisher.
+ * Totals grow while the Drive tree is still being listed.
+ */
+public class SyncProgress {
+    public final long bytesDone;
+    public final long bytesTotal;
+    public final int filesDone;
+    public final int filesTotal;
+    public final long bytesPerSecond;
+    public final long etaSeconds;
+
+    /**
+     * @param bytesDone      Bytes of queued files that are downloaded, or settled by a failure.
+     * @param bytesTotal     Bytes of all files queued so far.
+     * @param filesDone      Number of files processed so far, successful or not.
+     * @param filesTotal     Number of files queued so far.
+     * @param bytesPerSecond Recent download throughput.
+     * @param etaSeconds     Estimated seconds until the queued files are done, or -1 if unknown.
+     */
+    public SyncProgress(long bytesDone, long bytesTotal, int filesDone, int filesTotal,
+                        long bytesPerSecond, long etaSeconds) {
+        this.bytesDone = bytesDone;
+        this.bytesTotal = bytesTotal;
+        this.filesDone = filesDone;
+        this.filesTotal = filesTotal;
+        this.bytesPerSecond = bytesPerSecond;
+        this.etaSeconds = etaSeconds;
+    }
+
+    /**
+     * @return Percentage done, by bytes when sizes are known, otherwise by files.
+     */
+    public int getPercent() {
+        if (bytesTotal > 0) {
+            return (int) Math.min(100, bytesDone * 100 / bytesTotal);
+        }
+        return filesTotal > 0 ? filesDone * 100 / filesTotal : 0;
+    }
+}
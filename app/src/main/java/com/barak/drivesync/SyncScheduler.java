@@ -0,0 +1,136 @@
+package com.barak.drivesync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+import androidx.work.BackoffPolicy;
+import androidx.work.Constraints;
+import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.PeriodicWorkRequest;
+import androidx.work.WorkManager;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SyncScheduler keeps the selected folder pair fresh without user action by scheduling
+ * SyncWorker as unique periodic work. There is only ever one scheduled run in the queue,
+ * and runs that overlap a manual sync of the same folders are coalesced by SyncEngine.
+ * When Drive changes while a sync is running, a one-time follow-up run is queued so those
+ * changes do not wait a whole interval. Interval and constraints are read from SharedPreferences.
+ */
+public final class SyncScheduler {
+    private static final String TAG = "SyncScheduler";
+    private static final String UNIQUE_WORK_NAME = "periodic_sync";
+    private static final String FOLLOW_UP_WORK_NAME = "follow_up_sync";
+    /** Tag of follow-up runs, so a worker can tell it is one. */
+    public static final String FOLLOW_UP_TAG = "follow_up_sync";
+
+    // SharedPreferences keys for the schedule
+    private static final String KEY_SYNC_INTERVAL_MINUTES = "sync_interval_minutes";
+    private static final String KEY_SYNC_REQUIRE_UNMETERED = "sync_require_unmetered";
+    private static final String KEY_SYNC_REQUIRE_CHARGING = "sync_require_charging";
+    private static final String KEY_SYNC_REQUIRE_IDLE = "sync_require_idle";
+
+    /** Minutes between scheduled syncs when no explicit value is configured; 0 turns scheduling off. */
+    public static final long DEFAULT_INTERVAL_MINUTES = 6 * 60;
+    // Delay before the first retry of a failed scheduled sync
+    private static final long RETRY_BACKOFF_MINUTES = 15;
+    // Delay before a follow-up run, so a burst of Drive changes is picked up by one sync
+    private static final long FOLLOW_UP_DELAY_MINUTES = 5;
+
+    private SyncScheduler() {
+    }
+
+    /**
+     * Schedules (or reschedules with the current settings) the periodic sync of the saved folder pair.
+     * Cancels it if no folder pair is selected or scheduling is turned off. Safe to call repeatedly:
+     * an existing schedule is updated rather than restarted.
+     * @param context The calling context.
+     */
+    public static void schedule(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(DriveSync.PREFS_NAME, Context.MODE_PRIVATE);
+        long intervalMinutes = prefs.getLong(KEY_SYNC_INTERVAL_MINUTES, DEFAULT_INTERVAL_MINUTES);
+        if (!isEnabled(prefs)) {
+            cancel(context);
+            return;
+        }
+
+        // WorkManager rejects intervals below its minimum
+        long intervalMillis = Math.max(TimeUnit.MINUTES.toMillis(intervalMinutes),
+                PeriodicWorkRequest.MIN_PERIODIC_INTERVAL_MILLIS);
+        PeriodicWorkRequest request = new PeriodicWorkRequest.Builder(
+                SyncWorker.class, intervalMillis, TimeUnit.MILLISECONDS)
+                .setConstraints(buildConstraints(prefs))
+                .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, RETRY_BACKOFF_MINUTES, TimeUnit.MINUTES)
+                .build();
+        WorkManager.getInstance(context).enqueueUniquePeriodicWork(
+                UNIQUE_WORK_NAME, ExistingPeriodicWorkPolicy.UPDATE, request);
+        Log.i(TAG, "Scheduled sync every " + TimeUnit.MILLISECONDS.toMinutes(intervalMillis) + " minutes.");
+    }
+
+    /**
+     * Queues a follow-up run if Drive has changed since the sync an engine just finished, i.e. while
+     * it was running. Does nothing when scheduling is turned off. A follow-up already waiting is kept;
+     * one queued by a follow-up run itself waits for that run to end.
+     * @param context       The calling context.
+     * @param engine        The engine whose sync just completed.
+     * @param afterFollowUp true if called from a follow-up run.
+     */
+    public static void scheduleFollowUpIfChanged(Context context, SyncEngine engine, boolean afterFollowUp) {
+        SharedPreferences prefs = context.getSharedPreferences(DriveSync.PREFS_NAME, Context.MODE_PRIVATE);
+        if (!isEnabled(prefs)) return;
+        try {
+            if (engine.isUpToDate()) return;
+        } catch (Exception e) {
+            // The next periodic run checks again
+            Log.w(TAG, "Could not check Drive for changes made during the sync.", e);
+            return;
+        }
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(SyncWorker.class)
+                .setConstraints(buildConstraints(prefs))
+                .setInitialDelay(FOLLOW_UP_DELAY_MINUTES, TimeUnit.MINUTES)
+                .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, RETRY_BACKOFF_MINUTES, TimeUnit.MINUTES)
+                .addTag(FOLLOW_UP_TAG)
+                .build();
+        WorkManager.getInstance(context).enqueueUniqueWork(FOLLOW_UP_WORK_NAME,
+                afterFollowUp ? ExistingWorkPolicy.APPEND_OR_REPLACE : ExistingWorkPolicy.KEEP, request);
+        Log.i(TAG, "Drive changed during the sync. Follow-up sync in " + FOLLOW_UP_DELAY_MINUTES + " minutes.");
+    }
+
+    /**
+     * Cancels the periodic sync.
+     * @param context The calling context.
+     */
+    public static void cancel(Context context) {
+        WorkManager workManager = WorkManager.getInstance(context);
+        workManager.cancelUniqueWork(UNIQUE_WORK_NAME);
+        workManager.cancelUniqueWork(FOLLOW_UP_WORK_NAME);
+        Log.i(TAG, "Scheduled sync cancelled.");
+    }
+
+    /**
+     * @param prefs The app preferences.
+     * @return true if a folder pair is selected and scheduling is turned on.
+     */
+    private static boolean isEnabled(SharedPreferences prefs) {
+        return prefs.getLong(KEY_SYNC_INTERVAL_MINUTES, DEFAULT_INTERVAL_MINUTES) > 0
+                && prefs.getString(DriveSync.KEY_DRIVE_FOLDER_ID, null) != null
+                && prefs.getString(DriveSync.KEY_LOCAL_FOLDER_URI, null) != null;
+    }
+
+    /**
+     * @param prefs The app preferences.
+     * @return The constraints scheduled runs wait for.
+     */
+    private static Constraints buildConstraints(SharedPreferences prefs) {
+        return new Constraints.Builder()
+                .setRequiredNetworkType(prefs.getBoolean(KEY_SYNC_REQUIRE_UNMETERED, true)
+                        ? NetworkType.UNMETERED : NetworkType.CONNECTED)
+                .setRequiresCharging(prefs.getBoolean(KEY_SYNC_REQUIRE_CHARGING, true))
+                .setRequiresDeviceIdle(prefs.getBoolean(KEY_SYNC_REQUIRE_IDLE, false))
+                .build();
+    }
+}
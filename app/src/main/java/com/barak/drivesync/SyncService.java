@@ -0,0 +1,422 @@
+package com.barak.drivesync;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.ServiceInfo;
+import android.net.Uri;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * SyncService runs syncs in a foreground service, so a long sync keeps going at full speed
+ * after the DriveSync activity is closed or sent to the background. The activity starts a sync
+ * with start() and binds to the service to follow its progress; the sync itself is done by a
+ * SyncEngine on the service's own thread.
+ */
+public class SyncService extends Service {
+    private static final String TAG = "SyncService";
+
+    private static final String ACTION_SYNC = "com.barak.drivesync.action.SYNC";
+    private static final String ACTION_CANCEL = "com.barak.drivesync.action.CANCEL";
+    private static final String EXTRA_DRIVE_FOLDER_ID = "drive_folder_id";
+    private static final String EXTRA_DRIVE_FOLDER_NAME = "drive_folder_name";
+    private static final String EXTRA_LOCAL_DIR_URI = "local_dir_uri";
+    private static final String KEY_CONNECTION_POOL_SIZE = "connection_pool_size";
+    private static final String KEY_DOWNLOAD_SEGMENTS = "download_segments";
+    private static final String KEY_MIN_SEGMENT_SIZE = "min_segment_size";
+    // Debug override of the Drive API base URL, to sync against the harness's fake Drive server;
+    // ignored by release builds, which only ever talk to Google's servers
+    private static final String KEY_DRIVE_ROOT_URL = "drive_root_url";
+    // Metrics of the last sync, manual or scheduled, as written by SyncEngine
+    private static final String METRICS_FILE_NAME = "sync_metrics.json";
+
+    /** Notification channel shared by manual and scheduled syncs. */
+    static final String CHANNEL_ID = "sync";
+    private static final int NOTIFICATION_ID = 1;
+
+    /**
+     * Receives the state of the sync. Always called on the main thread.
+     */
+    public interface Listener {
+        /**
+         * Called when a sync starts, or straight away when a listener is set during a sync.
+         * @param driveFolderName The name of the Drive folder being synced.
+         */
+        void onSyncStarted(String driveFolderName);
+
+        /**
+         * Called with coalesced progress, at most every ProgressPublisher.DEFAULT_INTERVAL_MILLIS.
+         * @param progress The latest snapshot; totals grow while the listing is still running.
+         */
+        void onSyncProgress(SyncProgress progress);
+
+        /**
+         * Called when a sync has finished.
+         * @param summary Counters for the sync summary.
+         */
+        void onSyncFinished(SyncSummary summary);
+
+        /**
+         * Called when a sync failed or was cancelled.
+         * @param message A description of the error.
+         */
+        void onSyncFailed(String message);
+    }
+
+    /**
+     * Binder handed to clients in the same process.
+     */
+    public class LocalBinder extends Binder {
+        /** @return The running service. */
+        public SyncService getService() {
+            return SyncService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Syncs run one at a time on this thread
+    private final ExecutorService syncExecutor = Executors.newSingleThreadExecutor();
+
+    private DriveManager driveManager;
+    private SyncIndex syncIndex;
+    private DownloadJournal downloadJournal;
+    private NotificationManager notificationManager;
+
+    // State of the sync in progress; only touched on the main thread
+    private Listener listener;
+    private SyncEngine activeEngine;
+    private String activeFolderName;
+    private SyncProgress lastProgress;
+    private int lastPercent = -1;
+    private SyncMetrics lastMetrics;
+
+    /**
+     * Starts a sync in the background. Ignored if a sync is already running.
+     * @param context         The calling context.
+     * @param driveFolderId   The ID of the Drive folder to mirror.
+     * @param driveFolderName The name of the Drive folder, for display.
+     * @param localDirUri     The tree URI of the local folder to mirror into.
+     */
+    public static void start(Context context, String driveFolderId, String driveFolderName, Uri localDirUri) {
+        Intent intent = new Intent(context, SyncService.class)
+                .setAction(ACTION_SYNC)
+                .putExtra(EXTRA_DRIVE_FOLDER_ID, driveFolderId)
+                .putExtra(EXTRA_DRIVE_FOLDER_NAME, driveFolderName)
+                .putExtra(EXTRA_LOCAL_DIR_URI, localDirUri.toString());
+        context.startForegroundService(intent);
+    }
+
+    /**
+     * Creates a DriveManager for background syncs, using the configured connection pool size,
+     * segmented download settings and, in debug builds, Drive API root URL.
+     * Call trySilentSignIn() on it before use.
+     * @param context The application context.
+     * @return The DriveManager.
+     */
+    static DriveManager createDriveManager(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(DriveSync.PREFS_NAME, MODE_PRIVATE);
+        DriveManager driveManager = new DriveManager(context);
+        driveManager.setHttpTransport(new OkHttpTransport(
+                prefs.getInt(KEY_CONNECTION_POOL_SIZE, OkHttpTransport.DEFAULT_POOL_SIZE)));
+        driveManager.setSegmentedDownloads(
+                prefs.getInt(KEY_DOWNLOAD_SEGMENTS, DriveManager.DEFAULT_DOWNLOAD_SEGMENTS),
+                prefs.getLong(KEY_MIN_SEGMENT_SIZE, DriveManager.DEFAULT_MIN_SEGMENT_SIZE));
+        if (BuildConfig.DEBUG) {
+            driveManager.setRootUrl(prefs.getString(KEY_DRIVE_ROOT_URL, null));
+        }
+        return driveManager;
+    }
+
+    /**
+     * @param context The calling context.
+     * @return The file every sync writes its metrics to as JSON when it ends.
+     */
+    static File getMetricsFile(Context context) {
+        return new File(context.getFilesDir(), METRICS_FILE_NAME);
+    }
+
+    /**
+     * Reads the metrics of the last sync that ran in this app, manual or scheduled.
+     * @param context The calling context.
+     * @return The metrics as JSON (see SyncMetrics.toJson()), or null if no sync has finished yet.
+     */
+    public static String readLastMetrics(Context context) {
+        File file = getMetricsFile(context);
+        if (!file.exists()) return null;
+        try {
+            return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read sync metrics.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Creates the sync notification channel; does nothing if it already exists.
+     * @param context The calling context.
+     */
+    static void createNotificationChannel(Context context) {
+        NotificationChannel channel = new NotificationChannel(CHANNEL_ID,
+                context.getString(R.string.sync_channel_name), NotificationManager.IMPORTANCE_LOW);
+        context.getSystemService(NotificationManager.class).createNotificationChannel(channel);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        driveManager = createDriveManager(getApplicationContext());
+        syncIndex = new SyncIndex(getApplicationContext());
+        downloadJournal = new DownloadJournal(getApplicationContext());
+
+        notificationManager = getSystemService(NotificationManager.class);
+        createNotificationChannel(this);
+        Log.d(TAG, "SyncService created.");
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        String action = intent != null ? intent.getAction() : null;
+        if (ACTION_CANCEL.equals(action)) {
+            Log.i(TAG, "Sync cancelled by user.");
+            if (activeEngine != null) {
+                activeEngine.cancel();
+            }
+            return START_NOT_STICKY;
+        }
+        if (!ACTION_SYNC.equals(action)) {
+            return START_NOT_STICKY;
+        }
+
+        // startForegroundService() requires startForeground() even for requests that are ignored
+        String driveFolderId = intent.getStringExtra(EXTRA_DRIVE_FOLDER_ID);
+        String driveFolderName = intent.getStringExtra(EXTRA_DRIVE_FOLDER_NAME);
+        if (activeEngine != null) {
+            // Re-posts the running sync's notification rather than the ignored request's
+            goForeground(buildProgressNotification(activeFolderName, lastProgress));
+            Log.w(TAG, "Sync already running. Ignoring new request.");
+            return START_NOT_STICKY;
+        }
+        goForeground(buildProgressNotification(driveFolderName, null));
+
+        driveManager.trySilentSignIn(account -> { });
+        if (!driveManager.isSignedIn() || driveFolderId == null) {
+            Log.e(TAG, "Cannot sync: not signed in or no Drive folder.");
+            finishSync(null, getString(R.string.status_not_signed_in));
+            return START_NOT_STICKY;
+        }
+
+        Uri localDirUri = Uri.parse(intent.getStringExtra(EXTRA_LOCAL_DIR_URI));
+        SAFManager safManager = DirectFileManager.create(getApplicationContext(), localDirUri);
+        SyncEngine engine = new SyncEngine(driveManager, safManager, syncIndex, downloadJournal,
+                getSharedPreferences(DriveSync.PREFS_NAME, MODE_PRIVATE), driveFolderId, localDirUri);
+        engine.setMetricsFile(getMetricsFile(this));
+        activeEngine = engine;
+        activeFolderName = driveFolderName;
+        lastProgress = null;
+        lastPercent = -1;
+        if (listener != null) {
+            listener.onSyncStarted(driveFolderName);
+        }
+
+        syncExecutor.execute(() -> {
+            try {
+                SyncSummary summary = engine.run(progress -> mainHandler.post(() -> onProgress(progress)));
+                if (summary == null) {
+                    // A scheduled sync of the same folders got there first
+                    mainHandler.post(() -> finishSync(null, getString(R.string.status_sync_already_running)));
+                } else {
+                    mainHandler.post(() -> finishSync(summary, null));
+                    SyncScheduler.scheduleFollowUpIfChanged(getApplicationContext(), engine, false);
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Sync failed with exception.", e);
+                mainHandler.post(() -> finishSync(null, e.getMessage()));
+            }
+        });
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    @Override
+    public void onDestroy() {
+        if (activeEngine != null) {
+            activeEngine.cancel();
+        }
+        // Closed after the sync thread has wound down its cancelled run, which still writes to them
+        syncExecutor.execute(() -> {
+            syncIndex.close();
+            downloadJournal.close();
+            driveManager.shutdown();
+        });
+        syncExecutor.shutdown();
+        Log.d(TAG, "SyncService destroyed.");
+        super.onDestroy();
+    }
+
+    /**
+     * Sets the listener following the sync, or clears it with null. If a sync is running,
+     * the new listener is brought up to date straight away.
+     * @param listener The listener, or null.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+        if (listener != null && activeEngine != null) {
+            listener.onSyncStarted(activeFolderName);
+            if (lastProgress != null) {
+                listener.onSyncProgress(lastProgress);
+            }
+        }
+    }
+
+    /** @return true if a sync is running. */
+    public boolean isSyncing() {
+        return activeEngine != null;
+    }
+
+    /**
+     * Returns the metrics of the sync in progress, updated live, or of the last sync this service ran.
+     * Call on the main thread.
+     * @return The metrics, or null if the service has not run a sync yet.
+     */
+    public SyncMetrics getMetrics() {
+        return activeEngine != null ? activeEngine.getMetrics() : lastMetrics;
+    }
+
+    /**
+     * Publishes download progress. Runs on the main thread.
+     * @param progress The latest snapshot.
+     */
+    private void onProgress(SyncProgress progress) {
+        if (activeEngine == null) {
+            // The final snapshot of a sync that has already been reported
+            return;
+        }
+        lastProgress = progress;
+        if (listener != null) {
+            listener.onSyncProgress(progress);
+        }
+        // Only repost the notification when the visible percentage changes
+        int percent = progress.getPercent();
+        if (percent != lastPercent) {
+            lastPercent = percent;
+            notificationManager.notify(NOTIFICATION_ID, buildProgressNotification(activeFolderName, progress));
+        }
+    }
+
+    /**
+     * Reports the end of a sync and leaves the foreground. Runs on the main thread.
+     * @param summary The sync summary, or null if the sync failed.
+     * @param error   A description of the error if the sync failed.
+     */
+    private void finishSync(SyncSummary summary, String error) {
+        if (activeEngine != null) {
+            lastMetrics = activeEngine.getMetrics();
+        }
+        activeEngine = null;
+        if (listener != null) {
+            if (summary != null) {
+                listener.onSyncFinished(summary);
+            } else {
+                listener.onSyncFailed(error);
+            }
+        }
+        stopForeground(STOP_FOREGROUND_REMOVE);
+        // Leave the outcome visible after the foreground notification is gone
+        String text = summary != null
+                ? getString(R.string.status_sync_complete, summary.downloaded, summary.updated,
+                        summary.deleted, summary.failed, summary.skipped, summary.moved)
+                : getString(R.string.status_sync_failed, error);
+        notificationManager.notify(NOTIFICATION_ID, new Notification.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_launcher_foreground)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(text)
+                .setStyle(new Notification.BigTextStyle().bigText(text))
+                .setContentIntent(createOpenAppIntent())
+                .setAutoCancel(true)
+                .build());
+        stopSelf();
+    }
+
+    /**
+     * Promotes the service to the foreground with the given notification.
+     * @param notification The ongoing notification.
+     */
+    private void goForeground(Notification notification) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            startForeground(NOTIFICATION_ID, notification, ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC);
+        } else {
+            startForeground(NOTIFICATION_ID, notification);
+        }
+    }
+
+    /**
+     * Builds the ongoing notification shown while a sync runs.
+     * @param driveFolderName The name of the Drive folder being synced.
+     * @param progress        The latest progress, or null while nothing is known.
+     * @return The notification.
+     */
+    private Notification buildProgressNotification(String driveFolderName, SyncProgress progress) {
+        PendingIntent cancelIntent = PendingIntent.getService(this, 0,
+                new Intent(this, SyncService.class).setAction(ACTION_CANCEL),
+                PendingIntent.FLAG_IMMUTABLE);
+        return new Notification.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_launcher_foreground)
+                .setContentTitle(getString(R.string.notification_syncing, driveFolderName))
+                .setContentText(progress != null ? describeProgress(this, progress) : null)
+                .setProgress(100, progress != null ? progress.getPercent() : 0, progress == null)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .setContentIntent(createOpenAppIntent())
+                .addAction(new Notification.Action.Builder(null, getString(android.R.string.cancel), cancelIntent).build())
+                .build();
+    }
+
+    /**
+     * Describes progress for display: files, bytes, throughput and time left.
+     * @param context  The calling context.
+     * @param progress The progress snapshot.
+     * @return The description.
+     */
+    static String describeProgress(Context context, SyncProgress progress) {
+        String bytesDone = Formatter.formatShortFileSize(context, progress.bytesDone);
+        String bytesTotal = Formatter.formatShortFileSize(context, progress.bytesTotal);
+        if (progress.etaSeconds < 0) {
+            return context.getString(R.string.progress_detail, progress.filesDone, progress.filesTotal,
+                    bytesDone, bytesTotal);
+        }
+        return context.getString(R.string.progress_detail_eta, progress.filesDone, progress.filesTotal,
+                bytesDone, bytesTotal, Formatter.formatShortFileSize(context, progress.bytesPerSecond),
+                DateUtils.formatElapsedTime(progress.etaSeconds));
+    }
+
+    /** @return An intent that brings the DriveSync activity to the front. */
+    private PendingIntent createOpenAppIntent() {
+        Intent intent = new Intent(this, DriveSync.class)
+                .setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP | Intent.FLAG_ACTIVITY_CLEAR_TOP);
+        return PendingIntent.getActivity(this, 0, intent, PendingIntent.FLAG_IMMUTABLE);
+    }
+}
@@ -0,0 +1,36 @@
+package com.barak.drivesync;
+
+/**
+ * Counters shown in the sync summary.
+ */
+public class SyncSummary {
+    public int downloaded, updated, moved, skipped, failed, deleted;
+
+    /**
+     * Creates an empty summary, for syncs that had nothing to download.
+     */
+    public SyncSummary() {
+    }
+
+    /**
+     * Creates a summary seeded with the download results of a finished engine.
+     * @param engine The DownloadEngine that ran the sync's downloads.
+     */
+    public SyncSummary(DownloadEngine engine) {
+        downloaded = engine.getDownloadedCount();
+        updated = engine.getUpdatedCount();
+        failed = engine.getFailedCount();
+        // Unindexed local files that turned out identical are up to date, not updated
+        skipped = engine.getVerifiedCount();
+    }
+
+    @Override
+    public String toString() {
+        return "Downloaded: " + downloaded +
+                ", Updated: " + updated +
+                ", Moved: " + moved +
+                ", Skipped: " + skipped +
+                ", Failed: " + failed +
+                ", Deleted: " + deleted;
+    }
+}
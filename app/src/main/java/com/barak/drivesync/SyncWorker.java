@@ -0,0 +1,135 @@
+package com.barak.drivesync;
+
+import android.app.Notification;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.ServiceInfo;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+import androidx.work.ForegroundInfo;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+/**
+ * SyncWorker is one scheduled sync run of the saved folder pair. It first asks Drive whether anything
+ * changed since the last successful sync, which costs a single small request; only when something
+ * did is a sync run, in the foreground when the system allows it. Scheduled by SyncScheduler, which
+ * also queues a follow-up run when Drive changed while a sync was running.
+ */
+public class SyncWorker extends Worker {
+    private static final String TAG = "SyncWorker";
+    // Distinct from SyncService's notification, so a scheduled run never replaces a manual one
+    private static final int NOTIFICATION_ID = 2;
+
+    // Engine of the run in progress, so onStopped() can cancel it
+    private volatile SyncEngine activeEngine;
+
+    public SyncWorker(Context context, WorkerParameters params) {
+        super(context, params);
+    }
+
+    @Override
+    public Result doWork() {
+        Context context = getApplicationContext();
+        SharedPreferences prefs = context.getSharedPreferences(DriveSync.PREFS_NAME, Context.MODE_PRIVATE);
+        String driveFolderId = prefs.getString(DriveSync.KEY_DRIVE_FOLDER_ID, null);
+        String localUriString = prefs.getString(DriveSync.KEY_LOCAL_FOLDER_URI, null);
+        if (driveFolderId == null || localUriString == null) {
+            Log.i(TAG, "No folder pair selected. Nothing to sync.");
+            return Result.success();
+        }
+
+        DriveManager driveManager = SyncService.createDriveManager(context);
+        driveManager.trySilentSignIn(account -> { });
+        if (!driveManager.isSignedIn()) {
+            // Needs the user to sign in again; retrying would not help
+            Log.w(TAG, "Not signed in. Skipping scheduled sync.");
+            return Result.failure();
+        }
+        Uri localDirUri = Uri.parse(localUriString);
+        SAFManager safManager = DirectFileManager.create(context, localDirUri);
+        if (!safManager.isDirectoryAccessible(localDirUri)) {
+            Log.w(TAG, "Local folder not accessible. Skipping scheduled sync.");
+            return Result.failure();
+        }
+
+        SyncIndex syncIndex = new SyncIndex(context);
+        DownloadJournal downloadJournal = new DownloadJournal(context);
+        try {
+            SyncEngine engine = new SyncEngine(driveManager, safManager, syncIndex, downloadJournal,
+                    prefs, driveFolderId, localDirUri);
+            engine.setMetricsFile(SyncService.getMetricsFile(context));
+            activeEngine = engine;
+            if (isStopped()) {
+                return Result.success();
+            }
+
+            // 1. Cheapest possible check before any listing
+            if (engine.isUpToDate()) {
+                Log.i(TAG, "Drive unchanged since last sync. Nothing to do.");
+                return Result.success();
+            }
+
+            // 2. Something changed: sync, in the foreground so long runs are not cut short
+            promoteToForeground(context, prefs.getString(DriveSync.KEY_DRIVE_FOLDER_NAME, null));
+            SyncSummary summary = engine.run(null);
+            if (summary == null) {
+                Log.i(TAG, "Coalesced with a sync already running.");
+                return Result.success();
+            }
+            Log.i(TAG, "Scheduled sync complete. " + summary);
+            if (summary.failed == 0) {
+                SyncScheduler.scheduleFollowUpIfChanged(context, engine,
+                        getTags().contains(SyncScheduler.FOLLOW_UP_TAG));
+            }
+            // Failed files are picked up again by a retry instead of waiting a whole interval
+            return summary.failed == 0 ? Result.success() : Result.retry();
+        } catch (Exception e) {
+            Log.e(TAG, "Scheduled sync failed.", e);
+            return Result.retry();
+        } finally {
+            activeEngine = null;
+            syncIndex.close();
+            downloadJournal.close();
+            driveManager.shutdown();
+        }
+    }
+
+    @Override
+    public void onStopped() {
+        // Constraints no longer met or the system needs the resources; downloads resume from the journal
+        SyncEngine engine = activeEngine;
+        if (engine != null) {
+            Log.i(TAG, "Scheduled sync stopped by the system.");
+            engine.cancel();
+        }
+    }
+
+    /**
+     * Runs the rest of the work as a foreground service with an ongoing notification.
+     * Android 12 and later may refuse this while the app is in the background; the sync then
+     * continues as regular work.
+     * @param context         The application context.
+     * @param driveFolderName The name of the Drive folder, for display.
+     */
+    private void promoteToForeground(Context context, String driveFolderName) {
+        SyncService.createNotificationChannel(context);
+        Notification notification = new Notification.Builder(context, SyncService.CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_launcher_foreground)
+                .setContentTitle(context.getString(R.string.notification_syncing,
+                        driveFolderName != null ? driveFolderName : context.getString(R.string.app_name)))
+                .setProgress(0, 0, true)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .build();
+        ForegroundInfo info = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q
+                ? new ForegroundInfo(NOTIFICATION_ID, notification, ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC)
+                : new ForegroundInfo(NOTIFICATION_ID, notification);
+        try {
+            setForegroundAsync(info).get();
+        } catch (Exception e) {
+            Log.w(TAG, "Could not run scheduled sync in the foreground. Continuing in the background.", e);
+        }
+    }
+}
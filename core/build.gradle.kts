@@ -0,0 +1,28 @@
+// Sync planning with no Android dependencies, so it can be built, run and benchmarked on a plain JVM
+plugins {
+    `java-library`
+    alias(libs.plugins.jmh)
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_1_8
+    targetCompatibility = JavaVersion.VERSION_1_8
+}
+
+dependencies {
+    // Only the Drive model classes (File) are used; they are plain Java
+    api(libs.google.api.services.drive.vv3rev20230815200)
+    // Run with ./gradlew :core:test; the HTTP tests use the MockHttpTransport of google-http-client
+    testImplementation(libs.junit)
+}
+
+// Run with ./gradlew :core:jmh; results are written to core/build/results/jmh
+jmh {
+    jmhVersion.set(libs.versions.jmh)
+    fork.set(1)
+    // The 1M-entry trees hold a million Drive File objects
+    jvmArgs.set(listOf("-Xmx4g"))
+    warmupIterations.set(3)
+    iterations.set(5)
+    resultFormat.set("JSON")
+}
@@ -0,0 +1,81 @@
+package com.barak.drivesync;
+
+import com.google.api.services.drive.model.File;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building the index snapshot and of looking up every entry in it, in random order.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class IndexBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int entries;
+
+    private SyntheticTree tree;
+    // Every listed file with its folder ID, shuffled so lookups do not follow the row order
+    private File[] files;
+    private String[] parentIds;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        tree = new SyntheticTree(entries, true);
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < entries; i++) order.add(i);
+        Collections.shuffle(order, new Random(42));
+        files = new File[entries];
+        parentIds = new String[entries];
+        for (int i = 0; i < entries; i++) {
+            int n = order.get(i);
+            File folder = tree.folders.get(n / SyntheticTree.FILES_PER_FOLDER);
+            files[i] = tree.children.get(folder.getId()).get(n % SyntheticTree.FILES_PER_FOLDER);
+            parentIds[i] = folder.getId();
+        }
+    }
+
+    @Benchmark
+    public IndexSnapshot build() {
+        return tree.buildIndex();
+    }
+
+    @Benchmark
+    public void findById(Blackhole blackhole) {
+        IndexSnapshot index = tree.index;
+        for (File file : files) {
+            blackhole.consume(index.find(file.getId()));
+        }
+    }
+
+    @Benchmark
+    public void findByPath(Blackhole blackhole) {
+        IndexSnapshot index = tree.index;
+        for (int i = 0; i < files.length; i++) {
+            blackhole.consume(index.findByPath(parentIds[i], files[i].getName()));
+        }
+    }
+
+    @Benchmark
+    public void matchListed(Blackhole blackhole) {
+        IndexSnapshot index = tree.index;
+        for (File file : files) {
+            int row = index.find(file.getId());
+            blackhole.consume(row >= 0 && index.matches(row, file) && index.isCurrent(row, file));
+        }
+    }
+}
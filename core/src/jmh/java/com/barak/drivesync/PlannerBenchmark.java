@@ -0,0 +1,46 @@
+package com.barak.drivesync;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to diff a whole Drive tree against the local side and the index, without any I/O.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PlannerBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int entries;
+
+    // true: everything is up to date (periodic sync); false: everything is downloaded (first sync)
+    @Param({"true", "false"})
+    public boolean synced;
+
+    private SyntheticTree tree;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        tree = new SyntheticTree(entries, synced);
+    }
+
+    @Benchmark
+    public void planTree(Blackhole blackhole) {
+        SyntheticTree.CountingQueue queue = new SyntheticTree.CountingQueue();
+        SyncPlanner planner = tree.plan(queue);
+        blackhole.consume(planner.getStaleIndexEntries());
+        blackhole.consume(planner.getLocalDeletions());
+        blackhole.consume(planner.getIndexUpdates());
+        blackhole.consume(queue.submitted.get());
+    }
+}
@@ -0,0 +1,163 @@
+package com.barak.drivesync;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.File;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A synthetic Drive tree and its local mirror, held in memory for the benchmarks.
+ * The root holds one subfolder per FILES_PER_FOLDER files. When the tree is synced, every file
+ * is present locally and recorded in the index exactly as listed, which is the steady state of
+ * a periodic sync; otherwise the local side and the index are empty, as on a first sync.
+ * The tree doubles as the RemoteStorage and LocalStorage of a TreeWalker.
+ */
+final class SyntheticTree implements RemoteStorage, LocalStorage {
+    static final String ROOT_ID = "root";
+    static final int FILES_PER_FOLDER = 1000;
+    // Same as the Drive files.list page size DriveManager asks for
+    static final int PAGE_SIZE = 1000;
+    private static final String TREE_URI = "content://com.android.externalstorage.documents/tree/primary%3ASync";
+    private static final String FOLDER_MIME_TYPE = "application/vnd.google-apps.folder";
+    private static final long BASE_TIME = 1_700_000_000_000L;
+
+    final int fileCount;
+    final boolean synced;
+    // Subfolders of the root, sorted by name
+    final List<File> folders = new ArrayList<>();
+    // Children of every Drive folder as listed, sorted by name
+    final Map<String, List<File>> children = new HashMap<>();
+    // Local directory of every Drive folder, keyed by Drive folder ID
+    final Map<String, DirectorySnapshot> localDirs = new HashMap<>();
+    final DirectorySnapshot localRoot;
+    final IndexSnapshot index;
+
+    /**
+     * Counts the files the planner hands over instead of downloading them.
+     */
+    static class CountingQueue implements DownloadQueue {
+        final AtomicInteger submitted = new AtomicInteger();
+
+        @Override
+        public void submit(File driveFile, String parentId, DirectorySnapshot localDir, boolean isNew) {
+            submitted.incrementAndGet();
+        }
+    }
+
+    /**
+     * @param fileCount Number of files in the tree.
+     * @param synced    true if the local side and the index already mirror the tree.
+     */
+    SyntheticTree(int fileCount, boolean synced) {
+        this.fileCount = fileCount;
+        this.synced = synced;
+        localRoot = new DirectorySnapshot(TREE_URI, "primary:Sync");
+        int folderCount = (fileCount + FILES_PER_FOLDER - 1) / FILES_PER_FOLDER;
+        for (int f = 0; f < folderCount; f++) {
+            String folderName = String.format("folder-%05d", f);
+            File folder = new File().setId(folderId(f)).setName(folderName).setMimeType(FOLDER_MIME_TYPE);
+            folders.add(folder);
+            String documentId = "primary:Sync/" + folderName;
+            DirectorySnapshot dir = new DirectorySnapshot(TREE_URI, documentId);
+            if (synced) {
+                localRoot.put(folderName, new DirectorySnapshot.Entry(documentId, DirectorySnapshot.MIME_TYPE_DIR, 0, 0));
+            }
+            List<File> files = new ArrayList<>();
+            int end = Math.min(fileCount, (f + 1) * FILES_PER_FOLDER);
+            for (int i = f * FILES_PER_FOLDER; i < end; i++) {
+                File file = driveFile(i);
+                files.add(file);
+                if (synced) {
+                    dir.put(file.getName(), new DirectorySnapshot.Entry(documentId + "/" + file.getName(),
+                            "application/octet-stream", localModified(i), file.getSize()));
+                }
+            }
+            children.put(folder.getId(), files);
+            localDirs.put(folder.getId(), dir);
+        }
+        children.put(ROOT_ID, folders);
+        index = synced ? buildIndex() : new IndexSnapshot(0).seal();
+    }
+
+    /**
+     * Builds the index rows of the synced tree, the way SyncIndex.loadSnapshot does from its cursor.
+     * @return A new snapshot with one row per folder and file.
+     */
+    IndexSnapshot buildIndex() {
+        IndexSnapshot snapshot = new IndexSnapshot(folders.size() + fileCount);
+        // Folder IDs sort before file IDs, and each kind sorts by its number
+        for (File folder : folders) {
+            snapshot.add(folder.getId(), ROOT_ID, folder.getName(), true, null, -1, 0,
+                    "primary:Sync/" + folder.getName(), 0);
+        }
+        for (int i = 0; i < fileCount; i++) {
+            File file = children.get(folderId(i / FILES_PER_FOLDER)).get(i % FILES_PER_FOLDER);
+            snapshot.add(file.getId(), folderId(i / FILES_PER_FOLDER), file.getName(), false,
+                    file.getMd5Checksum(), file.getSize(), file.getModifiedTime().getValue(),
+                    null, localModified(i));
+        }
+        return snapshot.seal();
+    }
+
+    /**
+     * Plans the whole tree folder by folder on the calling thread, as the TreeWalker would.
+     * @param queue Receives the files to download.
+     * @return The planner, with its results ready to read.
+     */
+    SyncPlanner plan(DownloadQueue queue) {
+        SyncPlanner planner = new SyncPlanner(index, Collections.emptySet(), queue);
+        for (File folder : folders) {
+            planner.onFolderMapped(folder, ROOT_ID, localDirs.get(folder.getId()));
+            SyncPlanner.FolderPlan plan = planner.startFolder(folder.getId(), localDirs.get(folder.getId()));
+            List<File> files = children.get(folder.getId());
+            for (int from = 0; from < files.size(); from += PAGE_SIZE) {
+                plan.onFiles(files.subList(from, Math.min(files.size(), from + PAGE_SIZE)));
+            }
+            plan.finish();
+        }
+        return planner;
+    }
+
+    @Override
+    public void listChildrenBatch(Map<String, String> pageTokens, ChildPageCallback callback) {
+        for (Map.Entry<String, String> request : pageTokens.entrySet()) {
+            List<File> all = children.getOrDefault(request.getKey(), Collections.emptyList());
+            int from = request.getValue() != null ? Integer.parseInt(request.getValue()) : 0;
+            int to = Math.min(all.size(), from + PAGE_SIZE);
+            try {
+                callback.onPage(request.getKey(), all.subList(from, to), to < all.size() ? String.valueOf(to) : null);
+            } catch (Exception e) {
+                callback.onFailure(request.getKey(), e);
+            }
+        }
+    }
+
+    @Override
+    public DirectorySnapshot createDirectory(DirectorySnapshot parent, String name) {
+        // Only the root has subfolders; the name carries the folder number
+        return localDirs.get(folderId(Integer.parseInt(name.substring("folder-".length()))));
+    }
+
+    private static String folderId(int folder) {
+        return String.format("d%08d", folder);
+    }
+
+    private static File driveFile(int i) {
+        return new File()
+                .setId(String.format("f%09d", i))
+                .setName(String.format("file-%07d.bin", i))
+                .setMimeType("application/octet-stream")
+                .setMd5Checksum(String.format("%032x", (long) i * 0x9E3779B97F4A7C15L))
+                .setSize(1024L + i)
+                .setModifiedTime(new DateTime(BASE_TIME + i));
+    }
+
+    private static long localModified(int i) {
+        return BASE_TIME + i + 5_000;
+    }
+}
@@ -0,0 +1,49 @@
+package com.barak.drivesync;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The pipeline of a full sync up to the download queue: batched, paged listing on the TreeWalker's
+ * threads, planning of every page and handing the files to download over, against an in-memory Drive.
+ * Measures the coordination overhead the real network and storage would sit behind.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TreeWalkBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int entries;
+
+    @Param({"true", "false"})
+    public boolean synced;
+
+    @Param({"1", "4"})
+    public int concurrency;
+
+    private SyntheticTree tree;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        tree = new SyntheticTree(entries, synced);
+    }
+
+    @Benchmark
+    public int walk() throws Exception {
+        SyntheticTree.CountingQueue queue = new SyntheticTree.CountingQueue();
+        SyncPlanner planner = new SyncPlanner(tree.index, Collections.emptySet(), queue);
+        new TreeWalker(tree, tree, planner, concurrency, new SyncMetrics())
+                .walk(SyntheticTree.ROOT_ID, tree.localRoot);
+        return queue.submitted.get() + planner.getStaleIndexEntries().size();
+    }
+}
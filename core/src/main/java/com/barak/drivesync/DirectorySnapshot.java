@@ -0,0 +1,138 @@
+package com.barak.drivesync;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * DirectorySnapshot is an in-memory index of the children of one SAF directory,
+ * which may be the root of the granted tree or any directory below it.
+ * It is filled by a single query in SAFManager.snapshotDirectory and kept up to date as
+ * SAFManager creates and deletes files through it, so lookups by name cost no Binder IPC
+ * for the length of a sync. Safe to use from several download threads.
+ * The snapshot holds no Android types; SAFManager builds document URIs from its tree URI and document IDs.
+ */
+public class DirectorySnapshot {
+    // Same value as DocumentsContract.Document.MIME_TYPE_DIR
+    public static final String MIME_TYPE_DIR = "vnd.android.document/directory";
+
+    /**
+     * One child document of the directory.
+     */
+    public static class Entry {
+        public final String documentId;
+        public final String mimeType;
+        public final long lastModified;
+        public final long size;
+
+        /**
+         * @param documentId   The SAF document ID.
+         * @param mimeType     The document MIME type.
+         * @param lastModified The last modified time (epoch millis).
+         * @param size         The size in bytes.
+         */
+        public Entry(String documentId, String mimeType, long lastModified, long size) {
+            this.documentId = documentId;
+            this.mimeType = mimeType;
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+
+        /** @return true if this entry is a directory. */
+        public boolean isDirectory() {
+            return MIME_TYPE_DIR.equals(mimeType);
+        }
+    }
+
+    private final String treeUri;
+    private final String documentId;
+    private final Map<String, Entry> children = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an empty snapshot; entries are added by SAFManager.
+     * @param treeUri    The tree URI the directory was granted through, in string form.
+     * @param documentId The document ID of the directory within the tree.
+     */
+    DirectorySnapshot(String treeUri, String documentId) {
+        this.treeUri = treeUri;
+        this.documentId = documentId;
+    }
+
+    /** @return The tree URI the directory was granted through, in string form. */
+    public String getTreeUri() {
+        return treeUri;
+    }
+
+    /** @return The document ID of the directory within the tree. */
+    public String getDocumentId() {
+        return documentId;
+    }
+
+    /**
+     * Looks up a child by display name.
+     * @param name The display name.
+     * @return The entry, or null if no child has that name.
+     */
+    public Entry get(String name) {
+        return children.get(name);
+    }
+
+    /**
+     * Returns the names of all children, files and directories, in the given order.
+     * @param order The order to sort the names in.
+     * @return Array of names.
+     */
+    public String[] getSortedNames(Comparator<String> order) {
+        String[] names = children.keySet().toArray(new String[0]);
+        Arrays.sort(names, order);
+        return names;
+    }
+
+    /**
+     * Returns the names of all child directories.
+     * @return List of directory names.
+     */
+    public List<String> getDirectoryNames() {
+        List<String> names = new ArrayList<>();
+        for (Map.Entry<String, Entry> child : children.entrySet()) {
+            if (child.getValue().isDirectory()) {
+                names.add(child.getKey());
+            }
+        }
+        return names;
+    }
+
+    /** @return Number of children in the snapshot. */
+    public int size() {
+        return children.size();
+    }
+
+    /**
+     * Records a child. The first entry wins if the provider reports duplicate names.
+     * @param name  The display name.
+     * @param entry The child entry.
+     */
+    void putIfAbsent(String name, Entry entry) {
+        children.putIfAbsent(name, entry);
+    }
+
+    /**
+     * Records or replaces a child.
+     * @param name  The display name.
+     * @param entry The child entry.
+     */
+    void put(String name, Entry entry) {
+        children.put(name, entry);
+    }
+
+    /**
+     * Forgets a child.
+     * @param name The display name.
+     */
+    void remove(String name) {
+        children.remove(name);
+    }
+}
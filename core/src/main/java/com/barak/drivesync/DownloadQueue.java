@@ -0,0 +1,30 @@
+package com.barak.drivesync;
+
+import com.google.api.services.drive.model.File;
+
+/**
+ * Where the SyncPlanner hands the files that need to be downloaded. DownloadEngine implements it
+ * with its worker pool; benchmarks and tests can simply count the submissions.
+ */
+public interface DownloadQueue {
+    /**
+     * Queues a file for download. Must return without waiting for the download.
+     * @param driveFile The Drive file to download.
+     * @param parentId  The ID of the Drive folder the file was found in.
+     * @param localDir  The snapshot of the local directory to write into.
+     * @param isNew     true if the file does not exist locally yet, false if it is an update.
+     */
+    void submit(File driveFile, String parentId, DirectorySnapshot localDir, boolean isNew);
+
+    /**
+     * Queues a file whose local copy may already hold the Drive content, e.g. one that is not in
+     * the sync index yet. The local copy should be hashed and kept if it matches Drive's
+     * md5Checksum; by default the file is simply downloaded as an update.
+     * @param driveFile The Drive file, with an md5Checksum.
+     * @param parentId  The ID of the Drive folder the file was found in.
+     * @param localDir  The snapshot of the local directory holding the local copy.
+     */
+    default void submitUnverified(File driveFile, String parentId, DirectorySnapshot localDir) {
+        submit(driveFile, parentId, localDir, false);
+    }
+}
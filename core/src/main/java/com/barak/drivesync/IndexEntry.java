@@ -0,0 +1,106 @@
+package com.barak.drivesync;
+
+import com.google.api.services.drive.model.File;
+
+/**
+ * One row of the SyncIndex: the Drive version of a file or folder that was mirrored
+ * and where it lives locally.
+ */
+public class IndexEntry {
+    public final String driveId;
+    public final String parentId;
+    public final String name;
+    public final boolean isFolder;
+    public final String md5;
+    public final long size;
+    public final long driveModified;
+    public final String localDocumentId;
+    public final long localModified;
+
+    /**
+     * @param driveId         The Drive file ID.
+     * @param parentId        The ID of the Drive folder the file was synced from.
+     * @param name            The local file name.
+     * @param isFolder        true if this entry is a folder.
+     * @param md5             The Drive md5Checksum, or null if Drive has none.
+     * @param size            The Drive size in bytes, or -1 if unknown.
+     * @param driveModified   The Drive modifiedTime (epoch millis).
+     * @param localDocumentId The SAF document ID of the local copy, or null if unknown.
+     * @param localModified   The SAF last modified time of the local copy (epoch millis).
+     */
+    public IndexEntry(String driveId, String parentId, String name, boolean isFolder, String md5, long size,
+                 long driveModified, String localDocumentId, long localModified) {
+        this.driveId = driveId;
+        this.parentId = parentId;
+        this.name = name;
+        this.isFolder = isFolder;
+        this.md5 = md5;
+        this.size = size;
+        this.driveModified = driveModified;
+        this.localDocumentId = localDocumentId;
+        this.localModified = localModified;
+    }
+
+    /**
+     * Builds an entry for a Drive file that has just been written locally.
+     * @param driveFile       The Drive file.
+     * @param parentId        The ID of the Drive folder the file was synced from.
+     * @param localDocumentId The SAF document ID of the local copy, or null if unknown.
+     * @param localModified   The SAF last modified time of the local copy (epoch millis).
+     * @return A new IndexEntry.
+     */
+    public static IndexEntry fromDriveFile(File driveFile, String parentId, String localDocumentId, long localModified) {
+        return new IndexEntry(driveFile.getId(), parentId, driveFile.getName(), false, driveFile.getMd5Checksum(),
+                driveFile.getSize() != null ? driveFile.getSize() : -1,
+                driveFile.getModifiedTime() != null ? driveFile.getModifiedTime().getValue() : 0,
+                localDocumentId, localModified);
+    }
+
+    /**
+     * Builds an entry for a Drive folder that is mirrored by a local directory.
+     * @param folder          The Drive folder.
+     * @param parentId        The ID of the Drive folder containing it.
+     * @param localDocumentId The SAF document ID of the local directory.
+     * @return A new IndexEntry.
+     */
+    public static IndexEntry fromDriveFolder(File folder, String parentId, String localDocumentId) {
+        return new IndexEntry(folder.getId(), parentId, folder.getName(), true, null, -1, 0, localDocumentId, 0);
+    }
+
+    /**
+     * Checks whether the Drive file still has the name and content recorded in this entry.
+     * Content is compared by checksum and size, so a file that was touched without changing
+     * still matches; files Drive has no checksum for fall back to the modified time.
+     * @param driveFile The Drive file from a listing or change.
+     * @return true if the local copy does not need to be downloaded again.
+     */
+    public boolean matches(File driveFile) {
+        return name.equals(driveFile.getName()) && hasSameContent(driveFile);
+    }
+
+    /**
+     * Checks whether the Drive file still has the content recorded in this entry, whatever its
+     * name or folder. Used to recognise a renamed or moved file whose local copy can be reused.
+     * @param driveFile The Drive file from a listing or change.
+     * @return true if the checksum and size match (or, without a checksum, the modified time).
+     */
+    public boolean hasSameContent(File driveFile) {
+        long driveSize = driveFile.getSize() != null ? driveFile.getSize() : -1;
+        if (isFolder || size != driveSize) return false;
+        if (md5 != null && driveFile.getMd5Checksum() != null) {
+            return md5.equals(driveFile.getMd5Checksum());
+        }
+        return isCurrent(driveFile);
+    }
+
+    /**
+     * Checks whether this entry records exactly the Drive version given, including its modified time.
+     * @param driveFile The Drive file from a listing or change.
+     * @return true if the entry does not need to be refreshed.
+     */
+    public boolean isCurrent(File driveFile) {
+        long modified = driveFile.getModifiedTime() != null ? driveFile.getModifiedTime().getValue() : 0;
+        return driveModified == modified
+                && (md5 == null ? driveFile.getMd5Checksum() == null : md5.equals(driveFile.getMd5Checksum()));
+    }
+}
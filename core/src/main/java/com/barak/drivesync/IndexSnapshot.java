@@ -0,0 +1,274 @@
+package com.barak.drivesync;
+
+import com.google.api.services.drive.model.File;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * IndexSnapshot is a read-only, column-oriented copy of the sync index rows of one folder pair,
+ * used by a full sync to diff a large Drive tree without one IndexEntry object per file.
+ * Sizes and times are kept in long arrays, MD5 checksums packed into 16 bytes each, and parent
+ * IDs shared between rows; rows are sorted by Drive ID and found by binary search, and a second
+ * permutation sorted by (parent, name) answers path lookups. Comparing a row with a Drive file
+ * allocates nothing. Which rows were seen in the Drive listing is tracked in a lock-free bit set,
+ * so folders listed on several threads can mark rows concurrently.
+ */
+public class IndexSnapshot {
+    private static final int MD5_LENGTH = 16;
+
+    private final String[] driveIds;
+    private final String[] parentIds;
+    private final String[] names;
+    private final String[] localDocumentIds;
+    private final long[] sizes;
+    private final long[] driveModified;
+    private final long[] localModified;
+    private final byte[] md5s;
+    private final BitSet hasMd5;
+    private final BitSet folders;
+    // Parent IDs repeat for every child of a folder; rows share one String per folder
+    private final Map<String, String> parentIdPool = new HashMap<>();
+    private int count = 0;
+    // Row numbers sorted by parent ID, then name; built by seal()
+    private int[] byPath;
+    // One bit per row, set once the Drive file or folder of the row has been listed
+    private AtomicLongArray seen;
+
+    /**
+     * Creates an empty snapshot; fill it with add() in Drive ID order, then call seal().
+     * @param capacity The number of rows that will be added.
+     */
+    IndexSnapshot(int capacity) {
+        driveIds = new String[capacity];
+        parentIds = new String[capacity];
+        names = new String[capacity];
+        localDocumentIds = new String[capacity];
+        sizes = new long[capacity];
+        driveModified = new long[capacity];
+        localModified = new long[capacity];
+        md5s = new byte[capacity * MD5_LENGTH];
+        hasMd5 = new BitSet(capacity);
+        folders = new BitSet(capacity);
+    }
+
+    /**
+     * Appends one row. Rows must arrive sorted by Drive ID.
+     * The parameters are the columns of IndexEntry.
+     */
+    void add(String driveId, String parentId, String name, boolean isFolder, String md5, long size,
+             long driveModifiedTime, String localDocumentId, long localModifiedTime) {
+        int row = count++;
+        driveIds[row] = driveId;
+        String pooled = parentIdPool.putIfAbsent(parentId, parentId);
+        parentIds[row] = pooled != null ? pooled : parentId;
+        names[row] = name;
+        localDocumentIds[row] = localDocumentId;
+        sizes[row] = size;
+        driveModified[row] = driveModifiedTime;
+        localModified[row] = localModifiedTime;
+        if (isFolder) folders.set(row);
+        if (md5 != null && packMd5(md5, row)) hasMd5.set(row);
+    }
+
+    /**
+     * Finishes building: sorts the path permutation and clears the seen marks.
+     * @return This snapshot.
+     */
+    IndexSnapshot seal() {
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) order[i] = i;
+        Comparator<Integer> pathOrder = (a, b) -> {
+            int byParent = parentIds[a].compareTo(parentIds[b]);
+            return byParent != 0 ? byParent : names[a].compareTo(names[b]);
+        };
+        Arrays.sort(order, pathOrder);
+        byPath = new int[count];
+        for (int i = 0; i < count; i++) byPath[i] = order[i];
+        seen = new AtomicLongArray((count + 63) / 64);
+        parentIdPool.clear();
+        return this;
+    }
+
+    /** @return Number of rows. */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @param driveId A Drive file or folder ID.
+     * @return The row of the ID, or -1 if it is not in the index.
+     */
+    public int find(String driveId) {
+        int row = Arrays.binarySearch(driveIds, 0, count, driveId);
+        return row >= 0 ? row : -1;
+    }
+
+    /**
+     * @param parentId The ID of a Drive folder.
+     * @param name     A name in that folder.
+     * @return The row synced under that path, or -1 if there is none.
+     */
+    public int findByPath(String parentId, String name) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int row = byPath[mid];
+            int cmp = parentIds[row].compareTo(parentId);
+            if (cmp == 0) cmp = names[row].compareTo(name);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return row;
+            }
+        }
+        return -1;
+    }
+
+    public String parentId(int row) {
+        return parentIds[row];
+    }
+
+    public String name(int row) {
+        return names[row];
+    }
+
+    public boolean isFolder(int row) {
+        return folders.get(row);
+    }
+
+    public String localDocumentId(int row) {
+        return localDocumentIds[row];
+    }
+
+    public long localModified(int row) {
+        return localModified[row];
+    }
+
+    /**
+     * Same as IndexEntry.matches, for a row.
+     * @param row       The row.
+     * @param driveFile The Drive file from a listing.
+     * @return true if the Drive file still has the name and content recorded in the row.
+     */
+    public boolean matches(int row, File driveFile) {
+        return names[row].equals(driveFile.getName()) && hasSameContent(row, driveFile);
+    }
+
+    /**
+     * Same as IndexEntry.hasSameContent, for a row.
+     * @param row       The row.
+     * @param driveFile The Drive file from a listing.
+     * @return true if the checksum and size match (or, without a checksum, the modified time).
+     */
+    public boolean hasSameContent(int row, File driveFile) {
+        long driveSize = driveFile.getSize() != null ? driveFile.getSize() : -1;
+        if (folders.get(row) || sizes[row] != driveSize) return false;
+        if (hasMd5.get(row) && driveFile.getMd5Checksum() != null) {
+            return md5Equals(row, driveFile.getMd5Checksum());
+        }
+        return isCurrent(row, driveFile);
+    }
+
+    /**
+     * Same as IndexEntry.isCurrent, for a row.
+     * @param row       The row.
+     * @param driveFile The Drive file from a listing.
+     * @return true if the row records exactly this Drive version.
+     */
+    public boolean isCurrent(int row, File driveFile) {
+        long modified = driveFile.getModifiedTime() != null ? driveFile.getModifiedTime().getValue() : 0;
+        String md5 = driveFile.getMd5Checksum();
+        return driveModified[row] == modified && (hasMd5.get(row) ? md5 != null && md5Equals(row, md5) : md5 == null);
+    }
+
+    /**
+     * Rebuilds the full entry of a row, for the rare paths that keep one.
+     * @param row The row.
+     * @return A new IndexEntry.
+     */
+    public IndexEntry entryAt(int row) {
+        return new IndexEntry(driveIds[row], parentIds[row], names[row], folders.get(row), unpackMd5(row),
+                sizes[row], driveModified[row], localDocumentIds[row], localModified[row]);
+    }
+
+    /**
+     * Marks a row as seen in the Drive listing. Safe to call from several threads.
+     * @param row The row, or -1 to do nothing.
+     */
+    public void markSeen(int row) {
+        if (row < 0) return;
+        long bit = 1L << (row & 63);
+        seen.accumulateAndGet(row >>> 6, bit, (word, mask) -> word | mask);
+    }
+
+    /** @return Drive IDs of the rows not marked as seen. */
+    public List<String> getUnseenDriveIds() {
+        List<String> unseen = new ArrayList<>();
+        for (int row = 0; row < count; row++) {
+            if ((seen.get(row >>> 6) & (1L << (row & 63))) == 0) {
+                unseen.add(driveIds[row]);
+            }
+        }
+        return unseen;
+    }
+
+    /**
+     * Compares a row's checksum with a hex checksum from Drive without decoding it into a new array.
+     * @param row The row.
+     * @param hex The hex checksum.
+     * @return true if they are equal.
+     */
+    private boolean md5Equals(int row, String hex) {
+        if (hex.length() != MD5_LENGTH * 2) return false;
+        int base = row * MD5_LENGTH;
+        for (int i = 0; i < MD5_LENGTH; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0 || md5s[base + i] != (byte) ((high << 4) | low)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stores a hex checksum in a row's 16 bytes.
+     * @param hex The hex checksum.
+     * @param row The row.
+     * @return false if the checksum is not 32 hex digits; the row is then treated as having none.
+     */
+    private boolean packMd5(String hex, int row) {
+        if (hex.length() != MD5_LENGTH * 2) return false;
+        int base = row * MD5_LENGTH;
+        for (int i = 0; i < MD5_LENGTH; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) return false;
+            md5s[base + i] = (byte) ((high << 4) | low);
+        }
+        return true;
+    }
+
+    /**
+     * @param row The row.
+     * @return The row's checksum in lower-case hex, or null if it has none.
+     */
+    private String unpackMd5(int row) {
+        if (!hasMd5.get(row)) return null;
+        char[] hex = new char[MD5_LENGTH * 2];
+        int base = row * MD5_LENGTH;
+        for (int i = 0; i < MD5_LENGTH; i++) {
+            hex[2 * i] = Character.forDigit((md5s[base + i] >> 4) & 0xf, 16);
+            hex[2 * i + 1] = Character.forDigit(md5s[base + i] & 0xf, 16);
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,94 @@
+package com.barak.drivesync;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram counts durations in buckets of bounded relative error, so percentiles over any
+ * number of requests cost a fixed few kilobytes and no sorting. Durations are kept in microseconds;
+ * every power of two is split into eight buckets, so a reported percentile is at most 12.5% above
+ * the true value. Recording is lock-free and safe from any thread.
+ */
+public class LatencyHistogram {
+    // Buckets per power of two, as a number of bits
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    // Enough buckets for any non-negative long
+    private static final int BUCKET_COUNT = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    /**
+     * Records one duration.
+     * @param nanos The duration in nanoseconds; negative values count as zero.
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        buckets.incrementAndGet(bucketOf(micros));
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+        maxMicros.accumulateAndGet(micros, Math::max);
+    }
+
+    /** @return Number of durations recorded. */
+    public long getCount() {
+        return count.get();
+    }
+
+    /** @return Mean of the recorded durations in microseconds, or 0 if there are none. */
+    public long getMeanMicros() {
+        long n = count.get();
+        return n == 0 ? 0 : totalMicros.get() / n;
+    }
+
+    /** @return Longest recorded duration in microseconds. */
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    /**
+     * Estimates a percentile of the recorded durations.
+     * @param percentile The percentile, between 0 and 100.
+     * @return The upper bound of the bucket holding the percentile, in microseconds, never above the
+     *         longest duration; 0 if nothing was recorded.
+     */
+    public long getPercentileMicros(double percentile) {
+        long n = count.get();
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(lowerBound(i + 1) - 1, maxMicros.get());
+            }
+        }
+        // Counts still being updated by other threads
+        return maxMicros.get();
+    }
+
+    /**
+     * @param micros A duration in microseconds, not negative.
+     * @return The bucket the duration falls into.
+     */
+    private static int bucketOf(long micros) {
+        if (micros < SUB_COUNT) return (int) micros;
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * @param bucket A bucket index, up to BUCKET_COUNT.
+     * @return The smallest duration in microseconds that falls into the bucket.
+     */
+    private static long lowerBound(int bucket) {
+        if (bucket < SUB_COUNT) return bucket;
+        int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+        if (exponent > 62) return Long.MAX_VALUE;
+        return (long) (SUB_COUNT + bucket % SUB_COUNT) << (exponent - SUB_BITS);
+    }
+}
@@ -0,0 +1,23 @@
+package com.barak.drivesync;
+
+/**
+ * A local file or directory that no longer has a counterpart in Drive.
+ * Planners collect these while diffing; they are only carried out after the
+ * Drive side has been read completely.
+ */
+public class LocalDeletion {
+    public final DirectorySnapshot dir;
+    public final String name;
+    public final boolean isDirectory;
+
+    /**
+     * @param dir         The snapshot of the directory containing the entry.
+     * @param name        The name of the file or directory to delete.
+     * @param isDirectory true to delete a directory and everything in it.
+     */
+    public LocalDeletion(DirectorySnapshot dir, String name, boolean isDirectory) {
+        this.dir = dir;
+        this.name = name;
+        this.isDirectory = isDirectory;
+    }
+}
@@ -0,0 +1,32 @@
+package com.barak.drivesync;
+
+import com.google.api.services.drive.model.File;
+
+/**
+ * A Drive file that was renamed or moved without changing its content. Its local copy is
+ * renamed or moved to match instead of being downloaded again under the new name.
+ */
+public class LocalMove {
+    public final File driveFile;
+    public final String parentId;
+    public final IndexEntry from;
+    public final DirectorySnapshot sourceDir;
+    public final DirectorySnapshot targetDir;
+
+    /**
+     * @param driveFile The Drive file, with its new name.
+     * @param parentId  The ID of the Drive folder the file is in now.
+     * @param from      The index entry recording where the local copy is.
+     * @param sourceDir The snapshot of the directory holding the local copy, or null if it is not
+     *                  mirrored any more; the file is then downloaded instead.
+     * @param targetDir The snapshot of the directory the file belongs in now.
+     */
+    public LocalMove(File driveFile, String parentId, IndexEntry from,
+                     DirectorySnapshot sourceDir, DirectorySnapshot targetDir) {
+        this.driveFile = driveFile;
+        this.parentId = parentId;
+        this.from = from;
+        this.sourceDir = sourceDir;
+        this.targetDir = targetDir;
+    }
+}
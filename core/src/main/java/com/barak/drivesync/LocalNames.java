@@ -0,0 +1,44 @@
+package com.barak.drivesync;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Checks Drive names before they become local paths. Drive allows "/" in names and accepts "." and
+ * ".." as names, so a name taken from Drive must never be joined to a directory path unchecked:
+ * it could point outside the synced tree.
+ */
+public final class LocalNames {
+    private LocalNames() {
+    }
+
+    /**
+     * Checks whether a name can be used as one component of a local path.
+     * @param name A Drive file or folder name.
+     * @return false for null, empty, "." and "..", and names containing "/" or NUL.
+     */
+    public static boolean isPlainName(String name) {
+        return name != null && !name.isEmpty() && !name.equals(".") && !name.equals("..")
+                && name.indexOf('/') < 0 && name.indexOf('\0') < 0;
+    }
+
+    /**
+     * Resolves a child of a directory inside a tree, following symbolic links.
+     * @param treeRoot The root of the synced tree.
+     * @param parent   A directory inside the tree.
+     * @param name     The name of the child, e.g. taken from Drive.
+     * @return The child, or null if the name is not a plain name or the child is not inside the tree.
+     */
+    public static File resolveChild(File treeRoot, File parent, String name) {
+        if (!isPlainName(name)) return null;
+        File child = new File(parent, name);
+        try {
+            String root = treeRoot.getCanonicalPath();
+            String path = child.getCanonicalPath();
+            if (!path.startsWith(root.endsWith(File.separator) ? root : root + File.separator)) return null;
+        } catch (IOException e) {
+            return null;
+        }
+        return child;
+    }
+}
@@ -0,0 +1,15 @@
+package com.barak.drivesync;
+
+/**
+ * The local side of a sync as seen by the TreeWalker: directories that mirror Drive folders.
+ * SAFManager implements it on Android; benchmarks and tests can back it with memory.
+ */
+public interface LocalStorage {
+    /**
+     * Returns the snapshot of a child directory, creating the directory if it does not exist.
+     * @param parent The snapshot of the parent directory.
+     * @param name   The name of the child directory.
+     * @return The child directory snapshot, or null if a file of that name exists or creation failed.
+     */
+    DirectorySnapshot createDirectory(DirectorySnapshot parent, String name);
+}
@@ -0,0 +1,47 @@
+package com.barak.drivesync;
+
+import com.google.api.services.drive.model.File;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The Drive side of a sync as seen by the TreeWalker: batched, paged folder listings.
+ * DriveManager implements it against the Drive API; benchmarks and tests can back it with memory.
+ */
+public interface RemoteStorage {
+    /** Maximum number of folders listed in one batch request. */
+    int MAX_BATCH_SIZE = 100;
+
+    /**
+     * Receives the results of a batched folder listing, one call per folder.
+     */
+    interface ChildPageCallback {
+        /**
+         * Called with one page of a folder's children.
+         * @param folderId      The ID of the listed folder.
+         * @param page          The children on this page; never null.
+         * @param nextPageToken The token of the folder's next page, or null if this was the last one.
+         * @throws Exception to report the folder as failed.
+         */
+        void onPage(String folderId, List<File> page, String nextPageToken) throws Exception;
+
+        /**
+         * Called when a folder could not be listed.
+         * @param folderId The ID of the folder.
+         * @param error    The error.
+         */
+        void onFailure(String folderId, Exception error);
+    }
+
+    /**
+     * Lists one page of the non-trashed files and subfolders of several folders, sorted by name.
+     * Callbacks run on the calling thread, one per folder, before this method returns.
+     * @param pageTokens Map of folder ID to the page token to continue from (null for the first page);
+     *                   at most MAX_BATCH_SIZE entries.
+     * @param callback   Callback receiving the page or the error of each folder.
+     * @throws IOException if the request itself fails; no callback has run in that case.
+     */
+    void listChildrenBatch(Map<String, String> pageTokens, ChildPageCallback callback) throws IOException;
+}
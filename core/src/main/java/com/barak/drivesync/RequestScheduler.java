@@ -0,0 +1,290 @@
+package com.barak.drivesync;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.api.client.util.BackOff;
+import com.google.api.client.util.ExponentialBackOff;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Logger;
+
+/**
+ * RequestScheduler paces every HTTP request the Drive client makes (listings, change pages and
+ * download chunks) to stay close to the Drive quota without tipping into failure storms.
+ * <p>
+ * The number of requests in flight is capped by an AIMD limit: each successful request raises it by
+ * roughly one per round of requests, as long as latency stays near the best seen so far, and a
+ * throttling response (429, 5xx or a 403 rate-limit error) halves it. Throttled requests and network
+ * errors are retried with exponential backoff and jitter, honouring Retry-After when Drive sends it.
+ * One scheduler is shared by all threads; it is installed on each request by initialize().
+ * The calls inside a batch request travel under the slot of the batch itself; their failures
+ * still count as throttling and are retried by the batch.
+ * Every attempt is also recorded in the SyncMetrics set with setMetrics(), if any.
+ */
+public class RequestScheduler {
+    private static final Logger LOG = Logger.getLogger("RequestScheduler");
+
+    /** Requests allowed in flight before anything has been observed. */
+    public static final int INITIAL_LIMIT = 8;
+    /** Upper bound on requests in flight. */
+    public static final int MAX_LIMIT = 32;
+    private static final int MIN_LIMIT = 1;
+    // Retries per request before the error is passed to the caller
+    private static final int MAX_RETRIES = 6;
+    // Latency above this multiple of the best seen is treated as a sign of congestion
+    private static final double LATENCY_TOLERANCE = 2.0;
+    // At most one decrease per window, so a burst of throttled responses counts once
+    private static final long DECREASE_WINDOW_NANOS = 1_000_000_000L;
+    // Drive error bodies are far smaller; the reason is near the start
+    private static final int MAX_PEEK_BYTES = 16 * 1024;
+
+    // The request holding a slot on each thread, so batch parts do not take slots of their own
+    private final ThreadLocal<RequestState> activeRequest = new ThreadLocal<>();
+    private final Object lock = new Object();
+    private double limit = INITIAL_LIMIT;
+    private int inFlight = 0;
+    private long minLatencyNanos = Long.MAX_VALUE;
+    private long lastDecreaseNanos = 0;
+    // Where request latencies are recorded, or null
+    private volatile SyncMetrics metrics;
+
+    /**
+     * Installs pacing, retries and backoff on a request. Call after any credential has initialized
+     * the request: its interceptor and unsuccessful response handler (e.g. token refresh) keep
+     * running first.
+     * @param request The request being built.
+     */
+    public void initialize(HttpRequest request) {
+        // Per-request state, shared by the hooks of all attempts of this request
+        RequestState state = new RequestState();
+        HttpExecuteInterceptor authInterceptor = request.getInterceptor();
+        HttpUnsuccessfulResponseHandler authHandler = request.getUnsuccessfulResponseHandler();
+
+        request.setNumberOfRetries(MAX_RETRIES);
+        request.setInterceptor(r -> {
+            if (authInterceptor != null) authInterceptor.intercept(r);
+            state.acquire(r);
+        });
+        request.setUnsuccessfulResponseHandler((r, response, supportsRetry) -> {
+            if (authHandler != null && authHandler.handleResponse(r, response, supportsRetry)) {
+                state.release(Outcome.NEUTRAL);
+                return true;
+            }
+            boolean throttled = isThrottled(response);
+            state.release(throttled ? Outcome.THROTTLED : Outcome.NEUTRAL);
+            return throttled && supportsRetry && state.backOff(response.getHeaders().getRetryAfter());
+        });
+        request.setIOExceptionHandler((r, supportsRetry) -> {
+            // Timeouts and resets are treated like throttling: back off and slow down
+            state.release(Outcome.THROTTLED);
+            return supportsRetry && state.backOff(null);
+        });
+        request.setResponseInterceptor(response ->
+                state.release(response.isSuccessStatusCode() ? Outcome.SUCCESS : Outcome.NEUTRAL));
+    }
+
+    /**
+     * Sets where the latency and outcome of every request attempt are recorded from now on.
+     * @param metrics The metrics of the sync in progress, or null to stop recording.
+     */
+    public void setMetrics(SyncMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /** @return The current cap on requests in flight. */
+    public int getLimit() {
+        synchronized (lock) {
+            return (int) limit;
+        }
+    }
+
+    /**
+     * Waits until a request may be sent.
+     * @throws InterruptedIOException if the thread is interrupted while waiting.
+     */
+    private void acquire() throws InterruptedIOException {
+        synchronized (lock) {
+            while (inFlight >= (int) limit) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting to send a Drive request");
+                }
+            }
+            inFlight++;
+        }
+    }
+
+    /**
+     * Frees a slot and adjusts the limit from the outcome of the request.
+     * @param outcome      How the request ended.
+     * @param latencyNanos Time from sending the request to its response.
+     */
+    private void release(Outcome outcome, long latencyNanos) {
+        synchronized (lock) {
+            inFlight--;
+            adjust(outcome, latencyNanos);
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Adjusts the limit from the outcome of a request.
+     * @param outcome      How the request ended.
+     * @param latencyNanos Time from sending the request to its response.
+     */
+    private void adjust(Outcome outcome, long latencyNanos) {
+        synchronized (lock) {
+            if (outcome == Outcome.SUCCESS) {
+                minLatencyNanos = Math.min(minLatencyNanos, latencyNanos);
+                // Additive increase: about +1 per full window of successful requests
+                if (latencyNanos <= minLatencyNanos * LATENCY_TOLERANCE && limit < MAX_LIMIT) {
+                    limit = Math.min(MAX_LIMIT, limit + 1.0 / limit);
+                }
+            } else if (outcome == Outcome.THROTTLED) {
+                long now = System.nanoTime();
+                if (now - lastDecreaseNanos > DECREASE_WINDOW_NANOS) {
+                    // Multiplicative decrease
+                    lastDecreaseNanos = now;
+                    limit = Math.max(MIN_LIMIT, limit / 2);
+                    LOG.info("Throttled by Drive; in-flight limit lowered to " + (int) limit);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks whether a failed response asks the client to slow down. The body of a 403 is only
+     * peeked at, so it is still there for the caller (or a batch callback) to parse the error from.
+     * @param response The unsuccessful response.
+     * @return true for 429, 5xx and 403 rate-limit errors.
+     */
+    private static boolean isThrottled(HttpResponse response) {
+        int status = response.getStatusCode();
+        if (status == 429 || status >= 500) return true;
+        if (status != 403) return false;
+        // Drive reports rate limits as 403 with a reason in the body; other 403s are permanent
+        String body = peekBody(response);
+        return body.contains("rateLimitExceeded") || body.contains("RateLimitExceeded");
+    }
+
+    /**
+     * Reads the start of a response body and rewinds it.
+     * @param response The response.
+     * @return Up to MAX_PEEK_BYTES of the body, or "" if it cannot be rewound.
+     */
+    private static String peekBody(HttpResponse response) {
+        try {
+            InputStream in = response.getContent();
+            // A body that cannot be rewound is left unread rather than consumed
+            if (in == null || !in.markSupported()) return "";
+            in.mark(MAX_PEEK_BYTES);
+            try {
+                byte[] bytes = new byte[MAX_PEEK_BYTES];
+                int length = 0;
+                int read;
+                while (length < bytes.length && (read = in.read(bytes, length, bytes.length - length)) != -1) {
+                    length += read;
+                }
+                return new String(bytes, 0, length, StandardCharsets.UTF_8);
+            } finally {
+                in.reset();
+            }
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    /** How a request attempt ended, as far as pacing is concerned. */
+    private enum Outcome { SUCCESS, THROTTLED, NEUTRAL }
+
+    /**
+     * Tracks the slot and backoff of one request across its attempts.
+     */
+    private class RequestState {
+        private final BackOff backOff = new ExponentialBackOff.Builder()
+                .setInitialIntervalMillis(1000)
+                .setMultiplier(2)
+                .setRandomizationFactor(0.5)
+                .setMaxIntervalMillis(32 * 1000)
+                .setMaxElapsedTimeMillis(3 * 60 * 1000)
+                .build();
+        private boolean holding = false;
+        private long sentNanos;
+        private SyncMetrics.RequestKind kind;
+
+        /**
+         * Takes a slot for the next attempt.
+         * @param request The request about to be sent.
+         * @throws InterruptedIOException if the thread is interrupted while waiting.
+         */
+        void acquire(HttpRequest request) throws InterruptedIOException {
+            // An attempt that ended without reaching a hook must not keep its slot
+            release(Outcome.NEUTRAL);
+            RequestState active = activeRequest.get();
+            if (active != null && active != this) {
+                // Intercepted while another request on this thread holds a slot: a part of its batch
+                return;
+            }
+            RequestScheduler.this.acquire();
+            holding = true;
+            activeRequest.set(this);
+            GenericUrl url = request.getUrl();
+            kind = SyncMetrics.RequestKind.of(url.getRawPath(), (String) url.getFirst("alt"));
+            sentNanos = System.nanoTime();
+        }
+
+        /**
+         * Gives the slot back, once per attempt. Requests without a slot (batch parts) only
+         * report throttling.
+         * @param outcome How the attempt ended.
+         */
+        void release(Outcome outcome) {
+            SyncMetrics recorder = metrics;
+            if (recorder != null && outcome == Outcome.THROTTLED) recorder.recordThrottled();
+            if (!holding) {
+                if (outcome == Outcome.THROTTLED) adjust(outcome, 0);
+                return;
+            }
+            holding = false;
+            activeRequest.remove();
+            long latencyNanos = System.nanoTime() - sentNanos;
+            RequestScheduler.this.release(outcome, latencyNanos);
+            if (recorder != null) recorder.recordRequest(kind, latencyNanos, outcome == Outcome.SUCCESS);
+        }
+
+        /**
+         * Sleeps before the next attempt.
+         * @param retryAfter The Retry-After header in seconds, or null.
+         * @return true if the request should be retried, false if the backoff budget is spent.
+         */
+        boolean backOff(String retryAfter) {
+            try {
+                long delay = backOff.nextBackOffMillis();
+                if (delay == BackOff.STOP) return false;
+                if (retryAfter != null) {
+                    try {
+                        delay = Math.max(delay, Long.parseLong(retryAfter.trim()) * 1000);
+                    } catch (NumberFormatException ignore) {
+                        // Retry-After may also be an HTTP date; the backoff delay is used instead
+                    }
+                }
+                LOG.warning("Retrying Drive request in " + delay + " ms.");
+                Thread.sleep(delay);
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+}
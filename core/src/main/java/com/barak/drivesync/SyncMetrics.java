@@ -0,0 +1,253 @@
+package com.barak.drivesync;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * SyncMetrics collects the measurements of one sync: the time spent in each phase, the latency of
+ * Drive requests by kind, and byte and request counters. It is filled concurrently by the listing
+ * threads, the download workers and the sync loop, can be read at any time while the sync runs,
+ * and is exported with toJson() once it has finished.
+ * <p>
+ * Phase times add up the time spent in a phase on every thread, so with parallel listing and
+ * downloads they can exceed the wall-clock duration of the sync.
+ */
+public class SyncMetrics {
+    /** Stages of a sync whose time is measured. */
+    public enum Phase {
+        /** Listing Drive folders and changes, and local directories. */
+        LIST,
+        /** Diffing listings against the sync index and the local folders. */
+        PLAN,
+        /** Transferring file content from Drive into temporary files. */
+        DOWNLOAD,
+        /** Creating local files, moving them into place, and copying or moving local files. */
+        WRITE,
+        /** Deleting local files and folders that are no longer in Drive. */
+        DELETE
+    }
+
+    /** Kinds of Drive request, each with a latency histogram of its own. */
+    public enum RequestKind {
+        /** A files.list page. */
+        LIST,
+        /** A changes page or start page token. */
+        CHANGES,
+        /** Metadata of a single file. */
+        METADATA,
+        /** File content, whole or a range of it. */
+        MEDIA,
+        /** A batch of requests sent as one. */
+        BATCH;
+
+        /**
+         * Classifies a Drive request by its URL.
+         * @param path The path of the request URL.
+         * @param alt  The value of its "alt" query parameter, or null.
+         * @return The kind of request.
+         */
+        public static RequestKind of(String path, String alt) {
+            if (path == null) return METADATA;
+            if (path.startsWith("/batch")) return BATCH;
+            if ("media".equals(alt)) return MEDIA;
+            if (path.contains("/changes")) return CHANGES;
+            if (path.endsWith("/files")) return LIST;
+            return METADATA;
+        }
+    }
+
+    private final long startedAtMillis = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private volatile long finishNanos;
+
+    private final AtomicLongArray phaseNanos = new AtomicLongArray(Phase.values().length);
+    private final AtomicLongArray phaseCounts = new AtomicLongArray(Phase.values().length);
+    private final Map<RequestKind, LatencyHistogram> latencies = new EnumMap<>(RequestKind.class);
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failedRequests = new LongAdder();
+    private final LongAdder throttledResponses = new LongAdder();
+    private final LongAdder bytesDownloaded = new LongAdder();
+    private final LongAdder bytesCopied = new LongAdder();
+
+    /**
+     * Starts measuring a sync now.
+     */
+    public SyncMetrics() {
+        // Filled up front so recording never modifies the map
+        for (RequestKind kind : RequestKind.values()) {
+            latencies.put(kind, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Records one stretch of work in a phase that started at the given time and ends now.
+     * @param phase      The phase.
+     * @param startNanos The System.nanoTime() at which the work started.
+     */
+    public void recordPhase(Phase phase, long startNanos) {
+        addPhaseTime(phase, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records one stretch of work in a phase.
+     * @param phase The phase.
+     * @param nanos The time it took, in nanoseconds.
+     */
+    public void addPhaseTime(Phase phase, long nanos) {
+        phaseNanos.addAndGet(phase.ordinal(), nanos);
+        phaseCounts.incrementAndGet(phase.ordinal());
+    }
+
+    /**
+     * Records one attempt of a Drive request.
+     * @param kind         The kind of request.
+     * @param latencyNanos Time from sending the request to its response headers, before any body is
+     *                     read, or to its failure.
+     * @param successful   false if it failed or was answered with an error status.
+     */
+    public void recordRequest(RequestKind kind, long latencyNanos, boolean successful) {
+        latencies.get(kind).record(latencyNanos);
+        requests.increment();
+        if (!successful) failedRequests.increment();
+    }
+
+    /**
+     * Counts a response or network error that asked the client to slow down.
+     */
+    public void recordThrottled() {
+        throttledResponses.increment();
+    }
+
+    /**
+     * Counts file content received from Drive.
+     * @param bytes The number of bytes.
+     */
+    public void addBytesDownloaded(long bytes) {
+        bytesDownloaded.add(bytes);
+    }
+
+    /**
+     * Counts file content copied from an identical local file instead of downloaded.
+     * @param bytes The number of bytes.
+     */
+    public void addBytesCopied(long bytes) {
+        bytesCopied.add(bytes);
+    }
+
+    /**
+     * Stops the clock of the sync. Counters can still be read afterwards.
+     */
+    public void finish() {
+        if (finishNanos == 0) finishNanos = System.nanoTime();
+    }
+
+    /** @return When the sync started, in milliseconds since the epoch. */
+    public long getStartedAtMillis() {
+        return startedAtMillis;
+    }
+
+    /** @return Wall-clock duration of the sync so far, or in total once it has finished. */
+    public long getDurationMillis() {
+        long end = finishNanos != 0 ? finishNanos : System.nanoTime();
+        return (end - startNanos) / 1_000_000;
+    }
+
+    /**
+     * @param phase A phase.
+     * @return Time spent in the phase on all threads, in milliseconds.
+     */
+    public long getPhaseMillis(Phase phase) {
+        return phaseNanos.get(phase.ordinal()) / 1_000_000;
+    }
+
+    /**
+     * @param phase A phase.
+     * @return Number of stretches of work recorded in the phase.
+     */
+    public long getPhaseCount(Phase phase) {
+        return phaseCounts.get(phase.ordinal());
+    }
+
+    /**
+     * @param kind A kind of Drive request.
+     * @return The latency histogram of every attempt of that kind.
+     */
+    public LatencyHistogram getLatency(RequestKind kind) {
+        return latencies.get(kind);
+    }
+
+    /** @return Number of Drive request attempts, retries included. */
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    /** @return Number of Drive request attempts that failed or got an error status. */
+    public long getFailedRequestCount() {
+        return failedRequests.sum();
+    }
+
+    /** @return Number of throttling responses and network errors, batch parts included. */
+    public long getThrottledCount() {
+        return throttledResponses.sum();
+    }
+
+    /** @return Bytes of file content received from Drive. */
+    public long getBytesDownloaded() {
+        return bytesDownloaded.sum();
+    }
+
+    /** @return Bytes of file content copied locally instead of downloaded. */
+    public long getBytesCopied() {
+        return bytesCopied.sum();
+    }
+
+    /**
+     * Writes the metrics as one JSON object. Phase and latency names are lower case; latencies
+     * are in milliseconds, and request kinds that were never used are left out.
+     * @return The JSON text.
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder(1024);
+        json.append("{\"startedAt\":").append(startedAtMillis)
+                .append(",\"durationMs\":").append(getDurationMillis())
+                .append(",\"bytesDownloaded\":").append(getBytesDownloaded())
+                .append(",\"bytesCopied\":").append(getBytesCopied())
+                .append(",\"requests\":{\"total\":").append(getRequestCount())
+                .append(",\"failed\":").append(getFailedRequestCount())
+                .append(",\"throttled\":").append(getThrottledCount())
+                .append("},\"phases\":{");
+        String separator = "";
+        for (Phase phase : Phase.values()) {
+            json.append(separator).append('"').append(phase.name().toLowerCase(Locale.ROOT))
+                    .append("\":{\"ms\":").append(getPhaseMillis(phase))
+                    .append(",\"count\":").append(getPhaseCount(phase)).append('}');
+            separator = ",";
+        }
+        json.append("},\"latency\":{");
+        separator = "";
+        for (RequestKind kind : RequestKind.values()) {
+            LatencyHistogram histogram = latencies.get(kind);
+            if (histogram.getCount() == 0) continue;
+            json.append(separator).append('"').append(kind.name().toLowerCase(Locale.ROOT))
+                    .append("\":{\"count\":").append(histogram.getCount())
+                    .append(",\"meanMs\":").append(millis(histogram.getMeanMicros()))
+                    .append(",\"p50Ms\":").append(millis(histogram.getPercentileMicros(50)))
+                    .append(",\"p90Ms\":").append(millis(histogram.getPercentileMicros(90)))
+                    .append(",\"p99Ms\":").append(millis(histogram.getPercentileMicros(99)))
+                    .append(",\"maxMs\":").append(millis(histogram.getMaxMicros())).append('}');
+            separator = ",";
+        }
+        return json.append("}}").toString();
+    }
+
+    /**
+     * @param micros A duration in microseconds.
+     * @return The duration in milliseconds with one decimal, as JSON number text.
+     */
+    private static String millis(long micros) {
+        return String.format(Locale.ROOT, "%.1f", micros / 1000.0);
+    }
+}
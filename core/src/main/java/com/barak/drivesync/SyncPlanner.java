@@ -0,0 +1,403 @@
+package com.barak.drivesync;
+
+import com.google.api.services.drive.model.File;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * SyncPlanner diffs Drive listing pages against the sync index and the local directories as they arrive.
+ * Files that are new or changed in Drive are handed to the DownloadQueue right away,
+ * so downloads start before the Drive listing has finished. Files that were only renamed or moved
+ * in Drive are collected as moves of their local copy, decided once the whole tree has been listed.
+ * Folders are planned independently through FolderPlan and may be listed on several threads at once;
+ * the pages of a single folder must be delivered from one thread.
+ */
+public class SyncPlanner {
+    private static final Logger LOG = Logger.getLogger("SyncPlanner");
+    // Order local names are merged in; Drive's orderBy=name is close to a case-insensitive order
+    static final Comparator<String> NAME_ORDER =
+            String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder());
+
+    // Sync index rows from previous syncs; also records which Drive IDs this listing has seen
+    private final IndexSnapshot index;
+    private final DownloadQueue downloadQueue;
+    // Drive IDs whose temporary download file is waiting to be resumed
+    private final Set<String> partialDownloads;
+
+    // Index rows to write once the sync is done: adopted or touched files and mirrored folders
+    private final Queue<IndexEntry> indexUpdates = new ConcurrentLinkedQueue<>();
+    // Local entries with no Drive counterpart, deleted once the whole tree has been listed
+    private final Queue<LocalDeletion> localDeletions = new ConcurrentLinkedQueue<>();
+    // Renamed or moved files whose local copy may be moved along; the source is resolved after the walk
+    private final Queue<LocalMove> moveCandidates = new ConcurrentLinkedQueue<>();
+    // Plan of every folder listed in this sync, to find where moved files came from
+    private final Map<String, FolderPlan> folderPlans = new ConcurrentHashMap<>();
+    private final AtomicInteger driveFileCount = new AtomicInteger();
+    private final AtomicInteger queuedCount = new AtomicInteger();
+    private final AtomicInteger failedFolderCount = new AtomicInteger();
+    // Set once a folder could not be listed; index rows missing from the listing may still be in Drive
+    private volatile boolean listingIncomplete;
+
+    /**
+     * Creates a planner for one sync run.
+     * @param index            The sync index rows from previous syncs.
+     * @param partialDownloads Drive IDs with an interrupted download in the DownloadJournal.
+     * @param downloadQueue    Where files selected for download are handed.
+     */
+    public SyncPlanner(IndexSnapshot index, Set<String> partialDownloads, DownloadQueue downloadQueue) {
+        this.index = index;
+        this.partialDownloads = partialDownloads;
+        this.downloadQueue = downloadQueue;
+    }
+
+    /**
+     * Starts planning one Drive folder against its local directory.
+     * @param folderId The ID of the Drive folder.
+     * @param localDir The snapshot of the matching local directory.
+     * @return A plan that receives the folder's listing pages.
+     */
+    public FolderPlan startFolder(String folderId, DirectorySnapshot localDir) {
+        FolderPlan plan = new FolderPlan(folderId, localDir);
+        folderPlans.put(folderId, plan);
+        return plan;
+    }
+
+    /**
+     * Records that a Drive subfolder is mirrored by a local directory.
+     * @param folder   The Drive folder.
+     * @param parentId The ID of the Drive folder containing it.
+     * @param localDir The snapshot of the local directory.
+     */
+    public void onFolderMapped(File folder, String parentId, DirectorySnapshot localDir) {
+        index.markSeen(index.find(folder.getId()));
+        indexUpdates.add(IndexEntry.fromDriveFolder(folder, parentId, localDir.getDocumentId()));
+    }
+
+    /**
+     * Records that a Drive subfolder could not be mirrored; its contents are not synced.
+     * @param folder The Drive folder.
+     */
+    public void onFolderFailed(File folder) {
+        LOG.severe("Could not create local folder for: " + folder.getName());
+        failedFolderCount.incrementAndGet();
+    }
+
+    /**
+     * Records that a Drive folder could not be fully listed. Its plan is dropped unfinished, so
+     * nothing in its local directory is deleted or moved elsewhere, and no index rows are treated
+     * as stale in this sync.
+     * @param folderId The ID of the Drive folder.
+     */
+    public void onListingFailed(String folderId) {
+        folderPlans.remove(folderId);
+        listingIncomplete = true;
+        failedFolderCount.incrementAndGet();
+    }
+
+    /**
+     * Returns the index entries whose Drive file or folder was not seen in the listing.
+     * Only meaningful after the Drive listing has completed; empty if any folder failed to list.
+     * @return Drive IDs to remove from the index.
+     */
+    public List<String> getStaleIndexEntries() {
+        if (listingIncomplete) return new ArrayList<>();
+        return index.getUnseenDriveIds();
+    }
+
+    /** @return Index rows to write: adopted or touched local files and mirrored folders. */
+    public List<IndexEntry> getIndexUpdates() {
+        return new ArrayList<>(indexUpdates);
+    }
+
+    /**
+     * Resolves the renamed or moved files whose local copy can be moved along. A copy whose old
+     * name is claimed by another Drive file, or whose folder was not listed, cannot be reused;
+     * those moves have no source directory and are downloaded instead.
+     * Only valid once the whole tree has been listed; must be applied before deletions.
+     * @return The local files to move.
+     */
+    public List<LocalMove> getLocalMoves() {
+        List<LocalMove> moves = new ArrayList<>();
+        for (LocalMove candidate : moveCandidates) {
+            FolderPlan source = folderPlans.get(candidate.from.parentId);
+            DirectorySnapshot sourceDir = source != null && !source.isClaimed(candidate.from.name)
+                    ? source.localDir : null;
+            moves.add(new LocalMove(candidate.driveFile, candidate.parentId, candidate.from,
+                    sourceDir, candidate.targetDir));
+        }
+        return moves;
+    }
+
+    /** @return Local files and directories to delete, valid once the whole tree has been listed. */
+    public List<LocalDeletion> getLocalDeletions() {
+        return new ArrayList<>(localDeletions);
+    }
+
+    /** @return Number of Drive files seen so far. */
+    public int getDriveFileCount() {
+        return driveFileCount.get();
+    }
+
+    /** @return Number of files queued for download so far. */
+    public int getQueuedCount() {
+        return queuedCount.get();
+    }
+
+    /** @return Number of Drive files renamed or moved without a content change. */
+    public int getMoveCount() {
+        return moveCandidates.size();
+    }
+
+    /** @return Number of Drive files that did not need to be downloaded or moved. */
+    public int getSkippedCount() {
+        return driveFileCount.get() - queuedCount.get() - moveCandidates.size();
+    }
+
+    /** @return Number of Drive folders that could not be mirrored locally or listed. */
+    public int getFailedFolderCount() {
+        return failedFolderCount.get();
+    }
+
+    /**
+     * Diffs the listing of one Drive folder against one local directory.
+     * Drive lists children sorted by name, so each page is merge-joined against the local names
+     * sorted the same way: a forward cursor finds the local match of each Drive name, and a bit per
+     * local child records whether it was claimed. Neither side is copied into a hash table.
+     * Names Drive orders differently from NAME_ORDER (its collation is not documented) are looked
+     * up by binary search instead, so the result does not depend on the two orders agreeing.
+     */
+    public class FolderPlan {
+        private final String folderId;
+        private final DirectorySnapshot localDir;
+        // Local children as listed when planning started, sorted by NAME_ORDER
+        private final String[] localNames;
+        // Modified time of each local file; directories are flagged in localDirectories instead
+        private final long[] localModified;
+        private final BitSet localDirectories;
+        // Local children whose name a Drive file or folder has claimed; the rest are deletion candidates
+        private final BitSet claimed;
+        // Merge cursor: local names before it sort before every Drive name seen in order so far
+        private int cursor = 0;
+        private String lastDriveName;
+        // Last claimed Drive name that has no local child; Drive lists equal names next to each other
+        private String lastNewName;
+        // IDs of the files in this folder handed to the download engine
+        private final Set<String> queuedIds = new HashSet<>();
+
+        private FolderPlan(String folderId, DirectorySnapshot localDir) {
+            this.folderId = folderId;
+            this.localDir = localDir;
+            this.localNames = localDir.getSortedNames(NAME_ORDER);
+            this.localModified = new long[localNames.length];
+            this.localDirectories = new BitSet(localNames.length);
+            this.claimed = new BitSet(localNames.length);
+            for (int i = 0; i < localNames.length; i++) {
+                DirectorySnapshot.Entry local = localDir.get(localNames[i]);
+                if (local == null) continue;
+                if (local.isDirectory()) {
+                    localDirectories.set(i);
+                } else {
+                    localModified[i] = local.lastModified;
+                }
+            }
+        }
+
+        /**
+         * Claims the local name of a Drive subfolder.
+         * @param folder The Drive subfolder.
+         * @return true if the subfolder should be mirrored, false if its name is already taken.
+         */
+        public boolean onSubfolder(File folder) {
+            if (!LocalNames.isPlainName(folder.getName())) {
+                // Drive allows "/" and ".." in names; such a folder has no safe local path
+                LOG.warning("Skipping Drive folder with an unusable local name: " + folder.getName());
+                return false;
+            }
+            if (!claim(folder.getName(), findLocal(folder.getName()))) {
+                // Drive allows duplicate names; only the first one maps to the local entry
+                LOG.warning("Skipping duplicate Drive folder name: " + folder.getName());
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Diffs Drive files and queues the files that need to be downloaded or updated.
+         * @param page The non-folder children from one listing page, or a run of them between
+         *             subfolders, in listing order.
+         */
+        public void onFiles(List<File> page) {
+            for (File driveFile : page) {
+                driveFileCount.incrementAndGet();
+                String fileName = driveFile.getName();
+                if (!LocalNames.isPlainName(fileName)) {
+                    // Drive allows "/" and ".." in names; such a file has no safe local path
+                    LOG.warning("Skipping Drive file with an unusable local name: " + fileName);
+                    continue;
+                }
+                int localIndex = findLocal(fileName);
+                if (!claim(fileName, localIndex)) {
+                    // Drive allows duplicate names; only the first one maps to the local file
+                    LOG.warning("Skipping duplicate Drive file name: " + fileName);
+                    continue;
+                }
+                int row = index.find(driveFile.getId());
+                index.markSeen(row);
+                boolean isLocalFile = localIndex >= 0 && !localDirectories.get(localIndex);
+                long localFileModifiedTime = isLocalFile ? localModified[localIndex] : 0;
+                if (!isLocalFile && row >= 0 && index.hasSameContent(row, driveFile)
+                        && !(folderId.equals(index.parentId(row)) && fileName.equals(index.name(row)))) {
+                    // Renamed or moved in Drive; the synced copy elsewhere may be moved here instead
+                    LOG.fine(() -> "File to move (renamed or moved in Drive): " + index.name(row) + " -> " + fileName);
+                    moveCandidates.add(new LocalMove(driveFile, folderId, index.entryAt(row), null, localDir));
+                } else if (!isLocalFile) {
+                    // File does not exist locally, needs to be downloaded
+                    LOG.fine(() -> "File to download (new): " + fileName);
+                    queue(driveFile, true);
+                } else if (row >= 0 && !index.isFolder(row)) {
+                    // Synced before: up to date only if neither the Drive version nor the local copy changed
+                    if (index.matches(row, driveFile) && folderId.equals(index.parentId(row))
+                            && index.localModified(row) == localFileModifiedTime) {
+                        LOG.fine(() -> "File up to date: " + fileName);
+                        if (!index.isCurrent(row, driveFile)) {
+                            // Touched in Drive without changing content; only the index needs the new version
+                            indexUpdates.add(IndexEntry.fromDriveFile(driveFile, folderId,
+                                    index.localDocumentId(row), index.localModified(row)));
+                        }
+                    } else {
+                        LOG.fine(() -> "File to update: " + fileName);
+                        queue(driveFile, false);
+                    }
+                } else if (driveFile.getModifiedTime().getValue() > localFileModifiedTime) {
+                    // Not in the index and the local copy is older than the Drive version
+                    LOG.fine(() -> "File to update: " + fileName);
+                    queue(driveFile, false);
+                } else if (driveFile.getMd5Checksum() != null) {
+                    // Not in the index but the local copy is at least as new; adopted once its content is hashed
+                    LOG.fine(() -> "File to verify (not in index): " + fileName);
+                    queueUnverified(driveFile);
+                } else {
+                    // Nothing to compare the content with; a local copy at least as new is adopted as is
+                    LOG.fine(() -> "File up to date (adopted): " + fileName);
+                    DirectorySnapshot.Entry local = localDir.get(fileName);
+                    indexUpdates.add(IndexEntry.fromDriveFile(driveFile, folderId,
+                            local != null ? local.documentId : null, localFileModifiedTime));
+                }
+            }
+        }
+
+        /**
+         * Called once every page of the folder has been delivered. Records the local files
+         * with no Drive counterpart, and the local directories that mirrored Drive folders
+         * which no longer exist. Directories never created by a sync are left alone.
+         */
+        public void finish() {
+            for (int i = claimed.nextClearBit(0); i < localNames.length; i = claimed.nextClearBit(i + 1)) {
+                String name = localNames[i];
+                if (!localDirectories.get(i)) {
+                    if (!isLiveTempFile(name)) {
+                        localDeletions.add(new LocalDeletion(localDir, name, false));
+                    }
+                } else {
+                    int row = index.findByPath(folderId, name);
+                    if (row >= 0 && index.isFolder(row)) {
+                        localDeletions.add(new LocalDeletion(localDir, name, true));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Checks whether a Drive file or folder has claimed a local name. Valid once the folder is finished.
+         * @param name The local name.
+         * @return true if the name is in use by a Drive child listed in this sync.
+         */
+        boolean isClaimed(String name) {
+            int index = Arrays.binarySearch(localNames, name, NAME_ORDER);
+            return index >= 0 && claimed.get(index);
+        }
+
+        /**
+         * Finds the local child of a Drive name by advancing the merge cursor, or by binary search
+         * when the name arrives out of NAME_ORDER.
+         * @param name The Drive name.
+         * @return The index of the local child in localNames, or -1 if there is none.
+         */
+        private int findLocal(String name) {
+            if (lastDriveName != null && NAME_ORDER.compare(name, lastDriveName) < 0) {
+                int index = Arrays.binarySearch(localNames, name, NAME_ORDER);
+                return index >= 0 ? index : -1;
+            }
+            lastDriveName = name;
+            while (cursor < localNames.length && NAME_ORDER.compare(localNames[cursor], name) < 0) {
+                cursor++;
+            }
+            return cursor < localNames.length && localNames[cursor].equals(name) ? cursor : -1;
+        }
+
+        /**
+         * Claims a name for a Drive child.
+         * @param name       The Drive name.
+         * @param localIndex The index of the local child of that name, or -1.
+         * @return true if the name was free, false if another Drive child already claimed it.
+         */
+        private boolean claim(String name, int localIndex) {
+            if (localIndex >= 0) {
+                if (claimed.get(localIndex)) return false;
+                claimed.set(localIndex);
+                return true;
+            }
+            // A name that was not local before this sync is taken if its twin was listed just before,
+            // or if a subfolder or finished download of that name has appeared in the snapshot since
+            if (name.equals(lastNewName) || localDir.get(name) != null) return false;
+            lastNewName = name;
+            return true;
+        }
+
+        /**
+         * Checks whether a local name is the temporary file of a download that is still wanted:
+         * one being resumed in this sync or journaled for a later one. Leftovers of abandoned
+         * downloads are not, and are cleaned up like any other stray file.
+         * @param localFile The local file name.
+         * @return true if the file must be kept.
+         */
+        private boolean isLiveTempFile(String localFile) {
+            String driveId = TempFiles.driveIdOfTempName(localFile);
+            return driveId != null && (partialDownloads.contains(driveId) || queuedIds.contains(driveId));
+        }
+
+        /**
+         * Hands a file to the download engine and counts it.
+         * @param driveFile The Drive file to download.
+         * @param isNew     true if the file does not exist locally yet.
+         */
+        private void queue(File driveFile, boolean isNew) {
+            queuedCount.incrementAndGet();
+            queuedIds.add(driveFile.getId());
+            downloadQueue.submit(driveFile, folderId, localDir, isNew);
+        }
+
+        /**
+         * Hands a file with an unindexed local copy to the download engine, which keeps the copy
+         * if its content matches, and counts it.
+         * @param driveFile The Drive file, with an md5Checksum.
+         */
+        private void queueUnverified(File driveFile) {
+            queuedCount.incrementAndGet();
+            queuedIds.add(driveFile.getId());
+            downloadQueue.submitUnverified(driveFile, folderId, localDir);
+        }
+    }
+}
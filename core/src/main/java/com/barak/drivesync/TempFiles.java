@@ -0,0 +1,50 @@
+package com.barak.drivesync;
+
+/**
+ * Names of the hidden siblings Drive files are downloaded into before being moved into place,
+ * and of the backups an old copy is kept under while it is being replaced.
+ * Shared by DriveManager, which writes them, and the SyncPlanner, which must not delete the
+ * ones still wanted.
+ */
+public final class TempFiles {
+    private static final String TEMP_PREFIX = ".drivesync-";
+    private static final String TEMP_SUFFIX = ".part";
+    private static final String BACKUP_SUFFIX = ".old";
+
+    private TempFiles() {
+    }
+
+    /**
+     * Returns the name of the hidden sibling a Drive file is downloaded into before it is moved into place.
+     * The name is stable per file, so an interrupted download can be found and resumed later.
+     * @param driveId The Drive file ID.
+     * @return The temporary file name.
+     */
+    public static String tempNameFor(String driveId) {
+        return TEMP_PREFIX + driveId + TEMP_SUFFIX;
+    }
+
+    /**
+     * Recognises a temporary download file in a local directory listing.
+     * @param fileName A local file name.
+     * @return The Drive file ID the temporary file belongs to, or null if it is not a temporary file.
+     */
+    public static String driveIdOfTempName(String fileName) {
+        if (fileName.length() <= TEMP_PREFIX.length() + TEMP_SUFFIX.length()
+                || !fileName.startsWith(TEMP_PREFIX) || !fileName.endsWith(TEMP_SUFFIX)) {
+            return null;
+        }
+        return fileName.substring(TEMP_PREFIX.length(), fileName.length() - TEMP_SUFFIX.length());
+    }
+
+    /**
+     * Returns the name of the hidden sibling a local file is kept under while a new copy replaces it.
+     * It is not a temporary download name, so a backup left behind by a crash is cleaned up as a
+     * stray file by the next sync.
+     * @param fileName The name of the file being replaced.
+     * @return The backup file name.
+     */
+    public static String backupNameFor(String fileName) {
+        return TEMP_PREFIX + fileName + BACKUP_SUFFIX;
+    }
+}
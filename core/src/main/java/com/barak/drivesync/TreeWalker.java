@@ -0,0 +1,272 @@
+package com.barak.drivesync;
+
+import com.google.api.services.drive.model.File;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * TreeWalker lists a Drive folder tree breadth-first. Folders waiting to be listed (and folders
+ * with further pages) are queued, and each listing thread takes up to RemoteStorage.MAX_BATCH_SIZE
+ * of them into one batched HTTP request, so a wide level of the tree costs one round trip instead of
+ * one per folder. Every subfolder found is mirrored by a local directory (created on demand) and
+ * queued straight away, while the files of each listed page go to the SyncPlanner, so downloads
+ * start while deeper levels are still being listed.
+ * A folder that cannot be listed is reported to the planner and left out, and the walk goes on
+ * with the rest of the tree.
+ * Time spent diffing pages counts as planning in the sync's metrics; the rest of each batch,
+ * local directories included, counts as listing.
+ */
+public class TreeWalker {
+    private static final Logger LOG = Logger.getLogger("TreeWalker");
+    private static final String FOLDER_MIME_TYPE = "application/vnd.google-apps.folder";
+
+    /** Number of batch requests in flight when no explicit value is configured. */
+    public static final int DEFAULT_CONCURRENCY = 4;
+
+    private final RemoteStorage remote;
+    private final LocalStorage local;
+    private final SyncPlanner planner;
+    private final SyncMetrics metrics;
+    private final ExecutorService listers;
+
+    // Next page to fetch for every folder that is not fully listed and not in a batch right now
+    private final Queue<FolderListing> queue = new ConcurrentLinkedQueue<>();
+    // Folders not fully listed yet; the walk is done when this drops to zero
+    private final AtomicInteger pendingFolders = new AtomicInteger();
+    private final CountDownLatch finished = new CountDownLatch(1);
+    // Folders that could not be listed, with the subtrees below them
+    private final AtomicInteger failedFolders = new AtomicInteger();
+    // Guards against listing a folder twice when Drive reports it under several parents
+    private final Set<String> visitedFolders = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Listing progress of one folder.
+     */
+    private static class FolderListing {
+        final String folderId;
+        final DirectorySnapshot localDir;
+        final SyncPlanner.FolderPlan plan;
+        // Token of the next page, or null for the first one
+        String pageToken;
+
+        FolderListing(String folderId, DirectorySnapshot localDir, SyncPlanner.FolderPlan plan) {
+            this.folderId = folderId;
+            this.localDir = localDir;
+            this.plan = plan;
+        }
+    }
+
+    /**
+     * Creates a walker for one sync run.
+     * @param remote      The storage the Drive folders are listed from.
+     * @param local       The storage local directories are created in.
+     * @param planner     The planner receiving every listed folder.
+     * @param concurrency The number of batch requests in flight.
+     * @param metrics     The metrics receiving listing and planning time.
+     */
+    public TreeWalker(RemoteStorage remote, LocalStorage local, SyncPlanner planner, int concurrency,
+                      SyncMetrics metrics) {
+        this.remote = remote;
+        this.local = local;
+        this.planner = planner;
+        this.metrics = metrics;
+        this.listers = Executors.newFixedThreadPool(Math.max(1, concurrency), r -> {
+            Thread thread = new Thread(r, "DriveSync-list");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Lists the whole tree below a Drive folder. Blocks until every folder has been listed or has
+     * failed, and if interrupted until the batches in flight have ended, so nothing is planned or
+     * queued once this returns. Folders that fail are counted by the planner (see
+     * SyncPlanner.onListingFailed) rather than failing the walk.
+     * @param rootFolderId The ID of the Drive folder at the top of the tree.
+     * @param rootDir      The snapshot of the matching local directory.
+     * @throws InterruptedException if interrupted while waiting for the listing.
+     */
+    public void walk(String rootFolderId, DirectorySnapshot rootDir) throws InterruptedException {
+        try {
+            visitedFolders.add(rootFolderId);
+            addFolder(rootFolderId, rootDir);
+            finished.await();
+        } finally {
+            listers.shutdownNow();
+            awaitListers();
+        }
+        LOG.info("Listed " + visitedFolders.size() + " folders, " + failedFolders.get() + " failed.");
+    }
+
+    /**
+     * Waits for the listing threads to end, even if interrupted; a batch that is reading its
+     * response finishes its current page first.
+     */
+    private void awaitListers() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (listers.awaitTermination(1, TimeUnit.SECONDS)) break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Starts planning a folder and queues its first page.
+     * @param folderId The ID of the Drive folder.
+     * @param localDir The snapshot of the matching local directory.
+     */
+    private void addFolder(String folderId, DirectorySnapshot localDir) {
+        // Counted before the parent finishes, so the total never drops to zero early
+        pendingFolders.incrementAndGet();
+        enqueue(new FolderListing(folderId, localDir, planner.startFolder(folderId, localDir)));
+    }
+
+    /**
+     * Queues the next page of a folder and wakes a listing thread to batch it.
+     * @param listing The folder and the page to fetch.
+     */
+    private void enqueue(FolderListing listing) {
+        queue.add(listing);
+        try {
+            // Threads that find the queue already drained by an earlier batch return at once
+            listers.execute(this::runBatch);
+        } catch (RejectedExecutionException e) {
+            // The listers are only shut down once the walk is interrupted; the page is dropped
+        }
+    }
+
+    /**
+     * Takes up to one batch of queued pages and lists them in a single request.
+     * Runs on a listing thread.
+     */
+    private void runBatch() {
+        Map<String, String> pageTokens = new LinkedHashMap<>();
+        Map<String, FolderListing> listings = new HashMap<>();
+        FolderListing next;
+        while (pageTokens.size() < RemoteStorage.MAX_BATCH_SIZE && (next = queue.poll()) != null) {
+            pageTokens.put(next.folderId, next.pageToken);
+            listings.put(next.folderId, next);
+        }
+        if (pageTokens.isEmpty()) return;
+        Set<String> settled = new HashSet<>();
+        long started = System.nanoTime();
+        // Pages are diffed in the callbacks, on this thread, while the batch response is read
+        long[] planNanos = new long[1];
+        try {
+            remote.listChildrenBatch(pageTokens, new RemoteStorage.ChildPageCallback() {
+                @Override
+                public void onPage(String folderId, List<File> page, String nextPageToken) throws Exception {
+                    long pageStarted = System.nanoTime();
+                    FolderListing listing = listings.get(folderId);
+                    long localNanos = onListingPage(listing, page);
+                    settled.add(folderId);
+                    if (nextPageToken != null) {
+                        listing.pageToken = nextPageToken;
+                        enqueue(listing);
+                    } else {
+                        listing.plan.finish();
+                        folderDone();
+                    }
+                    planNanos[0] += System.nanoTime() - pageStarted - localNanos;
+                }
+
+                @Override
+                public void onFailure(String folderId, Exception error) {
+                    if (settled.add(folderId)) {
+                        fail(folderId, error);
+                    }
+                }
+            });
+        } catch (Exception e) {
+            // The rest of the batch failed as a whole; its other folders were already settled
+            for (String folderId : listings.keySet()) {
+                if (settled.add(folderId)) {
+                    fail(folderId, e);
+                }
+            }
+        } finally {
+            metrics.addPhaseTime(SyncMetrics.Phase.PLAN, planNanos[0]);
+            metrics.addPhaseTime(SyncMetrics.Phase.LIST, System.nanoTime() - started - planNanos[0]);
+        }
+    }
+
+    /**
+     * Handles one page of a folder's children in listing order, so the plan's merge cursor meets
+     * files and subfolders in the order Drive sorted them. Runs of files go to the planner;
+     * subfolders get a local directory and are queued for listing as soon as they are seen.
+     * @param listing The folder the page belongs to.
+     * @param page    The children on the page.
+     * @return Time spent listing or creating local directories, in nanoseconds.
+     */
+    private long onListingPage(FolderListing listing, List<File> page) {
+        List<File> files = new ArrayList<>();
+        long localNanos = 0;
+        for (File child : page) {
+            if (!FOLDER_MIME_TYPE.equals(child.getMimeType())) {
+                files.add(child);
+                continue;
+            }
+            // Files sorted before the subfolder are diffed first, or the cursor would pass their names
+            if (!files.isEmpty()) {
+                listing.plan.onFiles(files);
+                files.clear();
+            }
+            if (listing.plan.onSubfolder(child) && visitedFolders.add(child.getId())) {
+                long started = System.nanoTime();
+                DirectorySnapshot childDir = local.createDirectory(listing.localDir, child.getName());
+                localNanos += System.nanoTime() - started;
+                if (childDir == null) {
+                    planner.onFolderFailed(child);
+                } else {
+                    planner.onFolderMapped(child, listing.folderId, childDir);
+                    addFolder(child.getId(), childDir);
+                }
+            }
+        }
+        if (!files.isEmpty()) listing.plan.onFiles(files);
+        return localNanos;
+    }
+
+    /**
+     * Gives up on a folder that could not be listed: it is reported to the planner, its subfolders
+     * not yet found are not listed, and the rest of the tree is walked as usual.
+     * @param folderId The ID of the folder that failed.
+     * @param error    The error.
+     */
+    private void fail(String folderId, Exception error) {
+        LOG.log(Level.SEVERE, "Failed to list folder: " + folderId, error);
+        failedFolders.incrementAndGet();
+        planner.onListingFailed(folderId);
+        folderDone();
+    }
+
+    /**
+     * Marks one folder as fully listed (or abandoned).
+     */
+    private void folderDone() {
+        if (pendingFolders.decrementAndGet() == 0) {
+            finished.countDown();
+        }
+    }
+}
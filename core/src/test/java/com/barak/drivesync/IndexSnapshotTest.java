@@ -0,0 +1,163 @@
+package com.barak.drivesync;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.File;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IndexSnapshotTest {
+    private static final String MD5_A = "0123456789abcdef0123456789abcdef";
+    private static final String MD5_B = "fedcba9876543210fedcba9876543210";
+
+    @Test
+    public void findsRowsByDriveId() {
+        IndexSnapshot index = snapshot(
+                new IndexEntry("a", "root", "one.txt", false, MD5_A, 10, 1000, "doc-a", 2000),
+                new IndexEntry("b", "root", "two.txt", false, MD5_B, 20, 1000, "doc-b", 2000),
+                new IndexEntry("c", "root", "dir", true, null, -1, 0, "doc-c", 0));
+        assertEquals(3, index.size());
+        assertEquals("one.txt", index.name(index.find("a")));
+        assertEquals("two.txt", index.name(index.find("b")));
+        assertTrue(index.isFolder(index.find("c")));
+        assertEquals(-1, index.find("0"));
+        assertEquals(-1, index.find("bb"));
+        assertEquals(-1, index.find("z"));
+    }
+
+    @Test
+    public void findsRowsByPath() {
+        IndexSnapshot index = snapshot(
+                new IndexEntry("a", "root", "same.txt", false, MD5_A, 10, 1000, "doc-a", 2000),
+                new IndexEntry("b", "sub", "same.txt", false, MD5_B, 20, 1000, "doc-b", 2000),
+                new IndexEntry("c", "root", "other.txt", false, MD5_B, 20, 1000, "doc-c", 2000));
+        assertEquals(index.find("a"), index.findByPath("root", "same.txt"));
+        assertEquals(index.find("b"), index.findByPath("sub", "same.txt"));
+        assertEquals(index.find("c"), index.findByPath("root", "other.txt"));
+        assertEquals(-1, index.findByPath("sub", "other.txt"));
+        assertEquals(-1, index.findByPath("missing", "same.txt"));
+    }
+
+    @Test
+    public void emptySnapshotFindsNothing() {
+        IndexSnapshot index = snapshot();
+        assertEquals(-1, index.find("a"));
+        assertEquals(-1, index.findByPath("root", "a"));
+        assertTrue(index.getUnseenDriveIds().isEmpty());
+    }
+
+    @Test
+    public void comparesContentByChecksumAndSize() {
+        IndexSnapshot index = snapshot(new IndexEntry("a", "root", "one.txt", false, MD5_A, 10, 1000, "doc-a", 2000));
+        int row = index.find("a");
+        // Touched in Drive without a content change
+        assertTrue(index.matches(row, driveFile("a", "one.txt", MD5_A.toUpperCase(), 10, 5000)));
+        assertFalse(index.isCurrent(row, driveFile("a", "one.txt", MD5_A, 10, 5000)));
+        assertTrue(index.isCurrent(row, driveFile("a", "one.txt", MD5_A, 10, 1000)));
+        assertFalse(index.matches(row, driveFile("a", "one.txt", MD5_B, 10, 1000)));
+        assertFalse(index.matches(row, driveFile("a", "one.txt", MD5_A, 11, 1000)));
+        // Renamed: same content, different name
+        assertFalse(index.matches(row, driveFile("a", "renamed.txt", MD5_A, 10, 1000)));
+        assertTrue(index.hasSameContent(row, driveFile("a", "renamed.txt", MD5_A, 10, 1000)));
+    }
+
+    @Test
+    public void fallsBackToModifiedTimeWithoutChecksum() {
+        IndexSnapshot index = snapshot(new IndexEntry("a", "root", "doc", false, null, 10, 1000, "doc-a", 2000));
+        int row = index.find("a");
+        assertTrue(index.matches(row, driveFile("a", "doc", null, 10, 1000)));
+        assertFalse(index.matches(row, driveFile("a", "doc", null, 10, 1001)));
+        // A checksum appearing in Drive is a different version
+        assertFalse(index.isCurrent(row, driveFile("a", "doc", MD5_A, 10, 1000)));
+    }
+
+    @Test
+    public void malformedChecksumIsTreatedAsNone() {
+        IndexSnapshot index = snapshot(new IndexEntry("a", "root", "one.txt", false, "not-hex", 10, 1000, "doc-a", 2000));
+        int row = index.find("a");
+        assertNull(index.entryAt(row).md5);
+        assertTrue(index.matches(row, driveFile("a", "one.txt", null, 10, 1000)));
+    }
+
+    @Test
+    public void foldersNeverMatchFiles() {
+        IndexSnapshot index = snapshot(new IndexEntry("c", "root", "dir", true, null, -1, 0, "doc-c", 0));
+        assertFalse(index.hasSameContent(index.find("c"), driveFile("c", "dir", null, -1, 0)));
+    }
+
+    @Test
+    public void rebuildsEntries() {
+        IndexEntry entry = new IndexEntry("a", "root", "one.txt", false, MD5_A.toUpperCase(), 10, 1000, "doc-a", 2000);
+        IndexEntry rebuilt = snapshot(entry).entryAt(0);
+        assertEquals("a", rebuilt.driveId);
+        assertEquals("root", rebuilt.parentId);
+        assertEquals("one.txt", rebuilt.name);
+        assertFalse(rebuilt.isFolder);
+        assertEquals(MD5_A, rebuilt.md5);
+        assertEquals(10, rebuilt.size);
+        assertEquals(1000, rebuilt.driveModified);
+        assertEquals("doc-a", rebuilt.localDocumentId);
+        assertEquals(2000, rebuilt.localModified);
+    }
+
+    @Test
+    public void tracksSeenRowsAcrossWords() {
+        List<IndexEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            entries.add(new IndexEntry(String.format("id%03d", i), "root", "f" + i, false, null, 1, 1, "doc", 1));
+        }
+        IndexSnapshot index = snapshot(entries.toArray(new IndexEntry[0]));
+        for (int i = 0; i < 200; i++) {
+            if (i != 0 && i != 63 && i != 64 && i != 199) index.markSeen(index.find(String.format("id%03d", i)));
+        }
+        // Rows that are not in the index are ignored
+        index.markSeen(-1);
+        assertEquals(Arrays.asList("id000", "id063", "id064", "id199"), index.getUnseenDriveIds());
+    }
+
+    @Test
+    public void marksSeenFromSeveralThreads() throws InterruptedException {
+        int rows = 10_000;
+        IndexSnapshot index = new IndexSnapshot(rows);
+        for (int i = 0; i < rows; i++) {
+            index.add(String.format("id%05d", i), "root", "f" + i, false, null, 1, 1, "doc", 1);
+        }
+        index.seal();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            int first = t;
+            threads[t] = new Thread(() -> {
+                for (int row = first; row < rows; row += threads.length) index.markSeen(row);
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        assertTrue(index.getUnseenDriveIds().isEmpty());
+    }
+
+    /**
+     * Builds a sealed snapshot the way SyncIndex does, adding rows in Drive ID order.
+     */
+    static IndexSnapshot snapshot(IndexEntry... entries) {
+        IndexEntry[] sorted = entries.clone();
+        Arrays.sort(sorted, (a, b) -> a.driveId.compareTo(b.driveId));
+        IndexSnapshot index = new IndexSnapshot(sorted.length);
+        for (IndexEntry e : sorted) {
+            index.add(e.driveId, e.parentId, e.name, e.isFolder, e.md5, e.size, e.driveModified,
+                    e.localDocumentId, e.localModified);
+        }
+        return index.seal();
+    }
+
+    static File driveFile(String id, String name, String md5, long size, long modified) {
+        return new File().setId(id).setName(name).setMimeType("application/octet-stream")
+                .setMd5Checksum(md5).setSize(size).setModifiedTime(new DateTime(modified));
+    }
+}
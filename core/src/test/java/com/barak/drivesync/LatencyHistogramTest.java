@@ -0,0 +1,101 @@
+package com.barak.drivesync;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    private static final long NANOS_PER_MICRO = 1000;
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMeanMicros());
+        assertEquals(0, histogram.getMaxMicros());
+        assertEquals(0, histogram.getPercentileMicros(50));
+    }
+
+    @Test
+    public void smallDurationsAreExact() {
+        for (long micros = 0; micros < 8; micros++) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(micros * NANOS_PER_MICRO);
+            histogram.record(1_000_000 * NANOS_PER_MICRO);
+            assertEquals(micros, histogram.getPercentileMicros(50));
+        }
+    }
+
+    @Test
+    public void percentileIsBucketUpperBoundWithinOneEighth() {
+        Random random = new Random(42);
+        for (int i = 0; i < 10_000; i++) {
+            long micros = 8 + (long) (Math.exp(random.nextDouble() * Math.log(1e10)));
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(micros * NANOS_PER_MICRO);
+            // A far larger second value keeps the result from being capped at the maximum
+            histogram.record(Long.MAX_VALUE / 2);
+            long reported = histogram.getPercentileMicros(50);
+            assertTrue(micros + " reported as " + reported, reported >= micros);
+            assertTrue(micros + " reported as " + reported, reported <= micros + micros / 8);
+        }
+    }
+
+    @Test
+    public void bucketBoundariesFallIntoTheirOwnBucket() {
+        // Every power of two starts a bucket, so it is reported as the top of that bucket
+        for (int exponent = 3; exponent < 40; exponent++) {
+            long micros = 1L << exponent;
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(micros * NANOS_PER_MICRO);
+            histogram.record(Long.MAX_VALUE / 2);
+            assertEquals(micros + (micros >> 3) - 1, histogram.getPercentileMicros(50));
+        }
+    }
+
+    @Test
+    public void percentileNeverExceedsMaximum() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000 * NANOS_PER_MICRO);
+        assertEquals(1000, histogram.getPercentileMicros(50));
+        assertEquals(1000, histogram.getPercentileMicros(100));
+    }
+
+    @Test
+    public void percentilesFollowRanks() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int micros = 1; micros <= 100; micros++) {
+            histogram.record(micros * NANOS_PER_MICRO);
+        }
+        long p50 = histogram.getPercentileMicros(50);
+        long p99 = histogram.getPercentileMicros(99);
+        assertTrue("p50 " + p50, p50 >= 50 && p50 <= 50 + 50 / 8);
+        assertTrue("p99 " + p99, p99 >= 99 && p99 <= 100);
+        assertEquals(100, histogram.getPercentileMicros(100));
+        assertEquals(1, histogram.getPercentileMicros(0));
+    }
+
+    @Test
+    public void meanAndMaxAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10 * NANOS_PER_MICRO);
+        histogram.record(20 * NANOS_PER_MICRO);
+        histogram.record(60 * NANOS_PER_MICRO);
+        assertEquals(3, histogram.getCount());
+        assertEquals(30, histogram.getMeanMicros());
+        assertEquals(60, histogram.getMaxMicros());
+    }
+
+    @Test
+    public void negativeAndHugeDurationsAreRecorded() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(2, histogram.getCount());
+        assertEquals(0, histogram.getPercentileMicros(50));
+        assertEquals(Long.MAX_VALUE / NANOS_PER_MICRO, histogram.getPercentileMicros(100));
+    }
+}
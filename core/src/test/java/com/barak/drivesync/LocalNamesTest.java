@@ -0,0 +1,84 @@
+package com.barak.drivesync;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LocalNamesTest {
+    @Rule
+    public final TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void acceptsOrdinaryNames() {
+        assertTrue(LocalNames.isPlainName("a.txt"));
+        assertTrue(LocalNames.isPlainName(".hidden"));
+        assertTrue(LocalNames.isPlainName("..."));
+        assertTrue(LocalNames.isPlainName("a..b"));
+        assertTrue(LocalNames.isPlainName("back\\slash"));
+    }
+
+    @Test
+    public void rejectsNamesThatAreNotOneComponent() {
+        assertFalse(LocalNames.isPlainName(null));
+        assertFalse(LocalNames.isPlainName(""));
+        assertFalse(LocalNames.isPlainName("."));
+        assertFalse(LocalNames.isPlainName(".."));
+        assertFalse(LocalNames.isPlainName("a/b"));
+        assertFalse(LocalNames.isPlainName("a/../../x"));
+        assertFalse(LocalNames.isPlainName("/"));
+        assertFalse(LocalNames.isPlainName("a\0b"));
+    }
+
+    @Test
+    public void resolvesChildrenInsideTree() throws IOException {
+        File tree = temp.newFolder("tree");
+        File sub = new File(tree, "sub");
+        assertTrue(sub.mkdir());
+        assertEquals(new File(sub, "a.txt"), LocalNames.resolveChild(tree, sub, "a.txt"));
+        // Not created yet, still inside
+        assertEquals(new File(tree, "new"), LocalNames.resolveChild(tree, tree, "new"));
+    }
+
+    @Test
+    public void dotDotFolderNeverEscapesTree() throws IOException {
+        File tree = temp.newFolder("tree");
+        assertNull(LocalNames.resolveChild(tree, tree, ".."));
+        assertNull(LocalNames.resolveChild(tree, tree, "."));
+        File sub = new File(tree, "sub");
+        assertTrue(sub.mkdir());
+        assertNull(LocalNames.resolveChild(tree, sub, ".."));
+    }
+
+    @Test
+    public void slashInNameNeverEscapesTree() throws IOException {
+        File tree = temp.newFolder("tree");
+        assertNull(LocalNames.resolveChild(tree, tree, "a/../../x"));
+        assertNull(LocalNames.resolveChild(tree, tree, "../tree-sibling"));
+        assertNull(LocalNames.resolveChild(tree, tree, "sub/file"));
+    }
+
+    @Test
+    public void siblingWithSamePrefixIsOutside() throws IOException {
+        File tree = temp.newFolder("tree");
+        File sibling = temp.newFolder("tree2");
+        assertNull(LocalNames.resolveChild(tree, sibling, "a.txt"));
+    }
+
+    @Test
+    public void symlinkOutOfTreeIsRefused() throws IOException {
+        File tree = temp.newFolder("tree");
+        File outside = temp.newFolder("outside");
+        File link = new File(tree, "link");
+        Files.createSymbolicLink(link.toPath(), outside.toPath());
+        assertNull(LocalNames.resolveChild(tree, link, "a.txt"));
+    }
+}
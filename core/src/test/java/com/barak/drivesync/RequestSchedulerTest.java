@@ -0,0 +1,208 @@
+package com.barak.drivesync;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RequestSchedulerTest {
+    private static final GenericUrl LIST_URL = new GenericUrl("https://www.googleapis.com/drive/v3/files");
+
+    private final RequestScheduler scheduler = new RequestScheduler();
+    private final SyncMetrics metrics = new SyncMetrics();
+    private final ConcurrentLinkedQueue<MockLowLevelHttpResponse> responses = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger attempts = new AtomicInteger();
+
+    private final MockHttpTransport transport = new MockHttpTransport() {
+        @Override
+        public LowLevelHttpRequest buildRequest(String method, String url) {
+            return new MockLowLevelHttpRequest(url) {
+                @Override
+                public LowLevelHttpResponse execute() throws IOException {
+                    attempts.incrementAndGet();
+                    MockLowLevelHttpResponse response = responses.poll();
+                    return response != null ? response : ok();
+                }
+            };
+        }
+    };
+
+    public RequestSchedulerTest() {
+        scheduler.setMetrics(metrics);
+    }
+
+    @Test
+    public void successesRaiseLimitUpToMax() throws IOException {
+        assertEquals(RequestScheduler.INITIAL_LIMIT, scheduler.getLimit());
+        // Only requests close to the best latency seen raise the limit, so timing noise slows the climb
+        for (int i = 0; i < 100_000 && scheduler.getLimit() < RequestScheduler.MAX_LIMIT; i++) {
+            execute();
+        }
+        assertEquals(RequestScheduler.MAX_LIMIT, scheduler.getLimit());
+        for (int i = 0; i < 100; i++) execute();
+        assertEquals(RequestScheduler.MAX_LIMIT, scheduler.getLimit());
+        assertEquals(0, metrics.getFailedRequestCount());
+        assertEquals(attempts.get(), metrics.getLatency(SyncMetrics.RequestKind.LIST).getCount());
+    }
+
+    @Test
+    public void throttlingHalvesLimitAndRetries() throws IOException {
+        responses.add(error(429, "rateLimitExceeded"));
+        HttpResponse response = execute();
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals(2, attempts.get());
+        assertEquals(RequestScheduler.INITIAL_LIMIT / 2, scheduler.getLimit());
+        assertEquals(2, metrics.getRequestCount());
+        assertEquals(1, metrics.getFailedRequestCount());
+        assertEquals(1, metrics.getThrottledCount());
+    }
+
+    @Test
+    public void burstOfThrottlingHalvesLimitOnce() throws InterruptedException {
+        // Two requests answered with 503 at the same moment, then retried successfully
+        CountDownLatch together = new CountDownLatch(2);
+        MockHttpTransport burst = new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(String method, String url) {
+                return new MockLowLevelHttpRequest(url) {
+                    @Override
+                    public LowLevelHttpResponse execute() throws IOException {
+                        if (attempts.incrementAndGet() > 2) return ok();
+                        together.countDown();
+                        try {
+                            together.await();
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException();
+                        }
+                        return error(503, "backendError");
+                    }
+                };
+            }
+        };
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 2; t++) {
+            threads.add(startRequests(burst, 1));
+        }
+        for (Thread thread : threads) thread.join();
+
+        assertEquals(4, attempts.get());
+        assertEquals(RequestScheduler.INITIAL_LIMIT / 2, scheduler.getLimit());
+        assertEquals(2, metrics.getThrottledCount());
+    }
+
+    @Test
+    public void retriesRateLimit403() throws IOException {
+        responses.add(error(403, "userRateLimitExceeded"));
+        HttpResponse response = execute();
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals(2, attempts.get());
+        assertEquals(RequestScheduler.INITIAL_LIMIT / 2, scheduler.getLimit());
+        assertEquals(1, metrics.getThrottledCount());
+    }
+
+    @Test
+    public void passesOther403ThroughWithItsBody() throws IOException {
+        responses.add(error(403, "insufficientFilePermissions"));
+        try {
+            execute();
+            fail("a permission error should not be retried");
+        } catch (HttpResponseException e) {
+            assertEquals(403, e.getStatusCode());
+            assertTrue(e.getContent(), e.getContent().contains("insufficientFilePermissions"));
+        }
+        assertEquals(1, attempts.get());
+        assertEquals(RequestScheduler.INITIAL_LIMIT, scheduler.getLimit());
+        assertEquals(1, metrics.getFailedRequestCount());
+        assertEquals(0, metrics.getThrottledCount());
+    }
+
+    @Test
+    public void capsRequestsInFlight() throws InterruptedException {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        MockHttpTransport slow = new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(String method, String url) {
+                return new MockLowLevelHttpRequest(url) {
+                    @Override
+                    public LowLevelHttpResponse execute() throws IOException {
+                        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                        try {
+                            Thread.sleep(20);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            inFlight.decrementAndGet();
+                        }
+                        return ok();
+                    }
+                };
+            }
+        };
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 24; t++) {
+            threads.add(startRequests(slow, 5));
+        }
+        for (Thread thread : threads) thread.join();
+
+        // The limit only grew while the requests ran
+        assertTrue(maxInFlight.get() > 1);
+        assertTrue(maxInFlight.get() <= scheduler.getLimit());
+        assertEquals(120, metrics.getRequestCount());
+    }
+
+    /**
+     * Sends requests one after the other on a new thread.
+     * @param transport The transport to send them with.
+     * @param count     The number of requests.
+     * @return The started thread.
+     */
+    private Thread startRequests(MockHttpTransport transport, int count) {
+        Thread thread = new Thread(() -> {
+            try {
+                for (int i = 0; i < count; i++) {
+                    transport.createRequestFactory(scheduler::initialize).buildGetRequest(LIST_URL).execute();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private HttpResponse execute() throws IOException {
+        HttpRequest request = transport.createRequestFactory(scheduler::initialize).buildGetRequest(LIST_URL);
+        return request.execute();
+    }
+
+    private static MockLowLevelHttpResponse ok() {
+        return new MockLowLevelHttpResponse().setContentType("application/json").setContent("{\"files\":[]}");
+    }
+
+    private static MockLowLevelHttpResponse error(int status, String reason) {
+        return new MockLowLevelHttpResponse().setStatusCode(status).setContentType("application/json")
+                .setContent("{\"error\":{\"code\":" + status + ",\"errors\":[{\"domain\":\"usageLimits\","
+                        + "\"reason\":\"" + reason + "\"}],\"message\":\"" + reason + "\"}}");
+    }
+}
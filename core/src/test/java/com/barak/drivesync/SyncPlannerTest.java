@@ -0,0 +1,270 @@
+package com.barak.drivesync;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.File;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SyncPlannerTest {
+    private static final String MD5 = "0123456789abcdef0123456789abcdef";
+
+    private final RecordingQueue queue = new RecordingQueue();
+
+    @Test
+    public void queuesNewFilesAndDeletesStrayOnes() {
+        DirectorySnapshot dir = localDir();
+        addLocalFile(dir, "b.txt", 1000);
+        addLocalFile(dir, "stray.txt", 1000);
+        SyncPlanner planner = planner(IndexSnapshotTest.snapshot());
+        SyncPlanner.FolderPlan plan = planner.startFolder("root", dir);
+        plan.onFiles(Arrays.asList(driveFile("1", "a.txt", 500), driveFile("2", "b.txt", 500),
+                driveFile("3", "c.txt", 500)));
+        plan.finish();
+
+        // b.txt is newer locally but not indexed, so its content is checked before it is kept
+        assertEquals(Arrays.asList("1:new", "2:unverified", "3:new"), queue.submitted);
+        assertEquals(Collections.singletonList("stray.txt"), deletedNames(planner));
+        assertEquals(3, planner.getDriveFileCount());
+        assertEquals(3, planner.getQueuedCount());
+        assertEquals(0, planner.getSkippedCount());
+    }
+
+    @Test
+    public void matchesNamesDeliveredOutOfOrder() {
+        DirectorySnapshot dir = localDir();
+        for (String name : new String[]{"a", "b", "c", "d"}) addLocalFile(dir, name, 1000);
+        SyncPlanner planner = planner(IndexSnapshotTest.snapshot());
+        SyncPlanner.FolderPlan plan = planner.startFolder("root", dir);
+        // Drive's collation can disagree with NAME_ORDER; names behind the cursor are looked up instead
+        plan.onFiles(Arrays.asList(driveFile("1", "c", 500), driveFile("2", "a", 500)));
+        plan.onFiles(Arrays.asList(driveFile("3", "d", 500), driveFile("4", "b", 500)));
+        plan.finish();
+
+        // Every Drive name found its local file: none is new and none is left to delete
+        assertEquals(Arrays.asList("1:unverified", "2:unverified", "3:unverified", "4:unverified"),
+                queue.submitted);
+        assertTrue(planner.getLocalDeletions().isEmpty());
+    }
+
+    @Test
+    public void ordersNamesCaseInsensitively() {
+        DirectorySnapshot dir = localDir();
+        addLocalFile(dir, "apple", 1000);
+        addLocalFile(dir, "Banana", 1000);
+        addLocalFile(dir, "cherry", 1000);
+        SyncPlanner planner = planner(IndexSnapshotTest.snapshot());
+        SyncPlanner.FolderPlan plan = planner.startFolder("root", dir);
+        plan.onFiles(Arrays.asList(driveFile("1", "apple", 500), driveFile("2", "Banana", 500),
+                driveFile("3", "banana", 500), driveFile("4", "cherry", 500)));
+        plan.finish();
+
+        // Names differing only in case are distinct files
+        assertEquals(Arrays.asList("1:unverified", "2:unverified", "3:new", "4:unverified"), queue.submitted);
+        assertTrue(planner.getLocalDeletions().isEmpty());
+    }
+
+    @Test
+    public void skipsDuplicateDriveNames() {
+        DirectorySnapshot dir = localDir();
+        addLocalFile(dir, "dup.txt", 1000);
+        SyncPlanner planner = planner(IndexSnapshotTest.snapshot());
+        SyncPlanner.FolderPlan plan = planner.startFolder("root", dir);
+        plan.onFiles(Arrays.asList(driveFile("1", "dup.txt", 2000), driveFile("2", "dup.txt", 2000),
+                driveFile("3", "new.txt", 500), driveFile("4", "new.txt", 500)));
+        plan.finish();
+
+        // Only the first of each name maps to the local file
+        assertEquals(Arrays.asList("1:update", "3:new"), queue.submitted);
+        assertTrue(planner.getLocalDeletions().isEmpty());
+    }
+
+    @Test
+    public void skipsFileNamedLikeSubfolder() {
+        DirectorySnapshot dir = localDir();
+        addLocalDirectory(dir, "docs");
+        SyncPlanner planner = planner(IndexSnapshotTest.snapshot());
+        SyncPlanner.FolderPlan plan = planner.startFolder("root", dir);
+        assertTrue(plan.onSubfolder(driveFolder("f", "docs")));
+        assertFalse(plan.onSubfolder(driveFolder("g", "docs")));
+        plan.onFiles(Collections.singletonList(driveFile("1", "docs", 500)));
+        plan.finish();
+
+        assertTrue(queue.submitted.isEmpty());
+        assertTrue(planner.getLocalDeletions().isEmpty());
+    }
+
+    @Test
+    public void skipsNamesThatLeaveTheFolder() {
+        DirectorySnapshot dir = localDir();
+        addLocalFile(dir, "a.txt", 1000);
+        SyncPlanner planner = planner(IndexSnapshotTest.snapshot());
+        SyncPlanner.FolderPlan plan = planner.startFolder("root", dir);
+        assertFalse(plan.onSubfolder(driveFolder("f", "..")));
+        assertFalse(plan.onSubfolder(driveFolder("g", "sub/dir")));
+        plan.onFiles(Arrays.asList(driveFile("1", "..", 500), driveFile("2", "a/../../x", 500),
+                driveFile("3", ".", 500)));
+        plan.finish();
+
+        assertTrue(queue.submitted.isEmpty());
+        assertEquals(Collections.singletonList("a.txt"), deletedNames(planner));
+    }
+
+    @Test
+    public void keepsUnchangedIndexedFiles() {
+        DirectorySnapshot dir = localDir();
+        addLocalFile(dir, "same.txt", 2000);
+        addLocalFile(dir, "edited.txt", 3000);
+        addLocalFile(dir, "touched.txt", 2000);
+        IndexSnapshot index = IndexSnapshotTest.snapshot(
+                new IndexEntry("1", "root", "same.txt", false, MD5, 10, 1000, "doc", 2000),
+                new IndexEntry("2", "root", "edited.txt", false, MD5, 10, 1000, "doc", 2000),
+                new IndexEntry("3", "root", "touched.txt", false, MD5, 10, 1000, "doc", 2000));
+        SyncPlanner planner = planner(index);
+        SyncPlanner.FolderPlan plan = planner.startFolder("root", dir);
+        plan.onFiles(Arrays.asList(driveFile("2", "edited.txt", 1000), driveFile("1", "same.txt", 1000),
+                driveFile("3", "touched.txt", 5000)));
+        plan.finish();
+
+        // A local edit since the last sync is overwritten by the Drive version
+        assertEquals(Collections.singletonList("2:update"), queue.submitted);
+        List<IndexEntry> updates = planner.getIndexUpdates();
+        assertEquals(1, updates.size());
+        assertEquals("3", updates.get(0).driveId);
+        assertEquals(5000, updates.get(0).driveModified);
+        assertTrue(planner.getStaleIndexEntries().isEmpty());
+    }
+
+    @Test
+    public void verifiesOrAdoptsUnindexedLocalFiles() {
+        DirectorySnapshot dir = localDir();
+        addLocalFile(dir, "hashed.txt", 2000);
+        addLocalFile(dir, "native.doc", 2000);
+        addLocalFile(dir, "older.txt", 500);
+        SyncPlanner planner = planner(IndexSnapshotTest.snapshot());
+        SyncPlanner.FolderPlan plan = planner.startFolder("root", dir);
+        File native_ = driveFile("2", "native.doc", 1000).setMd5Checksum(null);
+        plan.onFiles(Arrays.asList(driveFile("1", "hashed.txt", 1000), native_, driveFile("3", "older.txt", 1000)));
+        plan.finish();
+
+        assertEquals(Arrays.asList("1:unverified", "3:update"), queue.submitted);
+        List<IndexEntry> updates = planner.getIndexUpdates();
+        assertEquals(1, updates.size());
+        assertEquals("2", updates.get(0).driveId);
+        assertEquals(2000, updates.get(0).localModified);
+    }
+
+    @Test
+    public void keepsTempFilesOfWantedDownloads() {
+        DirectorySnapshot dir = localDir();
+        addLocalFile(dir, "b.txt", 500);
+        addLocalFile(dir, TempFiles.tempNameFor("2"), 1000);
+        addLocalFile(dir, TempFiles.tempNameFor("7"), 1000);
+        addLocalFile(dir, TempFiles.tempNameFor("9"), 1000);
+        SyncPlanner planner = new SyncPlanner(IndexSnapshotTest.snapshot(),
+                new HashSet<>(Collections.singleton("7")), queue);
+        SyncPlanner.FolderPlan plan = planner.startFolder("root", dir);
+        plan.onFiles(Collections.singletonList(driveFile("2", "b.txt", 1000)));
+        plan.finish();
+
+        // Queued in this sync or journaled for a later one is kept; an abandoned one is not
+        assertEquals(Collections.singletonList(TempFiles.tempNameFor("9")), deletedNames(planner));
+    }
+
+    @Test
+    public void deletesOnlyDirectoriesMirroredBefore() {
+        DirectorySnapshot dir = localDir();
+        addLocalDirectory(dir, "gone");
+        addLocalDirectory(dir, "mine");
+        addLocalDirectory(dir, "kept");
+        IndexSnapshot index = IndexSnapshotTest.snapshot(
+                new IndexEntry("f1", "root", "gone", true, null, -1, 0, "doc", 0),
+                new IndexEntry("f2", "root", "kept", true, null, -1, 0, "doc", 0));
+        SyncPlanner planner = planner(index);
+        SyncPlanner.FolderPlan plan = planner.startFolder("root", dir);
+        assertTrue(plan.onSubfolder(driveFolder("f2", "kept")));
+        plan.finish();
+
+        List<LocalDeletion> deletions = planner.getLocalDeletions();
+        assertEquals(1, deletions.size());
+        assertEquals("gone", deletions.get(0).name);
+        assertTrue(deletions.get(0).isDirectory);
+    }
+
+    @Test
+    public void movesRenamedFiles() {
+        DirectorySnapshot dir = localDir();
+        addLocalFile(dir, "old.txt", 2000);
+        IndexSnapshot index = IndexSnapshotTest.snapshot(
+                new IndexEntry("1", "root", "old.txt", false, MD5, 10, 1000, "doc", 2000));
+        SyncPlanner planner = planner(index);
+        SyncPlanner.FolderPlan plan = planner.startFolder("root", dir);
+        plan.onFiles(Collections.singletonList(driveFile("1", "new.txt", 1000)));
+        plan.finish();
+
+        assertTrue(queue.submitted.isEmpty());
+        List<LocalMove> moves = planner.getLocalMoves();
+        assertEquals(1, moves.size());
+        assertEquals("old.txt", moves.get(0).from.name);
+        assertEquals(dir, moves.get(0).sourceDir);
+        // The old name is moved away rather than deleted
+        assertEquals(Collections.singletonList("old.txt"), deletedNames(planner));
+        assertEquals(0, planner.getSkippedCount());
+    }
+
+    private SyncPlanner planner(IndexSnapshot index) {
+        return new SyncPlanner(index, Collections.emptySet(), queue);
+    }
+
+    private static DirectorySnapshot localDir() {
+        return new DirectorySnapshot("content://tree", "root-doc");
+    }
+
+    private static void addLocalFile(DirectorySnapshot dir, String name, long modified) {
+        dir.put(name, new DirectorySnapshot.Entry("doc-" + name, "text/plain", modified, 10));
+    }
+
+    private static void addLocalDirectory(DirectorySnapshot dir, String name) {
+        dir.put(name, new DirectorySnapshot.Entry("doc-" + name, DirectorySnapshot.MIME_TYPE_DIR, 0, 0));
+    }
+
+    private static File driveFile(String id, String name, long modified) {
+        return IndexSnapshotTest.driveFile(id, name, MD5, 10, modified);
+    }
+
+    private static File driveFolder(String id, String name) {
+        return new File().setId(id).setName(name).setMimeType("application/vnd.google-apps.folder")
+                .setModifiedTime(new DateTime(0));
+    }
+
+    private static List<String> deletedNames(SyncPlanner planner) {
+        List<String> names = new ArrayList<>();
+        for (LocalDeletion deletion : planner.getLocalDeletions()) names.add(deletion.name);
+        Collections.sort(names);
+        return names;
+    }
+
+    /** Records submissions as "id:kind" in submission order. */
+    private static class RecordingQueue implements DownloadQueue {
+        final List<String> submitted = new ArrayList<>();
+
+        @Override
+        public void submit(File driveFile, String parentId, DirectorySnapshot localDir, boolean isNew) {
+            submitted.add(driveFile.getId() + (isNew ? ":new" : ":update"));
+        }
+
+        @Override
+        public void submitUnverified(File driveFile, String parentId, DirectorySnapshot localDir) {
+            submitted.add(driveFile.getId() + ":unverified");
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.barak.drivesync;
+
+import com.google.api.services.drive.model.File;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TreeWalkerTest {
+    private static final String FOLDER_MIME_TYPE = "application/vnd.google-apps.folder";
+    private static final String MD5 = "0123456789abcdef0123456789abcdef";
+
+    private final MemoryRemote remote = new MemoryRemote();
+    private final MemoryLocal local = new MemoryLocal();
+    private final CountingQueue queue = new CountingQueue();
+
+    @Test
+    public void walksFilesAndSubfoldersInListingOrder() throws Exception {
+        // Files sorted on both sides of a subfolder, split over two pages
+        remote.addPage("root", file("1", "a.txt"), folder("f1", "b"), file("2", "c.txt"));
+        remote.addPage("root", folder("f2", "d"), file("3", "e.txt"));
+        remote.addPage("f1", file("4", "x.txt"));
+        remote.addPage("f2");
+        DirectorySnapshot rootDir = directory("root-doc");
+        for (String name : new String[]{"a.txt", "c.txt", "e.txt", "stray.txt"}) {
+            rootDir.put(name, new DirectorySnapshot.Entry("doc-" + name, "text/plain", 0, 10));
+        }
+        SyncPlanner planner = new SyncPlanner(IndexSnapshotTest.snapshot(), Collections.emptySet(), queue);
+
+        new TreeWalker(remote, local, planner, 2, new SyncMetrics()).walk("root", rootDir);
+
+        assertEquals(Collections.singletonList("4"), queue.newIds);
+        assertEquals(3, queue.updates.get());
+        assertEquals(4, planner.getDriveFileCount());
+        assertEquals(Arrays.asList("b", "d"), local.created);
+        List<LocalDeletion> deletions = planner.getLocalDeletions();
+        assertEquals(1, deletions.size());
+        assertEquals("stray.txt", deletions.get(0).name);
+        assertEquals(2, planner.getIndexUpdates().size());
+    }
+
+    @Test
+    public void listsFolderReachableTwiceOnce() throws Exception {
+        remote.addPage("root", folder("f1", "a"), folder("f2", "b"));
+        remote.addPage("f1", folder("shared", "s"));
+        remote.addPage("f2", folder("shared", "s"));
+        remote.addPage("shared", file("1", "x.txt"));
+        SyncPlanner planner = new SyncPlanner(IndexSnapshotTest.snapshot(), Collections.emptySet(), queue);
+
+        new TreeWalker(remote, local, planner, 1, new SyncMetrics()).walk("root", directory("root-doc"));
+
+        assertEquals(Collections.singletonList("1"), queue.newIds);
+        assertEquals(Arrays.asList("a", "b", "s"), local.created);
+    }
+
+    @Test
+    public void keepsWalkingPastAFailedFolder() throws Exception {
+        // A wide tree whose listing batches are still in flight when one folder fails
+        List<File> subfolders = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            String id = String.format("f%02d", i);
+            subfolders.add(folder(id, id));
+            for (int page = 0; page < 3; page++) remote.addPage(id, file(id + "-" + page, "x" + page));
+        }
+        remote.addPage("root", subfolders.toArray(new File[0]));
+        remote.delayMillis = 5;
+        remote.failing.put("f10", new IOException("listing failed"));
+        SyncPlanner planner = new SyncPlanner(IndexSnapshotTest.snapshot(), Collections.emptySet(), queue);
+
+        new TreeWalker(remote, local, planner, 4, new SyncMetrics()).walk("root", directory("root-doc"));
+
+        assertEquals(49 * 3, queue.newIds.size());
+        assertFalse(queue.newIds.contains("f10-0"));
+        assertEquals(1, planner.getFailedFolderCount());
+    }
+
+    @Test
+    public void leavesPartlyListedFolderAlone() throws Exception {
+        // The second page of the root fails after its first page found a file and a subfolder
+        remote.addPage("root", file("1", "a.txt"), folder("f1", "b"));
+        remote.addPage("root", file("2", "c.txt"));
+        remote.addPage("f1", file("3", "x.txt"));
+        remote.failing.put("root", new IOException("listing failed"));
+        remote.failingFromPage.put("root", 1);
+        DirectorySnapshot rootDir = directory("root-doc");
+        for (String name : new String[]{"a.txt", "c.txt"}) {
+            rootDir.put(name, new DirectorySnapshot.Entry("doc-" + name, "text/plain", 0, 10));
+        }
+        SyncPlanner planner = new SyncPlanner(IndexSnapshotTest.snapshot(
+                new IndexEntry("2", "root", "c.txt", false, MD5, 10, 1000, "doc-c.txt", 0)),
+                Collections.emptySet(), queue);
+
+        new TreeWalker(remote, local, planner, 2, new SyncMetrics()).walk("root", rootDir);
+
+        // The subfolder found before the failure is still synced
+        assertEquals(Collections.singletonList("3"), queue.newIds);
+        assertEquals(1, planner.getFailedFolderCount());
+        assertTrue(planner.getLocalDeletions().isEmpty());
+        assertTrue(planner.getStaleIndexEntries().isEmpty());
+    }
+
+    private static DirectorySnapshot directory(String documentId) {
+        return new DirectorySnapshot("content://tree", documentId);
+    }
+
+    private static File file(String id, String name) {
+        return IndexSnapshotTest.driveFile(id, name, MD5, 10, 1000);
+    }
+
+    private static File folder(String id, String name) {
+        return new File().setId(id).setName(name).setMimeType(FOLDER_MIME_TYPE);
+    }
+
+    /** Drive folders held in memory; page tokens are page numbers. */
+    private static class MemoryRemote implements RemoteStorage {
+        final Map<String, List<List<File>>> pages = new ConcurrentHashMap<>();
+        final Map<String, Exception> failing = new ConcurrentHashMap<>();
+        // First page of a failing folder that fails; earlier pages are listed
+        final Map<String, Integer> failingFromPage = new ConcurrentHashMap<>();
+        final AtomicInteger batches = new AtomicInteger();
+        volatile long delayMillis;
+
+        void addPage(String folderId, File... children) {
+            pages.computeIfAbsent(folderId, id -> new ArrayList<>()).add(Arrays.asList(children));
+        }
+
+        @Override
+        public void listChildrenBatch(Map<String, String> pageTokens, ChildPageCallback callback) throws IOException {
+            batches.incrementAndGet();
+            for (Map.Entry<String, String> entry : pageTokens.entrySet()) {
+                String folderId = entry.getKey();
+                if (delayMillis > 0) {
+                    try {
+                        Thread.sleep(delayMillis);
+                    } catch (InterruptedException e) {
+                        // Like a real batch, the response is read to the end
+                    }
+                }
+                int page = entry.getValue() == null ? 0 : Integer.parseInt(entry.getValue());
+                Exception error = failing.get(folderId);
+                if (error != null && page >= failingFromPage.getOrDefault(folderId, 0)) {
+                    callback.onFailure(folderId, error);
+                    continue;
+                }
+                List<List<File>> folderPages = pages.getOrDefault(folderId,
+                        Collections.singletonList(Collections.emptyList()));
+                String next = page + 1 < folderPages.size() ? String.valueOf(page + 1) : null;
+                try {
+                    callback.onPage(folderId, folderPages.get(page), next);
+                } catch (Exception e) {
+                    callback.onFailure(folderId, e);
+                }
+            }
+        }
+    }
+
+    /** Creates every directory asked for and records its name. */
+    private static class MemoryLocal implements LocalStorage {
+        final List<String> created = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public DirectorySnapshot createDirectory(DirectorySnapshot parent, String name) {
+            created.add(name);
+            Collections.sort(created);
+            DirectorySnapshot.Entry entry = new DirectorySnapshot.Entry(
+                    parent.getDocumentId() + "/" + name, DirectorySnapshot.MIME_TYPE_DIR, 0, 0);
+            parent.put(name, entry);
+            return new DirectorySnapshot(parent.getTreeUri(), entry.documentId);
+        }
+    }
+
+    /** Records the IDs of new files and counts the rest. */
+    private static class CountingQueue implements DownloadQueue {
+        final List<String> newIds = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger updates = new AtomicInteger();
+
+        @Override
+        public void submit(File driveFile, String parentId, DirectorySnapshot localDir, boolean isNew) {
+            if (isNew) {
+                newIds.add(driveFile.getId());
+            } else {
+                updates.incrementAndGet();
+            }
+        }
+    }
+}
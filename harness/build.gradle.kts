@@ -0,0 +1,19 @@
+// Fake Drive v3 server and sync throughput harness; runs on a plain JVM:
+// ./gradlew :harness:run --args="--files 5000 --size 262144"
+plugins {
+    application
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_1_8
+    targetCompatibility = JavaVersion.VERSION_1_8
+}
+
+dependencies {
+    implementation(project(":core"))
+    implementation(libs.api.client.google.api.client.gson.v1350)
+}
+
+application {
+    mainClass.set("com.barak.drivesync.SyncHarness")
+}
@@ -0,0 +1,529 @@
+package com.barak.drivesync;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import com.google.api.services.drive.model.StartPageToken;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * FakeDriveServer is an in-memory stand-in for the parts of the Drive v3 API a sync uses:
+ * files.list (paged, sorted by name, filtered by parent and folder MIME type), files.get with
+ * alt=media (with Range), changes.getStartPageToken, changes.list and batch requests of those.
+ * Fields and ordering options are accepted but every field is returned.
+ * <p>
+ * Network conditions are injected per request: a fixed latency before the response, a bandwidth
+ * cap on each media response, and a share of requests failing with 429 (rate limit) or 500
+ * (backend error) the way Drive reports them. File content is generated from the file ID, so a
+ * tree of any size costs memory only for its metadata.
+ */
+public class FakeDriveServer {
+    public static final String ROOT_ID = "root";
+    private static final String FOLDER_MIME_TYPE = "application/vnd.google-apps.folder";
+    private static final String API_PATH = "/drive/v3/";
+    private static final String BATCH_PATH = "/batch/drive/v3";
+    private static final Pattern PARENT_QUERY = Pattern.compile("'([^']+)' in parents");
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+    // Bandwidth is enforced per slice of this size
+    private static final int SLICE_SIZE = 16 * 1024;
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 1000;
+    // Source of all file content; each file reads it from its own offset, wrapping around
+    private static final byte[] CONTENT = new byte[1 << 20];
+
+    static {
+        new Random(1).nextBytes(CONTENT);
+    }
+
+    /**
+     * Network conditions applied to every request. Changes take effect on the next request.
+     */
+    public static class Conditions {
+        /** Delay before every response, in milliseconds. */
+        public volatile long latencyMillis = 0;
+        /** Cap on the bytes per second of each media response; 0 for no cap. */
+        public volatile long bandwidthBytesPerSecond = 0;
+        /** Share of requests (and batch parts) answered with 429 rateLimitExceeded, from 0 to 1. */
+        public volatile double throttleRate = 0;
+        /** Share of requests (and batch parts) answered with 500 backendError, from 0 to 1. */
+        public volatile double errorRate = 0;
+    }
+
+    /**
+     * Counters of what the server has answered.
+     */
+    public static class Stats {
+        public final AtomicLong requests = new AtomicLong();
+        public final AtomicLong batchParts = new AtomicLong();
+        public final AtomicLong throttled = new AtomicLong();
+        public final AtomicLong errors = new AtomicLong();
+        public final AtomicLong mediaBytes = new AtomicLong();
+    }
+
+    /**
+     * A served response: status, content type and body.
+     */
+    private static class Reply {
+        final int status;
+        final String contentType;
+        final byte[] body;
+
+        Reply(int status, String contentType, byte[] body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
+        }
+    }
+
+    public final Conditions conditions = new Conditions();
+    public final Stats stats = new Stats();
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, File> files = new ConcurrentHashMap<>();
+    // Children of each folder, sorted by name once the tree is built
+    private final Map<String, List<File>> children = new ConcurrentHashMap<>();
+    private final List<Change> changeLog = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Creates a server on the loopback interface; call start() once the tree is built.
+     * An Android emulator reaches it at http://10.0.2.2:port/.
+     * @param port The port to listen on, or 0 for any free port.
+     * @throws IOException if the port cannot be bound.
+     */
+    public FakeDriveServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "FakeDrive");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        children.put(ROOT_ID, new ArrayList<>());
+    }
+
+    /** @return The root URL to give the Drive client, ending in '/'. */
+    public String getRootUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    public void start() {
+        for (List<File> list : children.values()) {
+            list.sort((a, b) -> a.getName().compareTo(b.getName()));
+        }
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Adds a folder to the tree. Call before start().
+     * @param id       The folder ID.
+     * @param parentId The ID of the parent folder.
+     * @param name     The folder name.
+     */
+    public void addFolder(String id, String parentId, String name) {
+        File folder = new File().setId(id).setName(name).setMimeType(FOLDER_MIME_TYPE)
+                .setParents(new ArrayList<>(Collections.singletonList(parentId))).setTrashed(false)
+                .setModifiedTime(new DateTime(System.currentTimeMillis()));
+        files.put(id, folder);
+        children.get(parentId).add(folder);
+        children.put(id, new ArrayList<>());
+    }
+
+    /**
+     * Adds a file to the tree. Call before start().
+     * @param id       The file ID.
+     * @param parentId The ID of the parent folder.
+     * @param name     The file name.
+     * @param size     The content size in bytes.
+     */
+    public void addFile(String id, String parentId, String name, long size) {
+        File file = new File().setId(id).setName(name).setMimeType("application/octet-stream")
+                .setParents(new ArrayList<>(Collections.singletonList(parentId))).setTrashed(false).setSize(size)
+                .setMd5Checksum(md5Of(id, size)).setModifiedTime(new DateTime(System.currentTimeMillis()));
+        files.put(id, file);
+        children.get(parentId).add(file);
+    }
+
+    /**
+     * Marks a file as modified: its modified time changes and a change is logged for changes.list.
+     * Content stays the same, so downloads still verify.
+     * @param id The file ID.
+     */
+    public void touchFile(String id) {
+        File file = files.get(id);
+        file.setModifiedTime(new DateTime(file.getModifiedTime().getValue() + 1000));
+        Change change = new Change().setFileId(id).setRemoved(false).setFile(file.clone())
+                .setType("file").setTime(new DateTime(System.currentTimeMillis()));
+        changeLog.add(change);
+    }
+
+    /** @return Every file (not folder) in the tree. */
+    public List<File> listAllFiles() {
+        List<File> all = new ArrayList<>();
+        for (File file : files.values()) {
+            if (!FOLDER_MIME_TYPE.equals(file.getMimeType())) all.add(file);
+        }
+        return all;
+    }
+
+    /**
+     * Writes the content of a file, the same bytes files.get with alt=media serves.
+     * @param id     The file ID.
+     * @param offset The first byte.
+     * @param length The number of bytes.
+     * @param out    Where to write them.
+     * @throws IOException if writing fails.
+     */
+    public static void writeContent(String id, long offset, long length, OutputStream out) throws IOException {
+        int position = (int) ((seedOf(id) + offset) % CONTENT.length);
+        while (length > 0) {
+            int count = (int) Math.min(length, CONTENT.length - position);
+            out.write(CONTENT, position, count);
+            length -= count;
+            position = 0;
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            stats.requests.incrementAndGet();
+            sleep(conditions.latencyMillis);
+            URI uri = exchange.getRequestURI();
+            if (uri.getPath().equals(BATCH_PATH)) {
+                handleBatch(exchange);
+                return;
+            }
+            Reply fault = injectFault();
+            if (fault != null) {
+                send(exchange, fault);
+            } else if (isMedia(uri)) {
+                sendMedia(exchange, uri);
+            } else {
+                send(exchange, route(exchange.getRequestMethod(), uri));
+            }
+        } catch (Exception e) {
+            try {
+                send(exchange, error(500, "backendError", String.valueOf(e)));
+            } catch (IOException ignore) {
+                // Headers were already sent; closing the exchange cuts the response short
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Answers one API call (outside or inside a batch), except media downloads.
+     * @param method The HTTP method.
+     * @param uri    The request URI.
+     * @return The reply.
+     */
+    private Reply route(String method, URI uri) throws IOException {
+        String path = uri.getPath();
+        Map<String, String> query = parseQuery(uri.getRawQuery());
+        if (!"GET".equals(method) || !path.startsWith(API_PATH)) {
+            return error(404, "notFound", "Not supported by the fake server: " + method + " " + path);
+        }
+        String resource = path.substring(API_PATH.length());
+        if (resource.equals("files")) {
+            return json(listFiles(query));
+        } else if (resource.startsWith("files/")) {
+            File file = files.get(resource.substring("files/".length()));
+            return file != null ? json(file) : error(404, "notFound", "File not found: " + resource);
+        } else if (resource.equals("changes/startPageToken")) {
+            return json(new StartPageToken().setStartPageToken(String.valueOf(changeLog.size())));
+        } else if (resource.equals("changes")) {
+            return listChanges(query);
+        }
+        return error(404, "notFound", "Not supported by the fake server: " + path);
+    }
+
+    private FileList listFiles(Map<String, String> query) {
+        String q = query.getOrDefault("q", "");
+        Matcher parent = PARENT_QUERY.matcher(q);
+        List<File> source = parent.find() ? children.getOrDefault(parent.group(1), Collections.emptyList())
+                : Collections.emptyList();
+        boolean onlyFolders = q.contains("mimeType = '" + FOLDER_MIME_TYPE + "'");
+        boolean noFolders = q.contains("mimeType != '" + FOLDER_MIME_TYPE + "'");
+        int pageSize = pageSize(query);
+        int from = query.containsKey("pageToken") ? Integer.parseInt(query.get("pageToken")) : 0;
+        List<File> page = new ArrayList<>();
+        int index = from;
+        for (; index < source.size() && page.size() < pageSize; index++) {
+            File file = source.get(index);
+            boolean isFolder = FOLDER_MIME_TYPE.equals(file.getMimeType());
+            if ((onlyFolders && !isFolder) || (noFolders && isFolder)) continue;
+            page.add(file);
+        }
+        FileList list = new FileList().setFiles(page);
+        if (index < source.size()) list.setNextPageToken(String.valueOf(index));
+        return list;
+    }
+
+    private Reply listChanges(Map<String, String> query) throws IOException {
+        String token = query.get("pageToken");
+        if (token == null) return error(400, "required", "Required parameter: pageToken");
+        int from = Integer.parseInt(token);
+        // Drive names the parameter, which is how the app tells a stale token from a bad request
+        if (from > changeLog.size()) return error(400, "invalid", "Invalid Value", "pageToken");
+        int to = Math.min(changeLog.size(), from + pageSize(query));
+        ChangeList list = new ChangeList().setChanges(new ArrayList<>(changeLog.subList(from, to)));
+        if (to < changeLog.size()) {
+            list.setNextPageToken(String.valueOf(to));
+        } else {
+            list.setNewStartPageToken(String.valueOf(to));
+        }
+        return json(list);
+    }
+
+    /**
+     * Streams a file's content, honouring a Range header and the bandwidth cap.
+     */
+    private void sendMedia(HttpExchange exchange, URI uri) throws IOException {
+        String id = uri.getPath().substring((API_PATH + "files/").length());
+        File file = files.get(id);
+        if (file == null || file.getSize() == null) {
+            send(exchange, error(404, "notFound", "File not found: " + id));
+            return;
+        }
+        long size = file.getSize();
+        long start = 0;
+        long end = size - 1;
+        int status = 200;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        Matcher matcher = range != null ? RANGE.matcher(range) : null;
+        if (matcher != null && matcher.matches()) {
+            start = Long.parseLong(matcher.group(1));
+            if (!matcher.group(2).isEmpty()) end = Math.min(end, Long.parseLong(matcher.group(2)));
+            if (start >= size) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + size);
+                exchange.sendResponseHeaders(416, -1);
+                return;
+            }
+            status = 206;
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + size);
+        }
+        long length = end - start + 1;
+        exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        exchange.sendResponseHeaders(status, length);
+        OutputStream out = exchange.getResponseBody();
+        long bandwidth = conditions.bandwidthBytesPerSecond;
+        long began = System.nanoTime();
+        long sent = 0;
+        while (sent < length) {
+            int count = (int) Math.min(SLICE_SIZE, length - sent);
+            writeContent(id, start + sent, count, out);
+            sent += count;
+            stats.mediaBytes.addAndGet(count);
+            if (bandwidth > 0) {
+                // Sleep until the bytes sent so far fit the cap
+                long due = began + sent * 1_000_000_000L / bandwidth;
+                long wait = due - System.nanoTime();
+                if (wait > 0) sleep(wait / 1_000_000);
+            }
+        }
+        out.close();
+    }
+
+    /**
+     * Answers a multipart/mixed batch: every part is an embedded HTTP request, answered by an
+     * embedded HTTP response in the same order. Faults are injected per part, like Drive does.
+     */
+    private void handleBatch(HttpExchange exchange) throws IOException {
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        String boundary = contentType.substring(contentType.indexOf("boundary=") + "boundary=".length())
+                .replace("\"", "");
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+        List<String> requestLines = new ArrayList<>();
+        String line;
+        boolean expectRequestLine = false;
+        boolean inPartHeaders = false;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("--" + boundary)) {
+                inPartHeaders = true;
+                expectRequestLine = false;
+            } else if (inPartHeaders && line.isEmpty()) {
+                inPartHeaders = false;
+                expectRequestLine = true;
+            } else if (expectRequestLine && !line.isEmpty()) {
+                requestLines.add(line);
+                expectRequestLine = false;
+            }
+        }
+        String responseBoundary = "batch_" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int contentId = 1;
+        for (String requestLine : requestLines) {
+            stats.batchParts.incrementAndGet();
+            String[] parts = requestLine.split(" ");
+            Reply reply = injectFault();
+            if (reply == null) reply = route(parts[0], URI.create(parts[1]));
+            String head = "--" + responseBoundary + "\r\n" +
+                    "Content-Type: application/http\r\n" +
+                    "Content-ID: <response-" + contentId++ + ">\r\n\r\n" +
+                    "HTTP/1.1 " + reply.status + " " + reasonOf(reply.status) + "\r\n" +
+                    "Content-Type: " + reply.contentType + "\r\n" +
+                    "Content-Length: " + reply.body.length + "\r\n\r\n";
+            body.write(head.getBytes(StandardCharsets.UTF_8));
+            body.write(reply.body);
+            body.write("\r\n".getBytes(StandardCharsets.UTF_8));
+        }
+        body.write(("--" + responseBoundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        send(exchange, new Reply(200, "multipart/mixed; boundary=" + responseBoundary, body.toByteArray()));
+    }
+
+    /**
+     * Draws whether this request fails, according to the conditions.
+     * @return The fault reply, or null to answer normally.
+     */
+    private Reply injectFault() throws IOException {
+        double draw = ThreadLocalRandom.current().nextDouble();
+        if (draw < conditions.throttleRate) {
+            stats.throttled.incrementAndGet();
+            return error(429, "rateLimitExceeded", "Rate Limit Exceeded");
+        }
+        if (draw < conditions.throttleRate + conditions.errorRate) {
+            stats.errors.incrementAndGet();
+            return error(500, "backendError", "Backend Error");
+        }
+        return null;
+    }
+
+    private static boolean isMedia(URI uri) {
+        String query = uri.getRawQuery();
+        return query != null && query.contains("alt=media") && uri.getPath().startsWith(API_PATH + "files/");
+    }
+
+    private static int pageSize(Map<String, String> query) {
+        int pageSize = query.containsKey("pageSize") ? Integer.parseInt(query.get("pageSize")) : DEFAULT_PAGE_SIZE;
+        return Math.max(1, Math.min(MAX_PAGE_SIZE, pageSize));
+    }
+
+    private static Reply json(GenericJson content) throws IOException {
+        return new Reply(200, "application/json; charset=UTF-8",
+                GsonFactory.getDefaultInstance().toString(content).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Builds an error reply in Drive's JSON error format, which the client turns into a GoogleJsonError.
+     */
+    private static Reply error(int status, String reason, String message) {
+        return error(status, reason, message, null);
+    }
+
+    /**
+     * Builds an error reply about one query parameter, located the way Drive reports invalid values.
+     */
+    private static Reply error(int status, String reason, String message, String parameter) {
+        String location = parameter != null
+                ? ",\"locationType\":\"parameter\",\"location\":\"" + parameter + "\"" : "";
+        String body = "{\"error\":{\"code\":" + status + ",\"message\":\"" + message.replace("\"", "'") +
+                "\",\"errors\":[{\"domain\":\"usageLimits\",\"reason\":\"" + reason + "\",\"message\":\"" +
+                message.replace("\"", "'") + "\"" + location + "}]}}";
+        return new Reply(status, "application/json; charset=UTF-8", body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(HttpExchange exchange, Reply reply) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", reply.contentType);
+        exchange.sendResponseHeaders(reply.status, reply.body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(reply.body);
+        }
+    }
+
+    private static String reasonOf(int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 400: return "Bad Request";
+            case 404: return "Not Found";
+            case 429: return "Too Many Requests";
+            default: return "Internal Server Error";
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) return query;
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals < 0) continue;
+            query.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                    URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+        }
+        return query;
+    }
+
+    private static long seedOf(String id) {
+        return id.hashCode() & 0x7fffffffL;
+    }
+
+    private static String md5Of(String id, long size) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            writeContent(id, 0, size, new OutputStream() {
+                @Override
+                public void write(int b) {
+                    digest.update((byte) b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    digest.update(b, off, len);
+                }
+            });
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) return;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
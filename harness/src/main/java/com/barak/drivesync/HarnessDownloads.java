@@ -0,0 +1,127 @@
+package com.barak.drivesync;
+
+import com.google.api.services.drive.model.File;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The download side of a harness sync: a fixed pool of workers fetching each submitted file into
+ * a temporary sibling and renaming it into place, like DownloadEngine. Records the latency of
+ * every download, from the start of its transfer to the rename.
+ */
+public class HarnessDownloads implements DownloadQueue {
+    private static final Logger LOG = Logger.getLogger("HarnessDownloads");
+
+    private final HarnessDrive drive;
+    private final HarnessStorage storage;
+    private final SyncMetrics metrics;
+    private final ExecutorService workers;
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private final Object latencyLock = new Object();
+    private long[] latencies = new long[1024];
+    private int latencyCount = 0;
+
+    /**
+     * @param drive       The Drive side to download from.
+     * @param storage     The local side to write to.
+     * @param concurrency The number of parallel downloads.
+     * @param metrics     The metrics receiving download and write time and downloaded bytes.
+     */
+    public HarnessDownloads(HarnessDrive drive, HarnessStorage storage, int concurrency, SyncMetrics metrics) {
+        this.drive = drive;
+        this.storage = storage;
+        this.metrics = metrics;
+        this.workers = Executors.newFixedThreadPool(Math.max(1, concurrency), r -> {
+            Thread thread = new Thread(r, "Harness-download");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void submit(File driveFile, String parentId, DirectorySnapshot localDir, boolean isNew) {
+        workers.execute(() -> download(driveFile, localDir));
+    }
+
+    /**
+     * Waits for every submitted download to finish.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void awaitCompletion() throws InterruptedException {
+        workers.shutdown();
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    public int getCompletedCount() {
+        return completed.get();
+    }
+
+    public int getFailedCount() {
+        return failed.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @param percentile From 0 to 100.
+     * @return The download latency at that percentile, in milliseconds; 0 if nothing was downloaded.
+     */
+    public double getLatencyMillis(double percentile) {
+        long[] sorted;
+        synchronized (latencyLock) {
+            sorted = Arrays.copyOf(latencies, latencyCount);
+        }
+        if (sorted.length == 0) return 0;
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+    }
+
+    private void download(File driveFile, DirectorySnapshot localDir) {
+        long start = System.nanoTime();
+        java.io.File dir = HarnessStorage.directoryOf(localDir);
+        java.io.File temp = new java.io.File(dir, TempFiles.tempNameFor(driveFile.getId()));
+        java.io.File target = new java.io.File(dir, driveFile.getName());
+        try {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024)) {
+                drive.download(driveFile.getId(), out);
+            }
+            metrics.recordPhase(SyncMetrics.Phase.DOWNLOAD, start);
+            long moveStart = System.nanoTime();
+            if (!temp.renameTo(target)) {
+                throw new java.io.IOException("Cannot move " + temp + " to " + target);
+            }
+            storage.onFileWritten(localDir, target);
+            metrics.recordPhase(SyncMetrics.Phase.WRITE, moveStart);
+            bytes.addAndGet(target.length());
+            metrics.addBytesDownloaded(target.length());
+            completed.incrementAndGet();
+            recordLatency(System.nanoTime() - start);
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Download failed: " + driveFile.getName(), e);
+            temp.delete();
+            failed.incrementAndGet();
+        }
+    }
+
+    private void recordLatency(long nanos) {
+        synchronized (latencyLock) {
+            if (latencyCount == latencies.length) latencies = Arrays.copyOf(latencies, latencyCount * 2);
+            latencies[latencyCount++] = nanos;
+        }
+    }
+}
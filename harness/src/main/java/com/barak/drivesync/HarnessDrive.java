@@ -0,0 +1,121 @@
+package com.barak.drivesync;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The Drive side of a harness sync: the Drive v3 client, pointed at a root URL and paced by a
+ * RequestScheduler, issuing the same listing, change and media requests as DriveManager.
+ * No credential is installed; the fake server does not check authorization.
+ */
+public class HarnessDrive implements RemoteStorage {
+    // Same page size as DriveManager
+    private static final int LIST_PAGE_SIZE = 1000;
+
+    private final Drive drive;
+    private final HttpRequestInitializer requestInitializer;
+
+    /**
+     * @param rootUrl   The Drive API root URL, ending in '/'.
+     * @param scheduler The scheduler pacing and retrying every request.
+     */
+    public HarnessDrive(String rootUrl, RequestScheduler scheduler) {
+        requestInitializer = request -> {
+            request.setConnectTimeout(60 * 1000);
+            request.setReadTimeout(60 * 1000);
+            scheduler.initialize(request);
+        };
+        drive = new Drive.Builder(new NetHttpTransport(), GsonFactory.getDefaultInstance(), requestInitializer)
+                .setApplicationName("DriveSync harness")
+                .setRootUrl(rootUrl)
+                .build();
+    }
+
+    @Override
+    public void listChildrenBatch(Map<String, String> pageTokens, ChildPageCallback callback) throws IOException {
+        BatchRequest batch = drive.batch(requestInitializer);
+        for (Map.Entry<String, String> request : pageTokens.entrySet()) {
+            String folderId = request.getKey();
+            drive.files().list()
+                    .setQ("'" + folderId + "' in parents and trashed = false")
+                    .setSpaces("drive")
+                    .setFields("nextPageToken, files(id, name, modifiedTime, md5Checksum, mimeType, size)")
+                    .setOrderBy("name")
+                    .setPageSize(LIST_PAGE_SIZE)
+                    .setPageToken(request.getValue())
+                    .queue(batch, new JsonBatchCallback<FileList>() {
+                        @Override
+                        public void onSuccess(FileList result, HttpHeaders responseHeaders) {
+                            List<File> page = result.getFiles() != null ? result.getFiles() : Collections.emptyList();
+                            try {
+                                callback.onPage(folderId, page, result.getNextPageToken());
+                            } catch (Exception e) {
+                                callback.onFailure(folderId, e);
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+                            callback.onFailure(folderId, new IOException(
+                                    "Listing folder " + folderId + " failed: " + error.getCode() + " " + error.getMessage()));
+                        }
+                    });
+        }
+        batch.execute();
+    }
+
+    /**
+     * @return The token marking the current head of the change log.
+     * @throws IOException if the request fails.
+     */
+    public String getStartPageToken() throws IOException {
+        return drive.changes().getStartPageToken().execute().getStartPageToken();
+    }
+
+    /**
+     * Lists every change after a page token.
+     * @param pageToken The token to start from.
+     * @return The changes, in order.
+     * @throws IOException if a request fails.
+     */
+    public List<Change> listChanges(String pageToken) throws IOException {
+        List<Change> changes = new ArrayList<>();
+        String token = pageToken;
+        while (token != null) {
+            ChangeList page = drive.changes().list(token)
+                    .setSpaces("drive")
+                    .setPageSize(LIST_PAGE_SIZE)
+                    .execute();
+            if (page.getChanges() != null) changes.addAll(page.getChanges());
+            token = page.getNextPageToken();
+        }
+        return changes;
+    }
+
+    /**
+     * Downloads a file's content through the client's media downloader (ranged chunks).
+     * @param fileId The Drive file ID.
+     * @param out    Where to write the content.
+     * @throws IOException if the download fails.
+     */
+    public void download(String fileId, OutputStream out) throws IOException {
+        drive.files().get(fileId).executeMediaAndDownloadTo(out);
+    }
+}
@@ -0,0 +1,84 @@
+package com.barak.drivesync;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * The local side of a harness sync: plain directories, one snapshot per directory with the
+ * absolute path as document ID, the way DirectFileManager maps primary storage.
+ */
+public class HarnessStorage implements LocalStorage {
+    private final File root;
+
+    /**
+     * @param root The directory mirroring the Drive root; created if missing.
+     */
+    public HarnessStorage(File root) {
+        this.root = root;
+        root.mkdirs();
+    }
+
+    /** @return The snapshot of the root directory. */
+    public DirectorySnapshot snapshotRoot() {
+        return snapshot(root);
+    }
+
+    @Override
+    public DirectorySnapshot createDirectory(DirectorySnapshot parent, String name) {
+        File dir = new File(parent.getDocumentId(), name);
+        DirectorySnapshot.Entry existing = parent.get(name);
+        if (existing != null) return existing.isDirectory() ? snapshot(dir) : null;
+        if (!dir.mkdir() && !dir.isDirectory()) return null;
+        parent.put(name, new DirectorySnapshot.Entry(dir.getAbsolutePath(), DirectorySnapshot.MIME_TYPE_DIR,
+                dir.lastModified(), 0));
+        return new DirectorySnapshot(root.toURI().toString(), dir.getAbsolutePath());
+    }
+
+    /**
+     * Records a file written into a directory, as SAFManager does after a download.
+     * @param dir  The directory snapshot.
+     * @param file The written file.
+     */
+    public void onFileWritten(DirectorySnapshot dir, File file) {
+        dir.put(file.getName(), new DirectorySnapshot.Entry(file.getAbsolutePath(), "application/octet-stream",
+                file.lastModified(), file.length()));
+    }
+
+    /**
+     * Deletes everything below the root, leaving the root itself.
+     * @throws IOException if deleting fails.
+     */
+    public void clear() throws IOException {
+        Path rootPath = root.toPath();
+        try (Stream<Path> paths = Files.walk(rootPath)) {
+            paths.sorted(Comparator.reverseOrder())
+                    .filter(path -> !path.equals(rootPath))
+                    .forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private DirectorySnapshot snapshot(File dir) {
+        DirectorySnapshot snapshot = new DirectorySnapshot(root.toURI().toString(), dir.getAbsolutePath());
+        File[] children = dir.listFiles();
+        if (children == null) return snapshot;
+        for (File child : children) {
+            snapshot.putIfAbsent(child.getName(), new DirectorySnapshot.Entry(child.getAbsolutePath(),
+                    child.isDirectory() ? DirectorySnapshot.MIME_TYPE_DIR : "application/octet-stream",
+                    child.lastModified(), child.length()));
+        }
+        return snapshot;
+    }
+
+    /**
+     * @param dir A directory snapshot.
+     * @return The directory it was taken of.
+     */
+    public static File directoryOf(DirectorySnapshot dir) {
+        return Paths.get(dir.getDocumentId()).toFile();
+    }
+}
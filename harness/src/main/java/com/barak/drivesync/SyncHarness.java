@@ -0,0 +1,259 @@
+package com.barak.drivesync;
+
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.File;
+
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs syncs against a FakeDriveServer and reports throughput and tail latency per scenario.
+ * Each full-sync scenario starts from an empty local folder and index, so every file is listed,
+ * planned and downloaded through TreeWalker, SyncPlanner and the Drive client under the scenario's
+ * network conditions. The "changes" scenario syncs once, modifies a share of the files in Drive
+ * and measures the incremental pass: one changes.list walk and the downloads it triggers.
+ * <p>
+ * Usage: SyncHarness [--files N] [--per-folder N] [--size BYTES] [--workers N] [--scenario NAME] [--warmup N]
+ * [--metrics FILE]
+ * <p>
+ * With --metrics, the SyncMetrics of every scenario (phase times, bytes, and request latency
+ * histograms by kind) are written to FILE, one JSON object per line.
+ * <p>
+ * With --serve PORT the harness only builds the tree and serves it until stopped, for the app to sync
+ * against: set the "drive_root_url" preference to http://10.0.2.2:PORT/ on an emulator.
+ * <p>
+ * Retries and throttling are reported in the table rather than logged; only failures are logged.
+ */
+public class SyncHarness {
+    private static final double MB = 1024.0 * 1024.0;
+
+    private final FakeDriveServer server;
+    private final HarnessStorage storage;
+    private final int workers;
+    // Local directory name of every Drive folder, for the incremental pass
+    private final Map<String, String> folderNames = new HashMap<>();
+
+    /**
+     * One run's results.
+     */
+    private static class Result {
+        int files;
+        int failed;
+        long bytes;
+        double seconds;
+        double listingSeconds;
+        double p50, p95, p99, max;
+        long throttled, errors;
+        SyncMetrics metrics;
+    }
+
+    private SyncHarness(FakeDriveServer server, HarnessStorage storage, int workers) {
+        this.server = server;
+        this.storage = storage;
+        this.workers = workers;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int fileCount = Integer.parseInt(options.getOrDefault("files", "2000"));
+        int perFolder = Integer.parseInt(options.getOrDefault("per-folder", "250"));
+        long size = Long.parseLong(options.getOrDefault("size", String.valueOf(64 * 1024)));
+        // Same default as DownloadEngine.DEFAULT_CONCURRENCY
+        int workers = Integer.parseInt(options.getOrDefault("workers", "4"));
+        String only = options.get("scenario");
+        int warmups = Integer.parseInt(options.getOrDefault("warmup", "1"));
+        String metricsPath = options.get("metrics");
+        Logger.getLogger("").setLevel(Level.SEVERE);
+        Logger.getLogger("HarnessDownloads").setLevel(Level.WARNING);
+
+        Map<String, Consumer<FakeDriveServer.Conditions>> scenarios = new LinkedHashMap<>();
+        scenarios.put("baseline", conditions -> {
+        });
+        scenarios.put("latency-50ms", conditions -> conditions.latencyMillis = 50);
+        scenarios.put("bandwidth-1MBps", conditions -> conditions.bandwidthBytesPerSecond = 1024 * 1024);
+        scenarios.put("throttle-5pct", conditions -> conditions.throttleRate = 0.05);
+        scenarios.put("errors-2pct", conditions -> conditions.errorRate = 0.02);
+        scenarios.put("changes", conditions -> {
+        });
+
+        int servePort = Integer.parseInt(options.getOrDefault("serve", "-1"));
+        FakeDriveServer server = new FakeDriveServer(Math.max(0, servePort));
+        SyncHarness harness = new SyncHarness(server,
+                new HarnessStorage(Files.createTempDirectory("drivesync-harness").toFile()), workers);
+        harness.buildTree(fileCount, perFolder, size);
+        server.start();
+        if (servePort >= 0) {
+            System.out.printf(Locale.ROOT, "Serving %d files in %d folders at %s%n",
+                    fileCount, harness.folderNames.size(), server.getRootUrl());
+            Thread.sleep(Long.MAX_VALUE);
+        }
+        System.out.printf(Locale.ROOT, "Fake Drive at %s: %d files of %d bytes in %d folders, %d download workers%n",
+                server.getRootUrl(), fileCount, size, harness.folderNames.size(), workers);
+        System.out.printf(Locale.ROOT, "%-16s %7s %9s %8s %9s %8s %8s %8s %8s %8s %7s %6s %6s %6s%n",
+                "scenario", "files", "MB", "secs", "files/s", "MB/s", "p50 ms", "p95 ms", "p99 ms", "max ms",
+                "list s", "429s", "500s", "failed");
+        try (PrintWriter metricsOut = metricsPath != null
+                ? new PrintWriter(Files.newBufferedWriter(Paths.get(metricsPath), StandardCharsets.UTF_8)) : null) {
+            // Unreported full syncs, so the first scenario does not pay for class loading and JIT
+            for (int i = 0; i < warmups; i++) harness.runFull();
+            for (Map.Entry<String, Consumer<FakeDriveServer.Conditions>> scenario : scenarios.entrySet()) {
+                if (only != null && !only.equals(scenario.getKey())) continue;
+                FakeDriveServer.Conditions conditions = server.conditions;
+                conditions.latencyMillis = 0;
+                conditions.bandwidthBytesPerSecond = 0;
+                conditions.throttleRate = 0;
+                conditions.errorRate = 0;
+                scenario.getValue().accept(conditions);
+                Result result = scenario.getKey().equals("changes") ? harness.runIncremental(0.01)
+                        : harness.runFull();
+                print(scenario.getKey(), result);
+                if (metricsOut != null) {
+                    metricsOut.println("{\"scenario\":\"" + scenario.getKey() + "\",\"metrics\":"
+                            + result.metrics.toJson() + "}");
+                }
+            }
+        } finally {
+            harness.storage.clear();
+            server.stop();
+        }
+    }
+
+    private void buildTree(int fileCount, int perFolder, long size) {
+        int folderCount = Math.max(1, (fileCount + perFolder - 1) / perFolder);
+        for (int f = 0; f < folderCount; f++) {
+            String folderId = String.format(Locale.ROOT, "folder%06d", f);
+            String folderName = String.format(Locale.ROOT, "Folder %05d", f);
+            server.addFolder(folderId, FakeDriveServer.ROOT_ID, folderName);
+            folderNames.put(folderId, folderName);
+            int end = Math.min(fileCount, (f + 1) * perFolder);
+            for (int i = f * perFolder; i < end; i++) {
+                server.addFile(String.format(Locale.ROOT, "file%09d", i), folderId,
+                        String.format(Locale.ROOT, "File %07d.bin", i), size);
+            }
+        }
+    }
+
+    /**
+     * Syncs the whole tree into an empty local folder.
+     * @return The results.
+     */
+    private Result runFull() throws Exception {
+        storage.clear();
+        long throttledBefore = server.stats.throttled.get();
+        long errorsBefore = server.stats.errors.get();
+        SyncMetrics metrics = new SyncMetrics();
+        HarnessDrive drive = new HarnessDrive(server.getRootUrl(), createScheduler(metrics));
+        HarnessDownloads downloads = new HarnessDownloads(drive, storage, workers, metrics);
+        SyncPlanner planner = new SyncPlanner(new IndexSnapshot(0).seal(), Collections.emptySet(), downloads);
+        TreeWalker walker = new TreeWalker(drive, storage, planner, TreeWalker.DEFAULT_CONCURRENCY, metrics);
+
+        long start = System.nanoTime();
+        walker.walk(FakeDriveServer.ROOT_ID, storage.snapshotRoot());
+        long listed = System.nanoTime();
+        downloads.awaitCompletion();
+        long end = System.nanoTime();
+
+        metrics.finish();
+        Result result = collect(downloads, start, end);
+        result.failed += planner.getFailedFolderCount();
+        result.listingSeconds = (listed - start) / 1e9;
+        result.throttled = server.stats.throttled.get() - throttledBefore;
+        result.errors = server.stats.errors.get() - errorsBefore;
+        result.metrics = metrics;
+        return result;
+    }
+
+    /**
+     * Syncs the tree, modifies a share of its files and measures the incremental pass alone.
+     * @param share The share of files to modify, from 0 to 1.
+     * @return The results of the incremental pass.
+     */
+    private Result runIncremental(double share) throws Exception {
+        runFull();
+        SyncMetrics metrics = new SyncMetrics();
+        HarnessDrive drive = new HarnessDrive(server.getRootUrl(), createScheduler(metrics));
+        String token = drive.getStartPageToken();
+        List<File> all = server.listAllFiles();
+        int step = Math.max(1, (int) Math.round(1 / share));
+        for (int i = 0; i < all.size(); i += step) {
+            server.touchFile(all.get(i).getId());
+        }
+        HarnessDownloads downloads = new HarnessDownloads(drive, storage, workers, metrics);
+        Map<String, DirectorySnapshot> dirs = new HashMap<>();
+        DirectorySnapshot root = storage.snapshotRoot();
+
+        long start = System.nanoTime();
+        List<Change> changes = drive.listChanges(token);
+        long listed = System.nanoTime();
+        metrics.addPhaseTime(SyncMetrics.Phase.LIST, listed - start);
+        for (Change change : changes) {
+            File file = change.getFile();
+            if (Boolean.TRUE.equals(change.getRemoved()) || file == null || file.getParents() == null) continue;
+            String parentId = file.getParents().get(0);
+            DirectorySnapshot dir = dirs.computeIfAbsent(parentId,
+                    id -> storage.createDirectory(root, folderNames.get(id)));
+            downloads.submit(file, parentId, dir, false);
+        }
+        downloads.awaitCompletion();
+        long end = System.nanoTime();
+
+        metrics.finish();
+        Result result = collect(downloads, start, end);
+        result.listingSeconds = (listed - start) / 1e9;
+        result.metrics = metrics;
+        return result;
+    }
+
+    private static RequestScheduler createScheduler(SyncMetrics metrics) {
+        RequestScheduler scheduler = new RequestScheduler();
+        scheduler.setMetrics(metrics);
+        return scheduler;
+    }
+
+    private static Result collect(HarnessDownloads downloads, long start, long end) {
+        Result result = new Result();
+        result.files = downloads.getCompletedCount();
+        result.failed = downloads.getFailedCount();
+        result.bytes = downloads.getBytes();
+        result.seconds = (end - start) / 1e9;
+        result.p50 = downloads.getLatencyMillis(50);
+        result.p95 = downloads.getLatencyMillis(95);
+        result.p99 = downloads.getLatencyMillis(99);
+        result.max = downloads.getLatencyMillis(100);
+        return result;
+    }
+
+    private static void print(String scenario, Result r) {
+        System.out.printf(Locale.ROOT, "%-16s %7d %9.1f %8.2f %9.1f %8.1f %8.1f %8.1f %8.1f %8.1f %7.2f %6d %6d %6d%n",
+                scenario, r.files, r.bytes / MB, r.seconds, r.files / r.seconds, r.bytes / MB / r.seconds,
+                r.p50, r.p95, r.p99, r.max, r.listingSeconds, r.throttled, r.errors, r.failed);
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        List<String> rest = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--") && i + 1 < args.length) {
+                options.put(args[i].substring(2), args[++i]);
+            } else {
+                rest.add(args[i]);
+            }
+        }
+        if (!rest.isEmpty()) {
+            throw new IllegalArgumentException("Unexpected arguments: " + rest);
+        }
+        return options;
+    }
+}
@@ -14,4 +14,6 @@ dependencyResolutionManagement {
 }
 
 rootProject.name = "DriveSync"
-include(":app")
\ No newline at end of file
+include(":app")
+include(":core")
+include(":harness")
\ No newline at end of file